@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.util.Arrays;
+
+/**
+ * Shrinks an ARGB image by averaging the source pixels that each destination pixel covers, for
+ * any ratio, not just whole numbers.
+ * <p/>
+ * Source rows are fed in order, one at a time, and each completed destination row is handed
+ * back, so only one source row and one destination row of sums are held at a time. Every source
+ * pixel overlaps at most two destination pixels in each direction, so the overlaps are
+ * precomputed as integer weights and the average is exact.
+ */
+public class AreaDownsampler {
+
+	private final int mSourceWidth;
+	private final int mSourceHeight;
+	private final int mWidth;
+	private final int mHeight;
+
+	/**
+	 * For each source column, the first destination column it overlaps and how much of it falls
+	 * there, out of {@link #mWidth}. The rest falls in the next column.
+	 */
+	private final int[] mColumn;
+	private final int[] mColumnWeight;
+
+	/**
+	 * A source row reduced to the destination width, four channels per pixel.
+	 */
+	private final int[] mRowSums;
+	/**
+	 * The weighted sums of the destination row being built, and of the one after it.
+	 */
+	private long[] mSums;
+	private long[] mNextSums;
+
+	private int mSourceRow;
+	private int mRow;
+
+	/**
+	 * @param sourceWidth  the width of the source, in pixels
+	 * @param sourceHeight the height of the source, in pixels
+	 * @param width        the width of the destination, no larger than the source
+	 * @param height       the height of the destination, no larger than the source
+	 */
+	public AreaDownsampler(int sourceWidth, int sourceHeight, int width, int height) {
+		if (width <= 0 || height <= 0 || width > sourceWidth || height > sourceHeight) {
+			throw new IllegalArgumentException("Cannot downsample " + sourceWidth + "x"
+					+ sourceHeight + " to " + width + "x" + height);
+		}
+
+		mSourceWidth = sourceWidth;
+		mSourceHeight = sourceHeight;
+		mWidth = width;
+		mHeight = height;
+
+		// In units where a source pixel is width wide and a destination pixel is sourceWidth wide.
+		mColumn = new int[sourceWidth];
+		mColumnWeight = new int[sourceWidth];
+		for (int x = 0; x < sourceWidth; x++) {
+			int start = x * width;
+			int column = start / sourceWidth;
+			int boundary = (column + 1) * sourceWidth;
+
+			mColumn[x] = column;
+			mColumnWeight[x] = Math.min(width, boundary - start);
+		}
+
+		mRowSums = new int[width * 4];
+		mSums = new long[width * 4];
+		mNextSums = new long[width * 4];
+	}
+
+	/**
+	 * @return the width of the destination, in pixels
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the height of the destination, in pixels
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Adds the next source row.
+	 *
+	 * @param source       the source pixels
+	 * @param sourceOffset the index of the first pixel of the row
+	 * @param row          where to write a completed destination row
+	 * @param rowOffset    the index in row of the first destination pixel
+	 * @return whether or not a destination row was completed and written
+	 */
+	public boolean addRow(int[] source, int sourceOffset, int[] row, int rowOffset) {
+		if (mSourceRow >= mSourceHeight) {
+			throw new IllegalStateException("All " + mSourceHeight + " rows were already added");
+		}
+
+		reduceRow(source, sourceOffset);
+
+		// The same overlap as the columns, in units of height and sourceHeight.
+		int start = mSourceRow * mHeight;
+		int end = start + mHeight;
+		int boundary = (mRow + 1) * mSourceHeight;
+		mSourceRow++;
+
+		if (end < boundary) {
+			accumulate(mSums, mHeight);
+			return false;
+		}
+
+		accumulate(mSums, boundary - start);
+		if (end > boundary) {
+			accumulate(mNextSums, end - boundary);
+		}
+
+		writeRow(row, rowOffset);
+
+		long[] sums = mSums;
+		mSums = mNextSums;
+		mNextSums = sums;
+		Arrays.fill(mNextSums, 0);
+		mRow++;
+
+		return true;
+	}
+
+	/**
+	 * Sums a source row into {@link #mRowSums}, weighted by the column overlaps.
+	 */
+	private void reduceRow(int[] source, int offset) {
+		final int[] sums = mRowSums;
+		final int[] columns = mColumn;
+		final int[] weights = mColumnWeight;
+		final int width = mWidth;
+		final int last = sums.length - 4;
+
+		Arrays.fill(sums, 0);
+
+		for (int x = 0; x < mSourceWidth; x++) {
+			int pixel = source[offset + x];
+			int a = pixel >>> 24;
+			int r = (pixel >> 16) & 0xFF;
+			int g = (pixel >> 8) & 0xFF;
+			int b = pixel & 0xFF;
+
+			int i = columns[x] * 4;
+			int weight = weights[x];
+			sums[i] += a * weight;
+			sums[i + 1] += r * weight;
+			sums[i + 2] += g * weight;
+			sums[i + 3] += b * weight;
+
+			if (weight < width && i < last) {
+				weight = width - weight;
+				sums[i + 4] += a * weight;
+				sums[i + 5] += r * weight;
+				sums[i + 6] += g * weight;
+				sums[i + 7] += b * weight;
+			}
+		}
+	}
+
+	private void accumulate(long[] sums, int weight) {
+		final int[] rowSums = mRowSums;
+
+		for (int i = 0; i < sums.length; i++) {
+			sums[i] += (long) rowSums[i] * weight;
+		}
+	}
+
+	private void writeRow(int[] row, int offset) {
+		final long[] sums = mSums;
+		// Each destination pixel covers sourceWidth * sourceHeight units of weight.
+		final long total = (long) mSourceWidth * mSourceHeight;
+		final long half = total / 2;
+
+		for (int x = 0, i = 0; x < mWidth; x++, i += 4) {
+			int a = (int) ((sums[i] + half) / total);
+			int r = (int) ((sums[i + 1] + half) / total);
+			int g = (int) ((sums[i + 2] + half) / total);
+			int b = (int) ((sums[i + 3] + half) / total);
+
+			row[offset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of batch jobs, so that a batch interrupted by the process being killed
+ * resumes from the last completed image instead of starting over.
+ * <p/>
+ * Each line records either a new job or the completion of one, and ends with a checksum of the
+ * record. Every line is synced to disk before the call returns. When the journal is loaded, a
+ * line without a matching checksum is treated as torn and ignored and a partially written last line is cut off, so the next
+ * record starts on a line of its own. The file is deleted once every job has completed.
+ */
+public class BatchJournal {
+
+	private static final String CHARSET = "UTF-8";
+
+	private static final String RECORD_ADD = "A";
+	/**
+	 * A job that saves every rendition size, with the same fields as {@link #RECORD_ADD}.
+	 */
+	private static final String RECORD_ADD_RENDITIONS = "R";
+	private static final String RECORD_DONE = "D";
+	private static final String RECORD_FAILED = "F";
+	/**
+	 * The id of a batch whose jobs have all been added, so that a redelivered batch is only
+	 * added once.
+	 */
+	private static final String RECORD_BATCH = "B";
+
+	/**
+	 * Separates a record from its checksum.
+	 */
+	private static final char CHECKSUM_SEPARATOR = '\t';
+
+	/**
+	 * A single image to fade.
+	 */
+	public static class Job {
+		/**
+		 * Unique id of the job, also used to name the output.
+		 */
+		public final long id;
+		/**
+		 * Uri of the image, which must not contain a line break.
+		 */
+		public final String uri;
+		/**
+		 * The amount of fade.
+		 */
+		public final float fade;
+		/**
+		 * Whether or not the fade is applied in linear light.
+		 */
+		public final boolean linear;
+		/**
+		 * The type of mask that scales the fade, see {@link FadeMask}.
+		 */
+		public final int mask;
+		/**
+		 * Whether to save every rendition size, or only the default size.
+		 */
+		public final boolean renditions;
+
+		public Job(long id, String uri, float fade, boolean linear, int mask,
+		           boolean renditions) {
+			this.id = id;
+			this.uri = uri;
+			this.fade = fade;
+			this.linear = linear;
+			this.mask = mask;
+			this.renditions = renditions;
+		}
+	}
+
+	private final File mFile;
+	/**
+	 * The jobs that have not completed yet, in the order they were added.
+	 */
+	private final Map<Long, Job> mPending = new LinkedHashMap<Long, Job>();
+	/**
+	 * The ids of the batches that have been added since the journal was created.
+	 */
+	private final Set<String> mBatches = new HashSet<String>();
+	private int mCompleted;
+	private int mFailed;
+	private long mNextId;
+
+	/**
+	 * @param file the file that holds the journal
+	 */
+	public BatchJournal(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Reads the journal from disk, replacing any state in memory.
+	 *
+	 * @throws IOException if the journal exists but could not be read
+	 */
+	public synchronized void load() throws IOException {
+		mPending.clear();
+		mBatches.clear();
+		mCompleted = 0;
+		mFailed = 0;
+		mNextId = System.currentTimeMillis();
+
+		if (!mFile.exists()) {
+			return;
+		}
+
+		byte[] data;
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+
+		try {
+			data = new byte[(int) file.length()];
+			file.readFully(data);
+
+			int end = data.length;
+			while (end > 0 && data[end - 1] != '\n') {
+				end--;
+			}
+
+			if (end < data.length) {
+				// A torn write from a killed process, which must not run into the next record.
+				file.setLength(end);
+				data = Arrays.copyOf(data, end);
+			}
+		} finally {
+			file.close();
+		}
+
+		for (String line : new String(data, CHARSET).split("\n")) {
+			String record = verify(line);
+
+			if (record != null) {
+				read(record);
+			}
+		}
+	}
+
+	/**
+	 * @param line a line of the journal, without the line break
+	 * @return the record, or null if it has no checksum or does not match it
+	 */
+	private static String verify(String line) throws IOException {
+		int separator = line.lastIndexOf(CHECKSUM_SEPARATOR);
+
+		if (separator < 0) {
+			return null;
+		}
+
+		String record = line.substring(0, separator);
+		try {
+			if (Long.parseLong(line.substring(separator + 1), 16) == checksum(record)) {
+				return record;
+			}
+		} catch (NumberFormatException e) {
+			// Fall through.
+		}
+
+		return null;
+	}
+
+	/**
+	 * Applies a single record to the state in memory.
+	 */
+	private void read(String record) {
+		String[] fields = record.split(" ", 6);
+
+		try {
+			if ((RECORD_ADD.equals(fields[0]) || RECORD_ADD_RENDITIONS.equals(fields[0]))
+					&& fields.length == 6) {
+				long id = Long.parseLong(fields[1]);
+				mPending.put(id, new Job(id, fields[5], Float.parseFloat(fields[2]),
+						"1".equals(fields[3]), Integer.parseInt(fields[4]),
+						RECORD_ADD_RENDITIONS.equals(fields[0])));
+				mNextId = Math.max(mNextId, id + 1);
+			} else if (RECORD_DONE.equals(fields[0]) && fields.length == 2) {
+				if (mPending.remove(Long.parseLong(fields[1])) != null) {
+					mCompleted++;
+				}
+			} else if (RECORD_FAILED.equals(fields[0]) && fields.length == 2) {
+				if (mPending.remove(Long.parseLong(fields[1])) != null) {
+					mFailed++;
+				}
+			} else if (RECORD_BATCH.equals(fields[0]) && fields.length == 2) {
+				mBatches.add(fields[1]);
+			}
+		} catch (NumberFormatException e) {
+			// Not a record that this journal writes, skip it.
+		}
+	}
+
+	/**
+	 * Adds jobs for a set of images, all with the same fade.
+	 *
+	 * @param batch      a unique id for the set, or null. If a set with the same id has already
+	 *                   been added, no jobs are added.
+	 * @param uris       the images to fade
+	 * @param fade       the amount of fade
+	 * @param linear     whether or not the fade is applied in linear light
+	 * @param mask       the type of mask that scales the fade
+	 * @param renditions whether to save every rendition size
+	 * @return the jobs that were added
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized List<Job> add(String batch, List<String> uris, float fade, boolean linear,
+	                                  int mask, boolean renditions) throws IOException {
+		List<Job> jobs = new ArrayList<Job>(uris.size());
+
+		if (batch != null && mBatches.contains(batch)) {
+			return jobs;
+		}
+
+		StringBuilder records = new StringBuilder();
+
+		for (String uri : uris) {
+			Job job = new Job(mNextId++, uri, fade, linear, mask, renditions);
+			jobs.add(job);
+
+			appendRecord(records, (renditions ? RECORD_ADD_RENDITIONS : RECORD_ADD)
+					+ ' ' + job.id + ' ' + job.fade + ' ' + (job.linear ? '1' : '0')
+					+ ' ' + job.mask + ' ' + job.uri);
+		}
+
+		// Last, so that a batch cut short is added again rather than lost.
+		if (batch != null) {
+			appendRecord(records, RECORD_BATCH + ' ' + batch);
+		}
+
+		append(records.toString());
+
+		for (Job job : jobs) {
+			mPending.put(job.id, job);
+		}
+		if (batch != null) {
+			mBatches.add(batch);
+		}
+
+		return jobs;
+	}
+
+	/**
+	 * Records that a job has finished, whether or not it succeeded.
+	 *
+	 * @param id      the id of the job
+	 * @param success whether or not the image was faded
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized void complete(long id, boolean success) throws IOException {
+		if (mPending.remove(id) == null) {
+			return;
+		}
+
+		if (success) {
+			mCompleted++;
+		} else {
+			mFailed++;
+		}
+
+		if (mPending.isEmpty()) {
+			// Nothing left to resume.
+			mFile.delete();
+			mBatches.clear();
+		} else {
+			StringBuilder record = new StringBuilder();
+			appendRecord(record, (success ? RECORD_DONE : RECORD_FAILED) + ' ' + id);
+			append(record.toString());
+		}
+	}
+
+	/**
+	 * @return the jobs that have not completed, in the order they were added
+	 */
+	public synchronized List<Job> getPending() {
+		return new ArrayList<Job>(mPending.values());
+	}
+
+	/**
+	 * @return the number of jobs that completed successfully since the journal was created
+	 */
+	public synchronized int getCompletedCount() {
+		return mCompleted;
+	}
+
+	/**
+	 * @return the number of jobs that failed since the journal was created
+	 */
+	public synchronized int getFailedCount() {
+		return mFailed;
+	}
+
+	/**
+	 * Adds a record, its checksum and a line break to a set of lines.
+	 */
+	private static void appendRecord(StringBuilder lines, String record) throws IOException {
+		lines.append(record).append(CHECKSUM_SEPARATOR)
+				.append(Long.toHexString(checksum(record))).append('\n');
+	}
+
+	private static long checksum(String record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record.getBytes(CHARSET));
+		return crc.getValue();
+	}
+
+	private void append(String records) throws IOException {
+		FileOutputStream out = new FileOutputStream(mFile, true);
+
+		try {
+			out.write(records.getBytes(CHARSET));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.app.Service;
+import android.content.ClipData;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.IBinder;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fades a batch of images in the background, such as the images shared with
+ * {@link android.content.Intent#ACTION_SEND_MULTIPLE}.
+ * <p/>
+ * Jobs are recorded in a {@link BatchJournal} before any work starts. If the process is killed,
+ * the system redelivers the start intents, which grant read access to the images again, and the
+ * service continues with the images that had not completed.
+ * The worker pool is sized to the number of cores and the memory available.
+ */
+public class BatchService extends Service {
+
+	private static final String TAG = BatchService.class.getSimpleName();
+
+	public static final String EXTRA_URIS = "com.eleong.fadefilter.uris";
+	public static final String EXTRA_FADE = "com.eleong.fadefilter.fade";
+	public static final String EXTRA_LINEAR = "com.eleong.fadefilter.linear";
+	public static final String EXTRA_MASK = "com.eleong.fadefilter.mask";
+	public static final String EXTRA_RENDITIONS = "com.eleong.fadefilter.renditions";
+	public static final String EXTRA_BATCH = "com.eleong.fadefilter.batch";
+
+	private static final String JOURNAL_NAME = "batch.journal";
+	private static final String OUTPUT_DIRECTORY = "faded";
+
+	/**
+	 * The minimum sizes saved for a rendition job, largest first, and the suffix of each file.
+	 */
+	private static final int[] RENDITION_SIZES = {FadeExporter.DEFAULT_SIZE, 1024, 256};
+	private static final String[] RENDITION_SUFFIXES = {"", "_preview", "_thumb"};
+
+	/**
+	 * The fraction of the maximum heap that the workers may use together.
+	 */
+	private static final int HEAP_FRACTION = 2;
+
+	private BatchJournal mJournal;
+	private FadeExporter mExporter;
+	private ExecutorService mExecutor;
+	private File mOutputDirectory;
+
+	/**
+	 * The ids of the jobs that have been handed to a worker and not completed, guarded by this
+	 * service.
+	 */
+	private final Set<Long> mQueued = new HashSet<Long>();
+
+	/**
+	 * The id of the most recent start request, so that a request that arrives while the last job
+	 * is finishing does not get dropped.
+	 */
+	private volatile int mLastStartId;
+
+	/**
+	 * Aggregate throughput of the batch, guarded by this service.
+	 */
+	private long mBatchStartNanos;
+	private long mBatchPixels;
+	private int mBatchImages;
+
+	/**
+	 * Starts fading a set of images in the background.
+	 *
+	 * @param context    the context to use
+	 * @param uris       the images to fade
+	 * @param fade       the amount of fade
+	 * @param linear     whether or not to fade in linear light
+	 * @param mask       the type of mask that scales the fade, see {@link FadeMask}
+	 * @param renditions whether to save a preview and a thumbnail along with each image
+	 */
+	public static void start(Context context, ArrayList<Uri> uris, float fade, boolean linear,
+	                         int mask, boolean renditions) {
+		Intent intent = new Intent(context, BatchService.class);
+		intent.putParcelableArrayListExtra(EXTRA_URIS, uris);
+		intent.putExtra(EXTRA_FADE, fade);
+		intent.putExtra(EXTRA_LINEAR, linear);
+		intent.putExtra(EXTRA_MASK, mask);
+		intent.putExtra(EXTRA_RENDITIONS, renditions);
+		intent.putExtra(EXTRA_BATCH, UUID.randomUUID().toString());
+
+		// Only uris in the data or clip data are granted, and the grant lasts until the service
+		// stops. Before Jelly Bean the service relies on the grant to the sharing activity.
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			ClipData clip = ClipData.newRawUri(null, uris.get(0));
+			for (int i = 1; i < uris.size(); i++) {
+				clip.addItem(new ClipData.Item(uris.get(i)));
+			}
+
+			intent.setClipData(clip);
+		}
+		intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+		context.startService(intent);
+	}
+
+	/**
+	 * @param maxMemory the maximum heap size, in bytes
+	 * @param cores     the number of cores
+	 * @return the number of images to fade at the same time
+	 */
+	public static int calculateWorkerCount(long maxMemory, int cores) {
+		long byMemory = maxMemory / HEAP_FRACTION
+				/ FadeExporter.estimateMemory(FadeExporter.DEFAULT_SIZE);
+
+		return (int) Math.max(1, Math.min(cores, byMemory));
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		mJournal = new BatchJournal(new File(getFilesDir(), JOURNAL_NAME));
+		try {
+			mJournal.load();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read the batch journal", e);
+		}
+
+		mExporter = new FadeExporter(getContentResolver(), FadeExporter.DEFAULT_SIZE);
+
+		int workers = calculateWorkerCount(Runtime.getRuntime().maxMemory(),
+				Runtime.getRuntime().availableProcessors());
+		mExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+
+		File pictures = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+		mOutputDirectory = new File(pictures != null ? pictures : getFilesDir(),
+				OUTPUT_DIRECTORY);
+
+		Log.i(TAG, "Fading with " + workers + " workers");
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		mLastStartId = startId;
+
+		if (intent != null) {
+			ArrayList<Parcelable> uris = intent.getParcelableArrayListExtra(EXTRA_URIS);
+
+			if (uris != null && !uris.isEmpty()) {
+				List<String> strings = new ArrayList<String>(uris.size());
+				for (Parcelable uri : uris) {
+					strings.add(uri.toString());
+				}
+
+				try {
+					// A redelivered batch is only added once.
+					mJournal.add(intent.getStringExtra(EXTRA_BATCH), strings,
+							intent.getFloatExtra(EXTRA_FADE, FadeRenderer.DEFAULT_FADE),
+							intent.getBooleanExtra(EXTRA_LINEAR, false),
+							intent.getIntExtra(EXTRA_MASK, FadeMask.TYPE_NONE),
+							intent.getBooleanExtra(EXTRA_RENDITIONS, false));
+				} catch (IOException e) {
+					Log.e(TAG, "Could not record the batch", e);
+				}
+			}
+		}
+
+		// Also picks up anything left over from a killed process.
+		List<BatchJournal.Job> pending = mJournal.getPending();
+
+		if (pending.isEmpty()) {
+			stopSelfResult(startId);
+			return START_NOT_STICKY;
+		}
+
+		synchronized (this) {
+			if (mQueued.isEmpty()) {
+				mBatchStartNanos = System.nanoTime();
+				mBatchPixels = 0;
+				mBatchImages = 0;
+			}
+
+			for (final BatchJournal.Job job : pending) {
+				if (mQueued.add(job.id)) {
+					mExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							process(job);
+						}
+					});
+				}
+			}
+		}
+
+		// Restart after the process is killed with the same intents, so the journal is picked up
+		// again and the read permissions are granted again.
+		return START_REDELIVER_INTENT;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		mExecutor.shutdownNow();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	/**
+	 * Fades one image and records the result. Runs on a worker thread.
+	 */
+	private void process(BatchJournal.Job job) {
+		long start = System.nanoTime();
+		long pixels = 0;
+		boolean success = false;
+
+		try {
+			if (!mOutputDirectory.isDirectory() && !mOutputDirectory.mkdirs()) {
+				throw new IOException("Could not create " + mOutputDirectory);
+			}
+
+			FadeKernel kernel = new FadeKernel(job.fade, job.linear);
+			byte[] mask = FadeMask.create(job.mask);
+
+			if (job.renditions) {
+				File[] destinations = new File[RENDITION_SIZES.length];
+				for (int i = 0; i < destinations.length; i++) {
+					destinations[i] = new File(mOutputDirectory,
+							"faded_" + job.id + RENDITION_SUFFIXES[i] + ".jpg");
+				}
+
+				pixels = mExporter.exportRenditions(Uri.parse(job.uri), destinations,
+						RENDITION_SIZES, kernel, mask);
+			} else {
+				File destination = new File(mOutputDirectory, "faded_" + job.id + ".jpg");
+				pixels = mExporter.export(Uri.parse(job.uri), destination, kernel, mask);
+			}
+			success = true;
+		} catch (IOException e) {
+			Log.e(TAG, "Could not fade " + job.uri, e);
+		} catch (SecurityException e) {
+			// The read permission for the uri does not survive every restart.
+			Log.e(TAG, "No longer allowed to read " + job.uri, e);
+		} catch (OutOfMemoryError e) {
+			Log.e(TAG, "Not enough memory to fade " + job.uri, e);
+		} catch (RuntimeException e) {
+			// Such as a malformed image the decoder does not expect, which must still complete.
+			Log.e(TAG, "Failed to fade " + job.uri, e);
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		try {
+			mJournal.complete(job.id, success);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not record the completion of " + job.uri, e);
+		}
+
+		if (success) {
+			Log.i(TAG, String.format("Faded %s in %d ms, %.1f megapixels/s", job.uri,
+					TimeUnit.NANOSECONDS.toMillis(elapsed), pixels * 1e3 / elapsed));
+		}
+
+		synchronized (this) {
+			mBatchPixels += pixels;
+			mBatchImages += success ? 1 : 0;
+
+			mQueued.remove(job.id);
+			if (mQueued.isEmpty()) {
+				finishBatch();
+			}
+		}
+	}
+
+	/**
+	 * Reports the aggregate throughput and stops the service. Runs on a worker thread, while
+	 * holding the lock on this service.
+	 */
+	private void finishBatch() {
+		long elapsed = System.nanoTime() - mBatchStartNanos;
+
+		Log.i(TAG, String.format("Batch finished: %d images (%d failed overall) in %d ms, "
+						+ "%.2f images/s, %.1f megapixels/s",
+				mBatchImages, mJournal.getFailedCount(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+				mBatchImages * 1e9 / elapsed, mBatchPixels * 1e3 / elapsed));
+
+		stopSelfResult(mLastStartId);
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.graphics.Bitmap;
+
+/**
+ * Writes {@link Strip}s into a mutable {@link Bitmap} the size of the image.
+ */
+public class BitmapStripSink extends StripSink {
+
+	private final Bitmap mBitmap;
+
+	/**
+	 * @param bitmap a mutable bitmap the size of the image
+	 * @param window the number of strips to keep requested
+	 */
+	public BitmapStripSink(Bitmap bitmap, int window) {
+		super(window);
+		mBitmap = bitmap;
+	}
+
+	@Override
+	protected void write(Strip strip) {
+		int width = strip.getWidth();
+		mBitmap.setPixels(strip.getPixels(), 0, width, 0, strip.getTop(), width, strip.getRows());
+	}
+}
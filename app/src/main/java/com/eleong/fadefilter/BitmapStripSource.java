@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.graphics.Bitmap;
+
+/**
+ * Publishes the rows of a decoded {@link Bitmap}.
+ */
+public class BitmapStripSource extends StripSource {
+
+	private final Bitmap mBitmap;
+
+	/**
+	 * @param bitmap    the bitmap to read, which must not be recycled until the stream ends
+	 * @param stripRows the number of rows in each strip
+	 * @param maxStrips the number of strips that may be in flight at once
+	 */
+	public BitmapStripSource(Bitmap bitmap, int stripRows, int maxStrips) {
+		super(bitmap.getWidth(), bitmap.getHeight(), stripRows, maxStrips);
+		mBitmap = bitmap;
+	}
+
+	@Override
+	protected void read(Strip strip) {
+		int width = strip.getWidth();
+		mBitmap.getPixels(strip.getPixels(), 0, width, 0, strip.getTop(), width, strip.getRows());
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Plans a decode that produces a bitmap of exactly the size needed, instead of the up to 4x larger
+ * bitmap left by a power of two sample size alone.
+ * <p/>
+ * The decoder first subsamples by the largest power of two that keeps enough pixels, which is
+ * nearly free for a JPEG, then scales the rest of the way in the same decode. The scale is
+ * expressed as a density ratio, which is how {@link android.graphics.BitmapFactory} scales while
+ * decoding.
+ * <p/>
+ * This class has no Android dependencies, so the arithmetic can be checked anywhere.
+ */
+public class DecodePlan {
+
+	/**
+	 * The width and height of the encoded image.
+	 */
+	private final int mWidth;
+	private final int mHeight;
+	/**
+	 * The power of two to subsample by while decoding.
+	 */
+	private final int mSampleSize;
+	/**
+	 * The width and height of the image after subsampling, before scaling.
+	 */
+	private final int mSampledWidth;
+	private final int mSampledHeight;
+	/**
+	 * The width and height of the decoded bitmap.
+	 */
+	private final int mTargetWidth;
+	private final int mTargetHeight;
+	/**
+	 * The size of a decoded pixel, in bytes.
+	 */
+	private final int mBytesPerPixel;
+
+	private DecodePlan(int width, int height, int sampleSize, int targetWidth, int bytesPerPixel) {
+		mWidth = width;
+		mHeight = height;
+		mSampleSize = sampleSize;
+		mSampledWidth = getSampledSize(width, sampleSize);
+		mSampledHeight = getSampledSize(height, sampleSize);
+		mTargetWidth = targetWidth;
+		// The decoder scales both dimensions by the same ratio, and rounds.
+		float scale = (float) targetWidth / mSampledWidth;
+		mTargetHeight = Math.max(1, (int) (mSampledHeight * scale + 0.5f));
+		mBytesPerPixel = bytesPerPixel;
+	}
+
+	/**
+	 * Plans the decode of an image so that it covers the requested size, without exceeding the
+	 * maximum texture size or the memory budget. Images are never scaled up.
+	 *
+	 * @param width         the width of the encoded image
+	 * @param height        the height of the encoded image
+	 * @param reqWidth      the minimum width of the decoded bitmap
+	 * @param reqHeight     the minimum height of the decoded bitmap
+	 * @param maxSize       the maximum width or height of the decoded bitmap
+	 * @param bytesPerPixel the size of a decoded pixel, in bytes
+	 * @param budget        the maximum size of the decoded bitmap, in bytes
+	 * @return the plan
+	 */
+	public static DecodePlan create(int width, int height, int reqWidth, int reqHeight,
+	                                int maxSize, int bytesPerPixel, long budget) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+		}
+
+		// The smallest scale that covers the requested size in both dimensions.
+		double scale = Math.max((double) reqWidth / width, (double) reqHeight / height);
+		scale = Math.min(scale, 1.0);
+
+		// Then shrink to fit the texture and the budget, whichever is tighter.
+		scale = Math.min(scale, (double) maxSize / Math.max(width, height));
+		scale = Math.min(scale, Math.sqrt((double) budget / bytesPerPixel / width / height));
+
+		int targetWidth = Math.max(1, (int) Math.floor(width * scale));
+
+		// The largest power of two that still leaves at least as many pixels as the target. The
+		// sampled size rounds up, so it never drops below the target of a tiny request and the
+		// sample size is bounded by the image instead.
+		int sampleSize = 1;
+		while (sampleSize * 2 <= Math.max(width, height)
+				&& getSampledSize(width, sampleSize * 2) >= targetWidth
+				&& (long) getSampledSize(height, sampleSize * 2) * width
+				>= (long) targetWidth * height) {
+			sampleSize *= 2;
+		}
+
+		return new DecodePlan(width, height, sampleSize, targetWidth, bytesPerPixel);
+	}
+
+	/**
+	 * @param size       the width or height of the encoded image
+	 * @param sampleSize the power of two to subsample by
+	 * @return the width or height after subsampling, rounded up as the JPEG decoder does
+	 */
+	public static int getSampledSize(int size, int sampleSize) {
+		return (size + sampleSize - 1) / sampleSize;
+	}
+
+	/**
+	 * @return the value of {@link android.graphics.BitmapFactory.Options#inSampleSize}
+	 */
+	public int getSampleSize() {
+		return mSampleSize;
+	}
+
+	/**
+	 * @return whether or not the decoder needs to scale after subsampling
+	 */
+	public boolean isScaled() {
+		return mTargetWidth != mSampledWidth;
+	}
+
+	/**
+	 * @return the value of {@link android.graphics.BitmapFactory.Options#inDensity}, which
+	 * together with {@link #getTargetDensity()} gives the scale after subsampling
+	 */
+	public int getDensity() {
+		return mSampledWidth;
+	}
+
+	/**
+	 * @return the value of {@link android.graphics.BitmapFactory.Options#inTargetDensity}
+	 */
+	public int getTargetDensity() {
+		return mTargetWidth;
+	}
+
+	/**
+	 * @return the width of the encoded image
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the height of the encoded image
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return the width of the image after subsampling, before scaling
+	 */
+	public int getSampledWidth() {
+		return mSampledWidth;
+	}
+
+	/**
+	 * @return the height of the image after subsampling, before scaling
+	 */
+	public int getSampledHeight() {
+		return mSampledHeight;
+	}
+
+	/**
+	 * @return the planned width of the decoded bitmap
+	 */
+	public int getTargetWidth() {
+		return mTargetWidth;
+	}
+
+	/**
+	 * @return the planned height of the decoded bitmap
+	 */
+	public int getTargetHeight() {
+		return mTargetHeight;
+	}
+
+	/**
+	 * @return the planned size of the decoded bitmap, in bytes
+	 */
+	public long getTargetBytes() {
+		return (long) mTargetWidth * mTargetHeight * mBytesPerPixel;
+	}
+
+	/**
+	 * @return the most memory held during the decode, in bytes. A scaled decode holds the
+	 * subsampled pixels and the scaled bitmap at the same time.
+	 */
+	public long getPeakBytes() {
+		long peak = getTargetBytes();
+
+		if (isScaled()) {
+			peak += (long) mSampledWidth * mSampledHeight * mBytesPerPixel;
+		}
+
+		return peak;
+	}
+
+	@Override
+	public String toString() {
+		return mWidth + "x" + mHeight + " / " + mSampleSize + " -> " + mSampledWidth + "x"
+				+ mSampledHeight + " -> " + mTargetWidth + "x" + mTargetHeight + ", "
+				+ getTargetBytes() + " bytes (peak " + getPeakBytes() + ")";
+	}
+}
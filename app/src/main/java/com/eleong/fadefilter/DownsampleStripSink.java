@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Shrinks {@link Strip}s with an {@link AreaDownsampler} as they arrive and hands the finished
+ * rows to a {@link Target}, so neither the image nor any full-size copy of it is held. Only one
+ * strip's worth of finished rows is buffered.
+ */
+public class DownsampleStripSink extends StripSink {
+
+	/**
+	 * Receives the shrunk image, a band of rows at a time, from the top down.
+	 */
+	public interface Target {
+		/**
+		 * @param pixels the rows, one after another with a stride of the shrunk width
+		 * @param top    the row of the shrunk image that the band starts at
+		 * @param rows   the number of rows in the band
+		 */
+		void setRows(int[] pixels, int top, int rows);
+	}
+
+	private final AreaDownsampler mDownsampler;
+	private final Target mTarget;
+	private int[] mRows;
+	private int mTop;
+
+	/**
+	 * @param sourceWidth  the width of the strips, in pixels
+	 * @param sourceHeight the height of the image the strips cover, in pixels
+	 * @param width        the width to shrink to, no larger than the source
+	 * @param height       the height to shrink to, no larger than the source
+	 * @param window       the number of strips to keep requested
+	 * @param target       receives the shrunk rows
+	 */
+	public DownsampleStripSink(int sourceWidth, int sourceHeight, int width, int height,
+	                           int window, Target target) {
+		super(window);
+		mDownsampler = new AreaDownsampler(sourceWidth, sourceHeight, width, height);
+		mTarget = target;
+	}
+
+	@Override
+	protected void write(Strip strip) {
+		final int width = mDownsampler.getWidth();
+		final int sourceWidth = strip.getWidth();
+		final int[] pixels = strip.getPixels();
+		int count = 0;
+
+		if (mRows == null) {
+			// Each source row completes at most one row, so a strip's worth is always enough.
+			mRows = new int[width * (pixels.length / sourceWidth)];
+		}
+
+		Tracer.begin("downsample strip");
+		try {
+			for (int i = 0; i < strip.getRows(); i++) {
+				if (mDownsampler.addRow(pixels, i * sourceWidth, mRows, count * width)) {
+					count++;
+				}
+			}
+		} finally {
+			Tracer.end();
+		}
+
+		if (count > 0) {
+			mTarget.setRows(mRows, mTop, count);
+			mTop += count;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A disk cache of ETC1 compressed textures, so that an image that has been viewed before can be
+ * transferred straight to the GPU without being decoded. Files are stored in the PKM format used
+ * by {@link android.opengl.ETC1Util}.
+ * <p/>
+ * Encoding happens on a single background thread shared by every cache, so that writes and trims
+ * never race, and the least recently used files are removed once the cache grows past its maximum
+ * size.
+ */
+public class Etc1Cache {
+
+	private static final String TAG = Etc1Cache.class.getSimpleName();
+
+	/**
+	 * The magic number at the start of every PKM file.
+	 */
+	private static final byte[] PKM_MAGIC = {'P', 'K', 'M', ' ', '1', '0'};
+	/**
+	 * The PKM format for ETC1 without mipmaps.
+	 */
+	private static final int PKM_FORMAT_ETC1 = 0;
+
+	private static final String EXTENSION = ".pkm";
+
+	/**
+	 * How long the idle encoding thread is kept, in seconds.
+	 */
+	private static final int KEEP_ALIVE_SECONDS = 10;
+
+	/**
+	 * Encodes textures in the background.
+	 */
+	private static ThreadPoolExecutor sExecutor;
+
+	/**
+	 * The directory that holds the cached textures.
+	 */
+	private final File mDirectory;
+	/**
+	 * The maximum total size of the cached textures, in bytes.
+	 */
+	private final long mMaxSize;
+
+	/**
+	 * @param directory the directory that holds the cached textures
+	 * @param maxSize   the maximum total size of the cached textures, in bytes
+	 */
+	public Etc1Cache(File directory, long maxSize) {
+		mDirectory = directory;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Creates a cache key from the content of an image and the size it is loaded at, so that the
+	 * same image opened from a different uri still hits the cache.
+	 *
+	 * @param data    holds the encoded image
+	 * @param length  the length of the encoded image
+	 * @param reqSize the size that the image was loaded at
+	 * @return the cache key
+	 */
+	public static String createKey(byte[] data, int length, int reqSize) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		digest.update(data, 0, length);
+
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16));
+			key.append(Character.forDigit(b & 0xF, 16));
+		}
+		key.append('_').append(reqSize);
+
+		return key.toString();
+	}
+
+	/**
+	 * @param key the cache key
+	 * @return the cached texture, or null if there is none
+	 */
+	public TextureImage get(String key) {
+		File file = getFile(key);
+
+		if (!file.exists()) {
+			return null;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+
+			byte[] magic = new byte[PKM_MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, PKM_MAGIC) || in.readUnsignedShort() != PKM_FORMAT_ETC1) {
+				Log.w(TAG, "Not an ETC1 texture: " + file);
+				file.delete();
+				return null;
+			}
+
+			// Skip the padded dimensions.
+			in.readUnsignedShort();
+			in.readUnsignedShort();
+
+			int width = in.readUnsignedShort();
+			int height = in.readUnsignedShort();
+
+			byte[] data = new byte[Etc1Codec.getEncodedSize(width, height)];
+			in.readFully(data);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+			buffer.put(data);
+			buffer.position(0);
+
+			// Mark as recently used.
+			file.setLastModified(System.currentTimeMillis());
+
+			return TextureImage.fromEtc1(buffer, width, height);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read cached texture: " + file, e);
+			file.delete();
+		} finally {
+			closeQuietly(in);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Compresses a bitmap and stores it in the cache, on a background thread.
+	 *
+	 * @param key     the cache key
+	 * @param bitmap  the bitmap to compress
+	 * @param recycle whether or not to recycle the bitmap once it has been compressed
+	 */
+	public void putAsync(final String key, final Bitmap bitmap, final boolean recycle) {
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					put(key, bitmap);
+				} catch (IOException e) {
+					Log.w(TAG, "Could not cache texture " + key, e);
+				} finally {
+					if (recycle) {
+						bitmap.recycle();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Compresses a bitmap and stores it in the cache, four rows at a time.
+	 *
+	 * @param key    the cache key
+	 * @param bitmap the bitmap to compress
+	 * @throws IOException if the texture could not be written
+	 */
+	public void put(String key, Bitmap bitmap) throws IOException {
+		final int width = bitmap.getWidth();
+		final int height = bitmap.getHeight();
+
+		byte[] data = new byte[Etc1Codec.getEncodedSize(width, height)];
+		int blockRowSize = ((width + 3) / 4) * Etc1Codec.BLOCK_SIZE;
+		int[] rows = new int[width * 4];
+
+		for (int y = 0; y < height; y += 4) {
+			int count = Math.min(4, height - y);
+			bitmap.getPixels(rows, 0, width, 0, y, width, count);
+
+			Etc1Codec.encodeBlockRow(rows, width, width, count, data, (y / 4) * blockRowSize);
+		}
+
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			throw new IOException("Could not create " + mDirectory);
+		}
+
+		// Write to a temporary file first, so that a partial file is never read.
+		File file = getFile(key);
+		File temp = new File(mDirectory, key + ".tmp");
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(temp));
+			out.write(PKM_MAGIC);
+			out.writeShort(PKM_FORMAT_ETC1);
+			out.writeShort((width + 3) & ~3);
+			out.writeShort((height + 3) & ~3);
+			out.writeShort(width);
+			out.writeShort(height);
+			out.write(data);
+		} finally {
+			closeQuietly(out);
+		}
+
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Could not rename " + temp);
+		}
+
+		trim();
+	}
+
+	/**
+	 * Removes the least recently used textures until the cache fits in its maximum size.
+	 */
+	private void trim() {
+		File[] files = mDirectory.listFiles();
+
+		if (files == null) {
+			return;
+		}
+
+		long size = 0;
+		for (File file : files) {
+			size += file.length();
+		}
+
+		if (size <= mMaxSize) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long left = lhs.lastModified();
+				long right = rhs.lastModified();
+				return left < right ? -1 : (left == right ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < files.length && size > mMaxSize; i++) {
+			long length = files[i].length();
+
+			if (files[i].delete()) {
+				size -= length;
+			}
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>());
+			sExecutor.allowCoreThreadTimeOut(true);
+		}
+
+		return sExecutor;
+	}
+
+	private File getFile(String key) {
+		return new File(mDirectory, key + EXTENSION);
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// Ignore.
+			}
+		}
+	}
+}
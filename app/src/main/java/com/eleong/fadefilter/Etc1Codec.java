@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * A pure Java ETC1 encoder and decoder.
+ * <p/>
+ * Each 4x4 block of pixels is stored in 8 bytes as two sub-blocks, either side by side or
+ * stacked, each with a base color and a table of luminance modifiers. Every pixel picks one of the
+ * four modifiers of its sub-block. The base colors are stored either individually (4 bits per
+ * channel) or differentially (5 bits per channel, plus a 3 bit offset for the second color).
+ * <p/>
+ * https://www.khronos.org/registry/gles/extensions/OES/OES_compressed_ETC1_RGB8_texture.txt
+ */
+public class Etc1Codec {
+
+	/**
+	 * The size of an encoded block, in bytes.
+	 */
+	public static final int BLOCK_SIZE = 8;
+
+	/**
+	 * The luminance modifiers, indexed by table codeword. Each row holds the small and large
+	 * modifiers, which are also used negated.
+	 */
+	private static final int[][] MODIFIER_TABLE = {
+			{2, 8},
+			{5, 17},
+			{9, 29},
+			{13, 42},
+			{18, 60},
+			{24, 80},
+			{33, 106},
+			{47, 183}
+	};
+
+	/**
+	 * Maps a pixel index to the modifier it selects: 0 is the small positive modifier, 1 is the
+	 * large positive modifier, 2 is the small negative modifier and 3 is the large negative one.
+	 */
+	private static final int[] INDEX_SIGN = {1, 1, -1, -1};
+	private static final int[] INDEX_MAGNITUDE = {0, 1, 0, 1};
+
+	private Etc1Codec() {
+	}     // do not instantiate
+
+	/**
+	 * @param width  the width of the image, in pixels
+	 * @param height the height of the image, in pixels
+	 * @return the number of bytes needed to encode the image
+	 */
+	public static int getEncodedSize(int width, int height) {
+		return ((width + 3) / 4) * ((height + 3) / 4) * BLOCK_SIZE;
+	}
+
+	/**
+	 * Encodes up to four rows of pixels, which make up one row of blocks. Pixels outside the
+	 * image are filled in by repeating the last row and column.
+	 *
+	 * @param argb   the pixels, in the format used by {@link android.graphics.Bitmap#getPixels}
+	 * @param stride the number of pixels between the start of each row in argb
+	 * @param width  the width of the image, in pixels
+	 * @param rows   the number of rows in argb, from 1 to 4
+	 * @param out    the destination for the encoded blocks
+	 * @param offset the index in out of the first block in the row
+	 */
+	public static void encodeBlockRow(int[] argb, int stride, int width, int rows, byte[] out,
+	                                  int offset) {
+		int[] block = new int[16];
+
+		for (int bx = 0; bx < width; bx += 4) {
+			for (int y = 0; y < 4; y++) {
+				int row = Math.min(y, rows - 1) * stride;
+
+				for (int x = 0; x < 4; x++) {
+					block[y * 4 + x] = argb[row + Math.min(bx + x, width - 1)];
+				}
+			}
+
+			writeLong(out, offset, encodeBlock(block));
+			offset += BLOCK_SIZE;
+		}
+	}
+
+	/**
+	 * Encodes an entire image.
+	 *
+	 * @param argb   the pixels, in the format used by {@link android.graphics.Bitmap#getPixels}
+	 * @param width  the width of the image, in pixels
+	 * @param height the height of the image, in pixels
+	 * @return the encoded blocks, from left to right and top to bottom
+	 */
+	public static byte[] encode(int[] argb, int width, int height) {
+		byte[] out = new byte[getEncodedSize(width, height)];
+		int blockRowSize = ((width + 3) / 4) * BLOCK_SIZE;
+		int[] rows = new int[width * 4];
+
+		for (int y = 0; y < height; y += 4) {
+			int count = Math.min(4, height - y);
+			System.arraycopy(argb, y * width, rows, 0, count * width);
+
+			encodeBlockRow(rows, width, width, count, out, (y / 4) * blockRowSize);
+		}
+
+		return out;
+	}
+
+	/**
+	 * Decodes an entire image.
+	 *
+	 * @param data   the encoded blocks, from left to right and top to bottom
+	 * @param offset the index of the first block in data
+	 * @param width  the width of the image, in pixels
+	 * @param height the height of the image, in pixels
+	 * @return opaque ARGB pixels
+	 */
+	public static int[] decode(byte[] data, int offset, int width, int height) {
+		int[] argb = new int[width * height];
+		int[] block = new int[16];
+
+		for (int by = 0; by < height; by += 4) {
+			for (int bx = 0; bx < width; bx += 4) {
+				decodeBlock(readLong(data, offset), block);
+				offset += BLOCK_SIZE;
+
+				for (int y = 0; y < 4 && by + y < height; y++) {
+					for (int x = 0; x < 4 && bx + x < width; x++) {
+						argb[(by + y) * width + bx + x] = block[y * 4 + x];
+					}
+				}
+			}
+		}
+
+		return argb;
+	}
+
+	/**
+	 * Decodes a single block.
+	 *
+	 * @param bits  the 64 bits of the block
+	 * @param block the destination for the 16 opaque ARGB pixels, in row major order
+	 */
+	public static void decodeBlock(long bits, int[] block) {
+		int high = (int) (bits >>> 32);
+		int low = (int) bits;
+
+		boolean diff = (high & 0x2) != 0;
+		boolean flip = (high & 0x1) != 0;
+
+		int[] base1 = new int[3];
+		int[] base2 = new int[3];
+
+		for (int c = 0; c < 3; c++) {
+			int shift = 24 - c * 8;
+
+			if (diff) {
+				int value = (high >>> (shift + 3)) & 0x1F;
+				int delta = ((high >>> shift) & 0x7) << 29 >> 29;
+
+				base1[c] = expand5(value);
+				base2[c] = expand5(value + delta);
+			} else {
+				base1[c] = expand4((high >>> (shift + 4)) & 0xF);
+				base2[c] = expand4((high >>> shift) & 0xF);
+			}
+		}
+
+		int[] table1 = MODIFIER_TABLE[(high >>> 5) & 0x7];
+		int[] table2 = MODIFIER_TABLE[(high >>> 2) & 0x7];
+
+		for (int y = 0; y < 4; y++) {
+			for (int x = 0; x < 4; x++) {
+				boolean second = flip ? y >= 2 : x >= 2;
+				int[] base = second ? base2 : base1;
+				int[] table = second ? table2 : table1;
+
+				int bit = x * 4 + y;
+				int index = (((low >>> (bit + 16)) & 1) << 1) | ((low >>> bit) & 1);
+				int modifier = INDEX_SIGN[index] * table[INDEX_MAGNITUDE[index]];
+
+				block[y * 4 + x] = 0xFF000000
+						| (clamp(base[0] + modifier) << 16)
+						| (clamp(base[1] + modifier) << 8)
+						| clamp(base[2] + modifier);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a single block, trying both sub-block orientations and both ways of storing the
+	 * base colors, and keeping whichever has the smallest error.
+	 *
+	 * @param block 16 ARGB pixels, in row major order
+	 * @return the 64 bits of the block
+	 */
+	public static long encodeBlock(int[] block) {
+		long best = 0;
+		long bestError = Long.MAX_VALUE;
+
+		int[] average1 = new int[3];
+		int[] average2 = new int[3];
+		int[] result = new int[2];
+
+		for (int flip = 0; flip < 2; flip++) {
+			averageSubBlock(block, flip != 0, false, average1);
+			averageSubBlock(block, flip != 0, true, average2);
+
+			for (int diff = 0; diff < 2; diff++) {
+				int[] base1 = new int[3];
+				int[] base2 = new int[3];
+				int high = (diff << 1) | flip;
+				boolean valid = true;
+
+				for (int c = 0; c < 3; c++) {
+					int shift = 24 - c * 8;
+
+					if (diff != 0) {
+						int value1 = (average1[c] * 31 + 127) / 255;
+						int value2 = (average2[c] * 31 + 127) / 255;
+						int delta = value2 - value1;
+
+						if (delta < -4 || delta > 3) {
+							valid = false;
+							break;
+						}
+
+						base1[c] = expand5(value1);
+						base2[c] = expand5(value2);
+						high |= (value1 << (shift + 3)) | ((delta & 0x7) << shift);
+					} else {
+						int value1 = (average1[c] * 15 + 127) / 255;
+						int value2 = (average2[c] * 15 + 127) / 255;
+
+						base1[c] = expand4(value1);
+						base2[c] = expand4(value2);
+						high |= (value1 << (shift + 4)) | (value2 << shift);
+					}
+				}
+
+				if (!valid) {
+					continue;
+				}
+
+				long error = 0;
+				int low = 0;
+
+				for (int s = 0; s < 2; s++) {
+					int table = chooseTable(block, flip != 0, s != 0, s == 0 ? base1 : base2, result);
+
+					error += result[0];
+					low |= result[1];
+					high |= table << (s == 0 ? 5 : 2);
+				}
+
+				if (error < bestError) {
+					bestError = error;
+					best = ((long) high << 32) | (low & 0xFFFFFFFFL);
+				}
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Picks the modifier table that best fits a sub-block, and the best modifier for each pixel.
+	 *
+	 * @param block  16 ARGB pixels, in row major order
+	 * @param flip   whether the sub-blocks are stacked instead of side by side
+	 * @param second whether this is the second sub-block
+	 * @param base   the expanded base color of the sub-block
+	 * @param result receives the error and the pixel index bits of the best table
+	 * @return the codeword of the best table
+	 */
+	private static int chooseTable(int[] block, boolean flip, boolean second, int[] base,
+	                               int[] result) {
+		int bestTable = 0;
+		int bestError = Integer.MAX_VALUE;
+		int bestBits = 0;
+
+		for (int t = 0; t < MODIFIER_TABLE.length; t++) {
+			int[] table = MODIFIER_TABLE[t];
+			int error = 0;
+			int bits = 0;
+
+			for (int y = 0; y < 4; y++) {
+				for (int x = 0; x < 4; x++) {
+					if ((flip ? y >= 2 : x >= 2) != second) {
+						continue;
+					}
+
+					int color = block[y * 4 + x];
+					int bestPixelError = Integer.MAX_VALUE;
+					int bestIndex = 0;
+
+					for (int index = 0; index < 4; index++) {
+						int modifier = INDEX_SIGN[index] * table[INDEX_MAGNITUDE[index]];
+						int pixelError = distance(color, base, modifier);
+
+						if (pixelError < bestPixelError) {
+							bestPixelError = pixelError;
+							bestIndex = index;
+						}
+					}
+
+					int bit = x * 4 + y;
+					bits |= ((bestIndex >> 1) << (bit + 16)) | ((bestIndex & 1) << bit);
+					error += bestPixelError;
+				}
+			}
+
+			if (error < bestError) {
+				bestError = error;
+				bestTable = t;
+				bestBits = bits;
+			}
+		}
+
+		result[0] = bestError;
+		result[1] = bestBits;
+		return bestTable;
+	}
+
+	/**
+	 * @return the squared distance between a pixel and a modified base color
+	 */
+	private static int distance(int color, int[] base, int modifier) {
+		int dr = ((color >> 16) & 0xFF) - clamp(base[0] + modifier);
+		int dg = ((color >> 8) & 0xFF) - clamp(base[1] + modifier);
+		int db = (color & 0xFF) - clamp(base[2] + modifier);
+
+		return dr * dr + dg * dg + db * db;
+	}
+
+	private static void averageSubBlock(int[] block, boolean flip, boolean second, int[] average) {
+		int r = 0;
+		int g = 0;
+		int b = 0;
+
+		for (int y = 0; y < 4; y++) {
+			for (int x = 0; x < 4; x++) {
+				if ((flip ? y >= 2 : x >= 2) == second) {
+					int color = block[y * 4 + x];
+					r += (color >> 16) & 0xFF;
+					g += (color >> 8) & 0xFF;
+					b += color & 0xFF;
+				}
+			}
+		}
+
+		// Each sub-block has 8 pixels.
+		average[0] = (r + 4) >> 3;
+		average[1] = (g + 4) >> 3;
+		average[2] = (b + 4) >> 3;
+	}
+
+	private static int expand4(int value) {
+		return (value << 4) | value;
+	}
+
+	private static int expand5(int value) {
+		return (value << 3) | (value >> 2);
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : (value > 255 ? 255 : value);
+	}
+
+	private static long readLong(byte[] data, int offset) {
+		long value = 0;
+
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+
+		return value;
+	}
+
+	private static void writeLong(byte[] data, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			data[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
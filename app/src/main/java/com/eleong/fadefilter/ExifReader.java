@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Reads the orientation tag from the EXIF segment of a JPEG, without decoding the image.
+ * <p/>
+ * Only the first image file directory of the EXIF data is parsed, so this is cheap enough to do
+ * every time an image is opened. {@link JpegHeader} finds the segment.
+ */
+public class ExifReader {
+
+	public static final int ORIENTATION_NORMAL = 1;
+	public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+	public static final int ORIENTATION_ROTATE_180 = 3;
+	public static final int ORIENTATION_FLIP_VERTICAL = 4;
+	public static final int ORIENTATION_TRANSPOSE = 5;
+	public static final int ORIENTATION_ROTATE_90 = 6;
+	public static final int ORIENTATION_TRANSVERSE = 7;
+	public static final int ORIENTATION_ROTATE_270 = 8;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TYPE_SHORT = 3;
+
+	private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+	private ExifReader() {
+	}     // do not instantiate
+
+	/**
+	 * @param orientation an EXIF orientation
+	 * @return whether or not the width and height of the image are swapped when displayed
+	 */
+	public static boolean isTransposed(int orientation) {
+		return orientation >= ORIENTATION_TRANSPOSE && orientation <= ORIENTATION_ROTATE_270;
+	}
+
+	/**
+	 * Finds the orientation in the contents of an APP1 segment.
+	 *
+	 * @param data   holds the segment, without the marker and length
+	 * @param offset the index of the segment in data
+	 * @param length the length of the segment
+	 * @return the orientation, or 0 if the segment is not EXIF or has no orientation
+	 */
+	public static int parseOrientation(byte[] data, int offset, int length) {
+		if (length < EXIF_HEADER.length + 8) {
+			return 0;
+		}
+
+		for (int i = 0; i < EXIF_HEADER.length; i++) {
+			if (data[offset + i] != EXIF_HEADER[i]) {
+				return 0;
+			}
+		}
+
+		// Offsets in the TIFF structure are relative to its header.
+		final int tiff = offset + EXIF_HEADER.length;
+		final int end = offset + length;
+
+		boolean littleEndian;
+		if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+			littleEndian = true;
+		} else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+			littleEndian = false;
+		} else {
+			return 0;
+		}
+
+		if (readShort(data, tiff + 2, littleEndian) != 42) {
+			return 0;
+		}
+
+		long ifdOffset = readInt(data, tiff + 4, littleEndian) & 0xFFFFFFFFL;
+		if (ifdOffset < 8 || tiff + ifdOffset + 2 > end) {
+			return 0;
+		}
+
+		int ifd = tiff + (int) ifdOffset;
+		int count = readShort(data, ifd, littleEndian);
+
+		for (int i = 0; i < count; i++) {
+			int entry = ifd + 2 + i * 12;
+
+			if (entry + 12 > end) {
+				return 0;
+			}
+
+			if (readShort(data, entry, littleEndian) == TAG_ORIENTATION) {
+				if (readShort(data, entry + 2, littleEndian) != TYPE_SHORT) {
+					return 0;
+				}
+
+				int orientation = readShort(data, entry + 8, littleEndian);
+				if (orientation < ORIENTATION_NORMAL || orientation > ORIENTATION_ROTATE_270) {
+					return 0;
+				}
+
+				return orientation;
+			}
+		}
+
+		return 0;
+	}
+
+	private static int readShort(byte[] data, int offset, boolean littleEndian) {
+		int b0 = data[offset] & 0xFF;
+		int b1 = data[offset + 1] & 0xFF;
+
+		return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private static int readInt(byte[] data, int offset, boolean littleEndian) {
+		int high = readShort(data, offset + (littleEndian ? 2 : 0), littleEndian);
+		int low = readShort(data, offset + (littleEndian ? 0 : 2), littleEndian);
+
+		return (high << 16) | low;
+	}
+}
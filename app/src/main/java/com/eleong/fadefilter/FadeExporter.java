@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fades an image on the CPU and saves it as a JPEG, without an OpenGL context. Used to export
+ * images in the background.
+ * <p/>
+ * A plain fade of a baseline JPEG is applied to the DCT coefficients by
+ * {@link JpegFadeTranscoder}, which is much faster than decoding and encoding again, loses
+ * almost nothing and keeps the full resolution. Anything else is decoded and faded pixel by
+ * pixel, a strip at a time through a {@link StripSource}. A baseline JPEG that is shrunk on the
+ * way is also decoded a strip at a time, see {@link #decodeFaded(byte[], DecodePlan, FadeKernel,
+ * byte[])}.
+ * <p/>
+ * Several sizes of the same image are made from a single decode and fade, see
+ * {@link #exportRenditions(Uri, File[], int[], FadeKernel, byte[])}.
+ */
+public class FadeExporter {
+
+	private static final String TAG = FadeExporter.class.getSimpleName();
+
+	/**
+	 * The default minimum size of an exported image, in pixels.
+	 */
+	public static final int DEFAULT_SIZE = 2048;
+	/**
+	 * The quality of the exported JPEG.
+	 */
+	public static final int JPEG_QUALITY = 95;
+
+	/**
+	 * The number of rows faded at a time, to bound the size of the scratch buffer.
+	 */
+	private static final int STRIP_ROWS = 16;
+	/**
+	 * The number of strips in flight when fading a strip at a time, see {@link StripSource}.
+	 */
+	private static final int MAX_STRIPS = 2;
+
+	/**
+	 * The widest image that memory is planned for. The shorter side is decoded at the export
+	 * size, so the longer side of a 2:1 panorama is twice that. Wider images are still bounded by
+	 * the decode budget.
+	 */
+	private static final int MAX_ASPECT_RATIO = 2;
+
+	/**
+	 * How long idle encoders are kept, in seconds.
+	 */
+	private static final int KEEP_ALIVE_SECONDS = 10;
+
+	private static ThreadPoolExecutor sEncoder;
+
+	private final ContentResolver mContentResolver;
+	/**
+	 * The minimum size of an exported image, in pixels.
+	 */
+	private final int mSize;
+
+	/**
+	 * @param contentResolver the content resolver used to read images
+	 * @param size            the minimum size of an exported image, in pixels
+	 */
+	public FadeExporter(ContentResolver contentResolver, int size) {
+		mContentResolver = contentResolver;
+		mSize = size;
+	}
+
+	/**
+	 * @param size the minimum size of an exported image, in pixels
+	 * @return an estimate of the memory needed to export one image, in bytes: the decoded bitmap
+	 * and the rotated copy that is encoded, for an image of {@link #MAX_ASPECT_RATIO}
+	 */
+	public static long estimateMemory(int size) {
+		return (long) size * size * MAX_ASPECT_RATIO * 4 * 2;
+	}
+
+	/**
+	 * Reads, fades and saves an image.
+	 *
+	 * @param source      the image to fade
+	 * @param destination where to write the faded JPEG
+	 * @param kernel      the fade to apply
+	 * @param mask        a mask laid out over the upright image that scales the fade, or null
+	 * @return the number of pixels that were faded
+	 * @throws IOException if the image could not be read, decoded or written
+	 */
+	public long export(Uri source, File destination, FadeKernel kernel, byte[] mask)
+			throws IOException {
+		byte[] data = ImageUtil.readFromUri(mContentResolver, source);
+		if (data == null) {
+			throw new IOException("Could not read " + source);
+		}
+
+		JpegHeader header = JpegHeader.parse(data, 0, data.length);
+
+		// The fade is only affine in the DCT domain when it is applied to gamma-encoded values.
+		// Transcoding keeps every pixel, so only use it when decoding would not shrink the image.
+		if (!kernel.isLinear() && mask == null && JpegFadeTranscoder.canTranscode(header)
+				&& ImageUtil.isDecodedAtFullSize(header, mSize, mSize)) {
+			try {
+				transcode(data, destination, kernel.getFade());
+				return (long) header.getWidth() * header.getHeight();
+			} catch (IOException e) {
+				Log.w(TAG, "Could not transcode " + source + ", fading the pixels instead", e);
+			}
+		}
+
+		int orientation = header != null
+				? header.getOrientation() : ExifReader.ORIENTATION_NORMAL;
+		// The pixels are faded before they are rotated, so the mask is rotated to match.
+		byte[] orientedMask = mask != null
+				? FadeMask.orient(mask, FadeMask.SIZE, orientation) : null;
+		Bitmap bitmap = null;
+
+		// A scaled decode holds the whole subsampled image, up to four times the export size, so
+		// decode a baseline JPEG a strip at a time and shrink each strip as it is faded instead.
+		if (header != null && !header.isProgressive()) {
+			DecodePlan plan = ImageUtil.planDecode(header, mSize, mSize);
+
+			if (plan.isScaled()) {
+				try {
+					bitmap = decodeFaded(data, plan, kernel, orientedMask);
+				} catch (IOException e) {
+					Log.w(TAG, "Could not decode " + source + " in strips, decoding it whole", e);
+				}
+			}
+		}
+
+		if (bitmap == null) {
+			bitmap = ImageUtil.decodeSampledBitmap(data, header, mSize, mSize, true);
+			if (bitmap == null) {
+				throw new IOException("Could not decode " + source);
+			}
+
+			apply(bitmap, kernel, orientedMask);
+		}
+
+		// Let the encoded image be collected while the pixels are processed.
+		data = null;
+
+		long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+		bitmap = orient(bitmap, orientation);
+
+		try {
+			write(bitmap, destination);
+		} finally {
+			bitmap.recycle();
+		}
+
+		return pixels;
+	}
+
+	/**
+	 * Reads and fades an image once, and saves it at several sizes. Each size is shrunk from the
+	 * one before it with {@link AreaDownsampler}. Every size is submitted for encoding as soon as
+	 * it exists, so neighbouring sizes encode in parallel while the next one is made, and the
+	 * whole set costs little more than the largest size alone. A size is recycled once it has
+	 * been encoded and the next size has been made from it, so no more than two sizes are held at
+	 * once, which stays within {@link #estimateMemory(int)}.
+	 *
+	 * @param source       the image to fade
+	 * @param destinations where to write each size
+	 * @param sizes        the minimum size of each rendition, in pixels, largest first
+	 * @param kernel       the fade to apply
+	 * @param mask         a mask laid out over the upright image that scales the fade, or null
+	 * @return the number of pixels that were faded
+	 * @throws IOException if the image could not be read, decoded or any size written
+	 */
+	public long exportRenditions(Uri source, File[] destinations, int[] sizes, FadeKernel kernel,
+	                             byte[] mask) throws IOException {
+		if (destinations.length != sizes.length || sizes.length == 0) {
+			throw new IllegalArgumentException("Need one destination per size");
+		}
+		for (int i = 1; i < sizes.length; i++) {
+			if (sizes[i] > sizes[i - 1]) {
+				throw new IllegalArgumentException("Sizes must be largest first");
+			}
+		}
+
+		byte[] data = ImageUtil.readFromUri(mContentResolver, source);
+		if (data == null) {
+			throw new IOException("Could not read " + source);
+		}
+
+		JpegHeader header = JpegHeader.parse(data, 0, data.length);
+
+		Bitmap bitmap = ImageUtil.decodeSampledBitmap(data, header, sizes[0], sizes[0], true);
+		if (bitmap == null) {
+			throw new IOException("Could not decode " + source);
+		}
+
+		data = null;
+
+		long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+		int orientation = header != null
+				? header.getOrientation() : ExifReader.ORIENTATION_NORMAL;
+
+		apply(bitmap, kernel, mask != null
+				? FadeMask.orient(mask, FadeMask.SIZE, orientation) : null);
+		bitmap = orient(bitmap, orientation);
+
+		// The encodes of the current bitmap. It is recycled once they have finished and the next
+		// size has been made from it, so at most two sizes are held at once.
+		List<Future<Void>> encodes = new ArrayList<Future<Void>>(sizes.length);
+		ThreadPoolExecutor encoder = getEncoder();
+		IOException error = null;
+
+		try {
+			for (int i = 0; i < sizes.length && error == null; i++) {
+				if (i > 0) {
+					Bitmap next = downsample(bitmap, sizes[i]);
+
+					if (next != bitmap) {
+						// Start on the next size before waiting, so the two encode in parallel.
+						Future<Void> encode = submitWrite(encoder, next, destinations[i]);
+
+						error = await(encodes, error);
+						encodes.clear();
+
+						bitmap.recycle();
+						bitmap = next;
+						encodes.add(encode);
+						continue;
+					}
+				}
+
+				encodes.add(submitWrite(encoder, bitmap, destinations[i]));
+			}
+		} finally {
+			// Every encode must finish before its bitmap is recycled.
+			error = await(encodes, error);
+			bitmap.recycle();
+		}
+
+		if (error != null) {
+			throw error;
+		}
+
+		return pixels;
+	}
+
+	/**
+	 * Encodes a bitmap on the encoder threads.
+	 *
+	 * @param encoder     the encoder threads
+	 * @param bitmap      the bitmap to save, which must not be recycled until the encode is done
+	 * @param destination where to write the JPEG
+	 * @return the encode
+	 */
+	private static Future<Void> submitWrite(ThreadPoolExecutor encoder, final Bitmap bitmap,
+	                                        final File destination) {
+		return encoder.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				Tracer.begin("encode");
+				try {
+					write(bitmap, destination);
+				} finally {
+					Tracer.end();
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Waits for encodes to finish.
+	 *
+	 * @param encodes the encodes to wait for
+	 * @param error   the first error so far, or null
+	 * @return the first error so far, or null
+	 */
+	private static IOException await(List<Future<Void>> encodes, IOException error) {
+		for (Future<Void> encode : encodes) {
+			try {
+				encode.get();
+			} catch (ExecutionException e) {
+				if (error == null) {
+					Throwable cause = e.getCause();
+					error = cause instanceof IOException
+							? (IOException) cause : new IOException(String.valueOf(cause));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (error == null) {
+					error = new IOException("Interrupted while encoding");
+				}
+			}
+		}
+
+		return error;
+	}
+
+	/**
+	 * Shrinks a bitmap so that its smaller side is a given size, averaging the pixels covered.
+	 *
+	 * @param bitmap the bitmap to shrink, which is left as is
+	 * @param size   the minimum size of the result, in pixels
+	 * @return a new bitmap, or the same bitmap if it is not larger than the size
+	 */
+	public static Bitmap downsample(Bitmap bitmap, int size) {
+		final int sourceWidth = bitmap.getWidth();
+		final int sourceHeight = bitmap.getHeight();
+		int shortSide = Math.min(sourceWidth, sourceHeight);
+
+		if (shortSide <= size) {
+			return bitmap;
+		}
+
+		final int width = Math.max(1, (int) ((long) sourceWidth * size / shortSide));
+		final int height = Math.max(1, (int) ((long) sourceHeight * size / shortSide));
+
+		Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		AreaDownsampler downsampler = new AreaDownsampler(sourceWidth, sourceHeight, width,
+				height);
+		int[] strip = new int[sourceWidth * STRIP_ROWS];
+		int[] rows = new int[width * STRIP_ROWS];
+		int rowCount = 0;
+		int top = 0;
+
+		Tracer.begin("downsample");
+		try {
+			for (int y = 0; y < sourceHeight; y += STRIP_ROWS) {
+				int stripRows = Math.min(STRIP_ROWS, sourceHeight - y);
+				bitmap.getPixels(strip, 0, sourceWidth, 0, y, sourceWidth, stripRows);
+
+				for (int i = 0; i < stripRows; i++) {
+					if (downsampler.addRow(strip, i * sourceWidth, rows, rowCount * width)
+							&& ++rowCount == STRIP_ROWS) {
+						result.setPixels(rows, 0, width, 0, top, width, rowCount);
+						top += rowCount;
+						rowCount = 0;
+					}
+				}
+			}
+
+			if (rowCount > 0) {
+				result.setPixels(rows, 0, width, 0, top, width, rowCount);
+			}
+		} finally {
+			Tracer.end();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Decodes and fades a baseline JPEG to the size of a plan, one strip at a time. Each strip is
+	 * decoded at the plan's sample size with {@link RegionDecoderStripSource}, faded by
+	 * {@link FadeStage} and shrunk into the result by {@link DownsampleStripSink}, so only a few
+	 * strips of the subsampled image are held at once.
+	 *
+	 * @param data   the JPEG
+	 * @param plan   the plan to decode to, which must scale after subsampling
+	 * @param kernel the fade to apply
+	 * @param mask   a mask of {@link FadeMask#SIZE} laid out over the image, or null
+	 * @return a new bitmap of the plan's target size
+	 * @throws IOException if any strip could not be decoded
+	 */
+	public static Bitmap decodeFaded(byte[] data, DecodePlan plan, FadeKernel kernel, byte[] mask)
+			throws IOException {
+		final Bitmap bitmap = Bitmap.createBitmap(plan.getTargetWidth(), plan.getTargetHeight(),
+				Bitmap.Config.ARGB_8888);
+		final int width = bitmap.getWidth();
+		boolean success = false;
+
+		Tracer.begin("decode strips");
+		try {
+			StripSource source = RegionDecoderStripSource.create(data, plan.getSampleSize(),
+					STRIP_ROWS, MAX_STRIPS);
+			FadeStage fade = new FadeStage(kernel, mask);
+			DownsampleStripSink sink = new DownsampleStripSink(source.getWidth(),
+					source.getHeight(), width, bitmap.getHeight(), MAX_STRIPS,
+					new DownsampleStripSink.Target() {
+						@Override
+						public void setRows(int[] pixels, int top, int rows) {
+							bitmap.setPixels(pixels, 0, width, 0, top, width, rows);
+						}
+					});
+
+			source.subscribe(fade);
+			fade.subscribe(sink);
+			sink.await();
+			success = true;
+		} finally {
+			Tracer.end();
+
+			if (!success) {
+				bitmap.recycle();
+			}
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Fades a mutable bitmap in place, a strip of rows at a time.
+	 *
+	 * @param bitmap the bitmap to fade
+	 * @param kernel the fade to apply
+	 */
+	public static void apply(Bitmap bitmap, FadeKernel kernel) {
+		apply(bitmap, kernel, null);
+	}
+
+	/**
+	 * Fades a mutable bitmap in place, a strip of rows at a time, scaling the fade by a mask.
+	 *
+	 * @param bitmap the bitmap to fade
+	 * @param kernel the fade to apply
+	 * @param mask   a mask of {@link FadeMask#SIZE} laid out over the bitmap, or null
+	 */
+	public static void apply(Bitmap bitmap, FadeKernel kernel, byte[] mask) {
+		StripSource source = new BitmapStripSource(bitmap, STRIP_ROWS, MAX_STRIPS);
+		FadeStage fade = new FadeStage(kernel, mask);
+		BitmapStripSink sink = new BitmapStripSink(bitmap, MAX_STRIPS);
+
+		source.subscribe(fade);
+		fade.subscribe(sink);
+
+		try {
+			sink.await();
+		} catch (IOException e) {
+			// Reading and writing a bitmap cannot fail, so only a bug in a stage ends up here.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Fades a JPEG without decoding it, see {@link JpegFadeTranscoder}.
+	 *
+	 * @param data        the JPEG
+	 * @param destination where to write the faded JPEG
+	 * @param fade        the amount of fade
+	 * @throws IOException if the JPEG could not be transcoded or written
+	 */
+	public static void transcode(byte[] data, File destination, float fade) throws IOException {
+		File temp = new File(destination.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		boolean success = false;
+
+		Tracer.begin("transcode");
+		try {
+			new JpegFadeTranscoder(fade).transcode(data, 0, data.length, out);
+			success = true;
+		} finally {
+			Tracer.end();
+			out.close();
+
+			if (!success) {
+				temp.delete();
+			}
+		}
+
+		if (!temp.renameTo(destination)) {
+			temp.delete();
+			throw new IOException("Could not rename " + temp);
+		}
+	}
+
+	/**
+	 * Unlike the preview, an exported JPEG loses its EXIF data, so the pixels must be rotated.
+	 *
+	 * @param bitmap      the bitmap to rotate, which is recycled if a copy is made
+	 * @param orientation the EXIF orientation of the bitmap
+	 * @return an upright bitmap
+	 */
+	public static Bitmap orient(Bitmap bitmap, int orientation) {
+		Matrix matrix = new Matrix();
+
+		switch (orientation) {
+			case ExifReader.ORIENTATION_FLIP_HORIZONTAL:
+				matrix.postScale(-1, 1);
+				break;
+			case ExifReader.ORIENTATION_ROTATE_180:
+				matrix.postRotate(180);
+				break;
+			case ExifReader.ORIENTATION_FLIP_VERTICAL:
+				matrix.postScale(1, -1);
+				break;
+			case ExifReader.ORIENTATION_TRANSPOSE:
+				matrix.postRotate(90);
+				matrix.postScale(-1, 1);
+				break;
+			case ExifReader.ORIENTATION_ROTATE_90:
+				matrix.postRotate(90);
+				break;
+			case ExifReader.ORIENTATION_TRANSVERSE:
+				matrix.postRotate(-90);
+				matrix.postScale(-1, 1);
+				break;
+			case ExifReader.ORIENTATION_ROTATE_270:
+				matrix.postRotate(-90);
+				break;
+			default:
+				return bitmap;
+		}
+
+		Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+				matrix, false);
+
+		if (oriented != bitmap) {
+			bitmap.recycle();
+		}
+
+		return oriented;
+	}
+
+	/**
+	 * @param bitmap      the bitmap to save
+	 * @param destination where to write the JPEG
+	 * @throws IOException if the JPEG could not be written
+	 */
+	public static void write(Bitmap bitmap, File destination) throws IOException {
+		File temp = new File(destination.getPath() + ".tmp");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+
+		try {
+			if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+				throw new IOException("Could not encode " + destination);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(destination)) {
+			temp.delete();
+			throw new IOException("Could not rename " + temp);
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor getEncoder() {
+		if (sEncoder == null) {
+			int cores = Runtime.getRuntime().availableProcessors();
+
+			sEncoder = new ThreadPoolExecutor(cores, cores, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>());
+			sEncoder.allowCoreThreadTimeOut(true);
+		}
+
+		return sEncoder;
+	}
+}
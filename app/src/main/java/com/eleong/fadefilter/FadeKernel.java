@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Applies the fade on the CPU, for when there is no OpenGL context to draw with.
+ * <p/>
+ * Because the fade treats each channel independently, the entire color transform collapses into
+ * a 256-entry lookup table. The linear light mode builds its table from {@link SrgbTables}, so it
+ * costs the same per pixel as the plain fade.
+ */
+public class FadeKernel {
+
+	/**
+	 * The size of a lookup table, one entry for every 8-bit channel value.
+	 */
+	public static final int LUT_SIZE = 256;
+
+	/**
+	 * The amount of fade, from 0.0 to 1.0, inclusive.
+	 */
+	private final float mFade;
+	/**
+	 * Whether or not the fade is applied in linear light.
+	 */
+	private final boolean mLinear;
+	/**
+	 * Maps each input channel value to a faded output value.
+	 */
+	private final byte[] mLut;
+	/**
+	 * A lookup table for each of the 256 mask levels, built the first time a mask is applied.
+	 */
+	private byte[] mMaskedLut;
+
+	/**
+	 * @param fade   the amount of fade, valid values range from 0.0 and 1.0, inclusive.
+	 * @param linear whether or not to fade in linear light instead of on gamma-encoded values
+	 */
+	public FadeKernel(float fade, boolean linear) {
+		mFade = fade;
+		mLinear = linear;
+		mLut = createLut(fade, linear);
+	}
+
+	/**
+	 * Creates a lookup table for the fade function f(x) = a + (1.0 - a) * x. In linear light,
+	 * both a and x are converted to linear values before the function is applied, and the result
+	 * is converted back to sRGB. Either way, black maps to the same faded value.
+	 *
+	 * @param fade   the amount of fade, valid values range from 0.0 and 1.0, inclusive.
+	 * @param linear whether or not to fade in linear light
+	 * @return a table of {@link #LUT_SIZE} output values
+	 */
+	public static byte[] createLut(float fade, boolean linear) {
+		byte[] lut = new byte[LUT_SIZE];
+
+		if (linear) {
+			int floor = (int) Math.round(SrgbTables.toLinear(fade) * SrgbTables.LINEAR_MAX);
+			int range = SrgbTables.LINEAR_MAX - floor;
+
+			for (int i = 0; i < LUT_SIZE; i++) {
+				int value = floor + (range * SrgbTables.decode(i) + SrgbTables.LINEAR_MAX / 2)
+						/ SrgbTables.LINEAR_MAX;
+				lut[i] = (byte) SrgbTables.encode(value);
+			}
+		} else {
+			for (int i = 0; i < LUT_SIZE; i++) {
+				lut[i] = (byte) Math.round(255.0f * fade + (1.0f - fade) * i);
+			}
+		}
+
+		return lut;
+	}
+
+	/**
+	 * Fades packed ARGB pixels in place. The alpha channel is made opaque, like the shader.
+	 *
+	 * @param pixels the pixels, in the format used by {@link android.graphics.Bitmap#getPixels}
+	 * @param offset the index of the first pixel to fade
+	 * @param length the number of pixels to fade
+	 */
+	public void apply(int[] pixels, int offset, int length) {
+		final byte[] lut = mLut;
+		final int end = offset + length;
+
+		for (int i = offset; i < end; i++) {
+			int color = pixels[i];
+
+			int r = lut[(color >> 16) & 0xFF] & 0xFF;
+			int g = lut[(color >> 8) & 0xFF] & 0xFF;
+			int b = lut[color & 0xFF] & 0xFF;
+
+			pixels[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+		}
+	}
+
+	/**
+	 * Fades rows of packed ARGB pixels in place, scaling the fade by a mask that is sampled
+	 * bilinearly, in the same way as the shader. The alpha channel is made opaque.
+	 *
+	 * @param pixels   the pixels, in the format used by {@link android.graphics.Bitmap#getPixels}
+	 * @param width    the width of the image, which is also the stride of pixels
+	 * @param rows     the number of rows in pixels
+	 * @param top      the index of the first row in the image
+	 * @param height   the height of the image
+	 * @param mask     a square mask, see {@link FadeMask}
+	 * @param maskSize the width and height of the mask
+	 */
+	public void apply(int[] pixels, int width, int rows, int top, int height, byte[] mask,
+	                  int maskSize) {
+		final byte[] lut = getMaskedLut();
+
+		int[] sample = new int[3];
+
+		// The horizontal sample positions are the same for every row.
+		int[] left = new int[width];
+		int[] right = new int[width];
+		int[] weight = new int[width];
+
+		for (int x = 0; x < width; x++) {
+			sampleMask(x, width, maskSize, sample);
+
+			left[x] = sample[0];
+			right[x] = sample[1];
+			weight[x] = sample[2];
+		}
+
+		for (int row = 0; row < rows; row++) {
+			sampleMask(top + row, height, maskSize, sample);
+
+			final int upper = sample[0] * maskSize;
+			final int lower = sample[1] * maskSize;
+			final int fy = sample[2];
+
+			for (int x = 0; x < width; x++) {
+				int fx = weight[x];
+
+				int upperLevel = (mask[upper + left[x]] & 0xFF) * (256 - fx)
+						+ (mask[upper + right[x]] & 0xFF) * fx;
+				int lowerLevel = (mask[lower + left[x]] & 0xFF) * (256 - fx)
+						+ (mask[lower + right[x]] & 0xFF) * fx;
+				int level = (upperLevel * (256 - fy) + lowerLevel * fy + 32768) >> 16;
+
+				int i = row * width + x;
+				int color = pixels[i];
+				int base = level << 8;
+
+				int r = lut[base | ((color >> 16) & 0xFF)] & 0xFF;
+				int g = lut[base | ((color >> 8) & 0xFF)] & 0xFF;
+				int b = lut[base | (color & 0xFF)] & 0xFF;
+
+				pixels[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	/**
+	 * Finds the two mask texels around a pixel, and the weight of the second, from 0 to 256.
+	 *
+	 * @param position the position of the pixel along one axis
+	 * @param length   the size of the image along the same axis
+	 * @param maskSize the width and height of the mask
+	 * @param sample   receives the first texel, the second texel and the weight
+	 */
+	private static void sampleMask(int position, int length, int maskSize, int[] sample) {
+		// Texel centers are at (i + 0.5) / maskSize, as in OpenGL.
+		float coord = (position + 0.5f) / length * maskSize - 0.5f;
+		coord = Math.max(0.0f, Math.min(maskSize - 1, coord));
+
+		int first = (int) coord;
+
+		sample[0] = first;
+		sample[1] = Math.min(first + 1, maskSize - 1);
+		sample[2] = Math.round((coord - first) * 256.0f);
+	}
+
+	private synchronized byte[] getMaskedLut() {
+		if (mMaskedLut == null) {
+			byte[] lut = new byte[LUT_SIZE * 256];
+
+			for (int level = 0; level < 256; level++) {
+				System.arraycopy(createLut(mFade * level / 255.0f, mLinear), 0, lut,
+						level * LUT_SIZE, LUT_SIZE);
+			}
+
+			mMaskedLut = lut;
+		}
+
+		return mMaskedLut;
+	}
+
+	/**
+	 * @return the lookup table used by this kernel. Do not modify it.
+	 */
+	public byte[] getLut() {
+		return mLut;
+	}
+
+	/**
+	 * @return the amount of fade
+	 */
+	public float getFade() {
+		return mFade;
+	}
+
+	/**
+	 * @return whether or not the fade is applied in linear light
+	 */
+	public boolean isLinear() {
+		return mLinear;
+	}
+}
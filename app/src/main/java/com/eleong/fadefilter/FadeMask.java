@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Generates small masks that scale the fade across the image, such as a graduated fade or a
+ * vignette. A mask value of 255 applies the full fade, and 0 leaves the image untouched.
+ * <p/>
+ * Masks are square, row major and laid out over the upright image with the first row at the top.
+ * They are smooth enough that sampling them bilinearly at any image size looks the same as
+ * generating them at full resolution.
+ */
+public class FadeMask {
+
+	/**
+	 * The width and height of a generated mask.
+	 */
+	public static final int SIZE = 64;
+
+	public static final int TYPE_NONE = 0;
+	/**
+	 * Fully faded at the top, fading out towards the bottom.
+	 */
+	public static final int TYPE_GRADUATED = 1;
+	/**
+	 * Fully faded at the edges, untouched in the center.
+	 */
+	public static final int TYPE_VIGNETTE = 2;
+
+	private FadeMask() {
+	}     // do not instantiate
+
+	/**
+	 * @param type one of the mask types
+	 * @return the mask, or null for {@link #TYPE_NONE}
+	 */
+	public static byte[] create(int type) {
+		switch (type) {
+			case TYPE_GRADUATED:
+				return createLinear(SIZE, 0.5f, 0.0f, 0.5f, 0.7f);
+			case TYPE_VIGNETTE:
+				return createRadial(SIZE, 0.5f, 0.5f, 0.3f, 0.75f);
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Creates a mask that goes from fully faded at the start point to untouched at the end point.
+	 * Coordinates range from 0.0 to 1.0 across the image.
+	 *
+	 * @param size   the width and height of the mask
+	 * @param startX the horizontal position of the fully faded end
+	 * @param startY the vertical position of the fully faded end
+	 * @param endX   the horizontal position of the untouched end
+	 * @param endY   the vertical position of the untouched end
+	 * @return the mask
+	 */
+	public static byte[] createLinear(int size, float startX, float startY, float endX,
+	                                  float endY) {
+		byte[] mask = new byte[size * size];
+
+		float dx = endX - startX;
+		float dy = endY - startY;
+		float lengthSquared = dx * dx + dy * dy;
+
+		for (int y = 0; y < size; y++) {
+			float v = (y + 0.5f) / size;
+
+			for (int x = 0; x < size; x++) {
+				float u = (x + 0.5f) / size;
+
+				// How far along the gradient this texel is.
+				float t = ((u - startX) * dx + (v - startY) * dy) / lengthSquared;
+
+				mask[y * size + x] = toByte(1.0f - t);
+			}
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Creates a mask that is untouched within the inner radius, and fully faded outside of the
+	 * outer radius, with a smooth transition in between. Coordinates range from 0.0 to 1.0 across
+	 * the image.
+	 *
+	 * @param size        the width and height of the mask
+	 * @param centerX     the horizontal position of the center
+	 * @param centerY     the vertical position of the center
+	 * @param innerRadius the distance from the center where the fade starts
+	 * @param outerRadius the distance from the center where the fade is complete
+	 * @return the mask
+	 */
+	public static byte[] createRadial(int size, float centerX, float centerY, float innerRadius,
+	                                  float outerRadius) {
+		byte[] mask = new byte[size * size];
+
+		for (int y = 0; y < size; y++) {
+			float dy = (y + 0.5f) / size - centerY;
+
+			for (int x = 0; x < size; x++) {
+				float dx = (x + 0.5f) / size - centerX;
+
+				float distance = (float) Math.sqrt(dx * dx + dy * dy);
+				float t = (distance - innerRadius) / (outerRadius - innerRadius);
+				t = Math.max(0.0f, Math.min(1.0f, t));
+
+				// Smoothstep, to avoid a visible edge at either radius.
+				mask[y * size + x] = toByte(t * t * (3.0f - 2.0f * t));
+			}
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Rearranges a mask laid out over the upright image so that it lines up with the stored
+	 * pixels of an image with an EXIF orientation. The preview does not need this, since it
+	 * samples the mask in screen space.
+	 *
+	 * @param mask        the mask, laid out over the upright image
+	 * @param size        the width and height of the mask
+	 * @param orientation the EXIF orientation of the image
+	 * @return the mask, laid out over the stored image
+	 */
+	public static byte[] orient(byte[] mask, int size, int orientation) {
+		if (orientation == ExifReader.ORIENTATION_NORMAL) {
+			return mask;
+		}
+
+		byte[] oriented = new byte[size * size];
+		final int last = size - 1;
+
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				// Where the upright texel is on the stored image, as in Rectangle.
+				int s;
+				int t;
+
+				switch (orientation) {
+					case ExifReader.ORIENTATION_FLIP_HORIZONTAL:
+						s = last - x;
+						t = y;
+						break;
+					case ExifReader.ORIENTATION_ROTATE_180:
+						s = last - x;
+						t = last - y;
+						break;
+					case ExifReader.ORIENTATION_FLIP_VERTICAL:
+						s = x;
+						t = last - y;
+						break;
+					case ExifReader.ORIENTATION_TRANSPOSE:
+						s = y;
+						t = x;
+						break;
+					case ExifReader.ORIENTATION_ROTATE_90:
+						s = y;
+						t = last - x;
+						break;
+					case ExifReader.ORIENTATION_TRANSVERSE:
+						s = last - y;
+						t = last - x;
+						break;
+					case ExifReader.ORIENTATION_ROTATE_270:
+						s = last - y;
+						t = x;
+						break;
+					default:
+						s = x;
+						t = y;
+						break;
+				}
+
+				oriented[t * size + s] = mask[y * size + x];
+			}
+		}
+
+		return oriented;
+	}
+
+	private static byte toByte(float value) {
+		return (byte) Math.round(Math.max(0.0f, Math.min(1.0f, value)) * 255.0f);
+	}
+}
@@ -17,6 +17,9 @@ package com.eleong.fadefilter;
 
 import android.opengl.GLES20;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
 /**
  * Creates and controls the OpenGL shader program for fading a texture.
  * <p/>
@@ -24,6 +27,11 @@ import android.opengl.GLES20;
  */
 public class FadeProgram {
 
+	/**
+	 * The number of fade levels in the lookup table of a masked fade in linear light.
+	 */
+	private static final int MASK_LUT_ROWS = 16;
+
 	/**
 	 * A simple vertex shader that does not modify the vertex or texture coordinates.
 	 */
@@ -36,6 +44,22 @@ public class FadeProgram {
 					"    vTextureCoord = aTextureCoord.xy;\n" +
 					"}\n";
 
+	/**
+	 * The vertex shader for a masked fade. The mask covers the viewport, so its coordinates come
+	 * from the vertex position rather than the texture coordinates, and it stays upright whatever
+	 * the orientation of the image.
+	 */
+	private static final String VERTEX_SHADER_MASK =
+			"attribute vec4 aPosition;\n" +
+					"attribute vec4 aTextureCoord;\n" +
+					"varying vec2 vTextureCoord;\n" +
+					"varying vec2 vMaskCoord;\n" +
+					"void main() {\n" +
+					"    gl_Position = aPosition;\n" +
+					"    vTextureCoord = aTextureCoord.xy;\n" +
+					"    vMaskCoord = vec2(aPosition.x * 0.5 + 0.5, 0.5 - aPosition.y * 0.5);\n" +
+					"}\n";
+
 	/**
 	 * A fragment shader that applies a maps the full range of input colors to a smaller range via
 	 * the function: f(x) = a + (1.0 - a) * x, where x is the input color.
@@ -53,6 +77,83 @@ public class FadeProgram {
 					"    gl_FragColor = vec4(r, g, b, 1.0);\n" +
 					"}\n";
 
+	/**
+	 * A fragment shader that applies the fade in linear light. Calling pow() for every channel of
+	 * every pixel is too slow, so the sRGB decode, fade and encode are combined into a lookup table
+	 * on the CPU (see {@link FadeKernel#createLut(float, boolean)}) and stored in a 256x1 texture.
+	 * The color is scaled so that each value lands on the center of its texel. The three lookups
+	 * are dependent texture fetches, which some GPUs serialize, and their cost against the plain
+	 * fade has not been measured.
+	 */
+	private static final String FRAGMENT_SHADER_LINEAR =
+			"precision mediump float;\n" +
+					"varying vec2 vTextureCoord;\n" +
+					"uniform sampler2D sTexture;\n" +
+					"uniform sampler2D sLut;\n" +
+					"void main() {\n" +
+					"    vec4 color = texture2D(sTexture, vTextureCoord);\n" +
+					"    vec3 index = color.rgb * (255.0 / 256.0) + (0.5 / 256.0);\n" +
+					"    float r = texture2D(sLut, vec2(index.r, 0.5)).r;\n" +
+					"    float g = texture2D(sLut, vec2(index.g, 0.5)).r;\n" +
+					"    float b = texture2D(sLut, vec2(index.b, 0.5)).r;\n" +
+					"    gl_FragColor = vec4(r, g, b, 1.0);\n" +
+					"}\n";
+
+	/**
+	 * A fragment shader that scales the fade by a mask, sampled bilinearly from a small texture.
+	 * This costs one extra fetch from a texture that stays in the cache, instead of blending a
+	 * faded copy over the original.
+	 */
+	private static final String FRAGMENT_SHADER_MASK =
+			"precision mediump float;\n" +
+					"varying vec2 vTextureCoord;\n" +
+					"varying vec2 vMaskCoord;\n" +
+					"uniform sampler2D sTexture;\n" +
+					"uniform sampler2D sMask;\n" +
+					"uniform float uFade;\n" +
+					"void main() {\n" +
+					"    vec4 color = texture2D(sTexture, vTextureCoord);\n" +
+					"    float fade = uFade * texture2D(sMask, vMaskCoord).r;\n" +
+					"    float r = fade + (1.0 - fade) * color.r;\n" +
+					"    float g = fade + (1.0 - fade) * color.g;\n" +
+					"    float b = fade + (1.0 - fade) * color.b;\n" +
+					"    gl_FragColor = vec4(r, g, b, 1.0);\n" +
+					"}\n";
+
+	/**
+	 * A fragment shader that applies a masked fade in linear light. Each row of the lookup table
+	 * holds the table for a fraction of the fade, from none in the first row to all of it in the
+	 * last, and the mask selects a position between the rows. Linear filtering blends the two
+	 * nearest rows.
+	 */
+	private static final String FRAGMENT_SHADER_LINEAR_MASK =
+			"precision mediump float;\n" +
+					"varying vec2 vTextureCoord;\n" +
+					"varying vec2 vMaskCoord;\n" +
+					"uniform sampler2D sTexture;\n" +
+					"uniform sampler2D sLut;\n" +
+					"uniform sampler2D sMask;\n" +
+					"void main() {\n" +
+					"    vec4 color = texture2D(sTexture, vTextureCoord);\n" +
+					"    vec3 index = color.rgb * (255.0 / 256.0) + (0.5 / 256.0);\n" +
+					"    float row = texture2D(sMask, vMaskCoord).r\n" +
+					"            * (" + (MASK_LUT_ROWS - 1) + ".0 / " + MASK_LUT_ROWS + ".0)\n" +
+					"            + (0.5 / " + MASK_LUT_ROWS + ".0);\n" +
+					"    float r = texture2D(sLut, vec2(index.r, row)).r;\n" +
+					"    float g = texture2D(sLut, vec2(index.g, row)).r;\n" +
+					"    float b = texture2D(sLut, vec2(index.b, row)).r;\n" +
+					"    gl_FragColor = vec4(r, g, b, 1.0);\n" +
+					"}\n";
+
+	/**
+	 * Whether or not this program fades in linear light.
+	 */
+	private final boolean mLinear;
+	/**
+	 * Whether or not this program scales the fade by a mask.
+	 */
+	private final boolean mMasked;
+
 	/**
 	 * The reference to the OpenGL program.
 	 */
@@ -69,20 +170,81 @@ public class FadeProgram {
 	 * The reference to the fade value.
 	 */
 	private int muFadeLoc;
+	/**
+	 * The reference to the lookup table sampler, only used in linear light.
+	 */
+	private int msLutLoc;
+	/**
+	 * The reference to the mask sampler, only used with a mask.
+	 */
+	private int msMaskLoc;
+	/**
+	 * The id of the lookup table texture, only used in linear light.
+	 */
+	private int mLutTextureId = -1;
+	/**
+	 * The fade value that the lookup table texture currently holds.
+	 */
+	private float mLutFade = Float.NaN;
+	/**
+	 * Holds the lookup table while it is transferred to the GPU.
+	 */
+	private ByteBuffer mLutBuffer;
+
+	/**
+	 * @param linear whether or not to apply the fade in linear light
+	 * @param masked whether or not to scale the fade by a mask
+	 */
+	public FadeProgram(boolean linear, boolean masked) {
+		mLinear = linear;
+		mMasked = masked;
+	}
 
 	/**
 	 * Creates the shader program. Can only be called once the OpenGL context has been created
 	 * (usually in {@link android.opengl.GLSurfaceView.Renderer#onSurfaceCreated(javax.microedition.khronos.opengles.GL10, javax.microedition.khronos.egl.EGLConfig)}.
 	 */
 	public void initProgram() {
-		mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+		Tracer.begin("compile shader");
+		try {
+			if (mMasked) {
+				mProgramHandle = GlUtil.createProgram(VERTEX_SHADER_MASK,
+						mLinear ? FRAGMENT_SHADER_LINEAR_MASK : FRAGMENT_SHADER_MASK);
+			} else {
+				mProgramHandle = GlUtil.createProgram(VERTEX_SHADER,
+						mLinear ? FRAGMENT_SHADER_LINEAR : FRAGMENT_SHADER);
+			}
+		} finally {
+			Tracer.end();
+		}
 
 		maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
 		GlUtil.checkLocation(maPositionLoc, "aPosition");
 		maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
 		GlUtil.checkLocation(maTextureCoordLoc, "aTextureCoord");
-		muFadeLoc = GLES20.glGetUniformLocation(mProgramHandle, "uFade");
-		GlUtil.checkLocation(muFadeLoc, "uFade");
+
+		if (mLinear) {
+			msLutLoc = GLES20.glGetUniformLocation(mProgramHandle, "sLut");
+			GlUtil.checkLocation(msLutLoc, "sLut");
+
+			mLutTextureId = createTexture();
+			mLutBuffer = ByteBuffer.allocateDirect(FadeKernel.LUT_SIZE * getLutRows());
+			mLutFade = Float.NaN;
+
+			if (mMasked) {
+				// Blend between the rows of the table.
+				GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+						GLES20.GL_LINEAR);
+			}
+		} else {
+			muFadeLoc = GLES20.glGetUniformLocation(mProgramHandle, "uFade");
+			GlUtil.checkLocation(muFadeLoc, "uFade");
+		}
+
+		if (mMasked) {
+			msMaskLoc = GLES20.glGetUniformLocation(mProgramHandle, "sMask");
+			GlUtil.checkLocation(msMaskLoc, "sMask");
+		}
 	}
 
 	/**
@@ -119,6 +281,29 @@ public class FadeProgram {
 	 * @param fade      the amount of fade, valid values range from 0.0 and 1.0, inclusive.
 	 */
 	public void draw(int textureId, float fade) {
+		draw(textureId, fade, Rectangle.TEXTURE_BUFFER);
+	}
+
+	/**
+	 * Draws a faded texture.
+	 *
+	 * @param textureId     the id of the texture to draw.
+	 * @param fade          the amount of fade, valid values range from 0.0 and 1.0, inclusive.
+	 * @param textureBuffer the texture coordinates, see {@link Rectangle#createTextureBuffer(int)}
+	 */
+	public void draw(int textureId, float fade, FloatBuffer textureBuffer) {
+		draw(textureId, fade, textureBuffer, -1);
+	}
+
+	/**
+	 * Draws a faded texture.
+	 *
+	 * @param textureId     the id of the texture to draw.
+	 * @param fade          the amount of fade, valid values range from 0.0 and 1.0, inclusive.
+	 * @param textureBuffer the texture coordinates, see {@link Rectangle#createTextureBuffer(int)}
+	 * @param maskTextureId the id of the mask texture, only used if this program is masked
+	 */
+	public void draw(int textureId, float fade, FloatBuffer textureBuffer, int maskTextureId) {
 		// Select the program.
 		GLES20.glUseProgram(mProgramHandle);
 		GlUtil.checkGlError("glUseProgram");
@@ -127,8 +312,29 @@ public class FadeProgram {
 		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
 
-		// Set the fade value.
-		GLES20.glUniform1f(muFadeLoc, fade);
+		if (mLinear) {
+			// Set the lookup table, which only needs to change with the fade value.
+			GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTextureId);
+
+			if (fade != mLutFade) {
+				loadLut(fade);
+			}
+
+			GLES20.glUniform1i(msLutLoc, 1);
+			GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		} else {
+			// Set the fade value.
+			GLES20.glUniform1f(muFadeLoc, fade);
+		}
+
+		if (mMasked) {
+			// Set the mask.
+			GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, maskTextureId);
+			GLES20.glUniform1i(msMaskLoc, 2);
+			GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		}
 
 		// Enable the "aPosition" vertex attribute.
 		GLES20.glEnableVertexAttribArray(maPositionLoc);
@@ -145,7 +351,7 @@ public class FadeProgram {
 
 		// Connect texBuffer to "aTextureCoord".
 		GLES20.glVertexAttribPointer(maTextureCoordLoc, Rectangle.COORDS_PER_TEX_COORD,
-				GLES20.GL_FLOAT, false, Rectangle.TEX_COORD_STRIDE, Rectangle.TEXTURE_BUFFER);
+				GLES20.GL_FLOAT, false, Rectangle.TEX_COORD_STRIDE, textureBuffer);
 		GlUtil.checkGlError("glVertexAttribPointer");
 
 		// Draw the rect.
@@ -153,4 +359,63 @@ public class FadeProgram {
 				Rectangle.VERTEX_COORDS.length / Rectangle.COORDS_PER_VERTEX);
 		GlUtil.checkGlError("glDrawArrays");
 	}
+
+	/**
+	 * Transfers the lookup table for a fade value to the currently bound texture.
+	 *
+	 * @param fade the amount of fade
+	 */
+	private void loadLut(float fade) {
+		final int rows = getLutRows();
+
+		mLutBuffer.clear();
+		if (mMasked) {
+			for (int row = 0; row < rows; row++) {
+				mLutBuffer.put(FadeKernel.createLut(fade * row / (rows - 1), true));
+			}
+		} else {
+			mLutBuffer.put(FadeKernel.createLut(fade, true));
+		}
+		mLutBuffer.position(0);
+
+		GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+		GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, FadeKernel.LUT_SIZE,
+				rows, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, mLutBuffer);
+		GlUtil.checkGlError("glTexImage2D lut");
+
+		mLutFade = fade;
+	}
+
+	/**
+	 * @return the number of rows in the lookup table texture
+	 */
+	private int getLutRows() {
+		return mMasked ? MASK_LUT_ROWS : 1;
+	}
+
+	/**
+	 * Transfers a mask to a texture, creating the texture if needed. The mask is sampled
+	 * bilinearly, so a small mask stays smooth at any size.
+	 *
+	 * @param textureId the id of the mask texture, or -1 to create one
+	 * @param mask      a square mask, see {@link FadeMask}
+	 * @param size      the width and height of the mask
+	 * @return the id of the mask texture
+	 */
+	public int loadMask(int textureId, byte[] mask, int size) {
+		if (textureId < 0) {
+			textureId = createTexture();
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+					GLES20.GL_LINEAR);
+		} else {
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+		}
+
+		GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+		GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, size, size, 0,
+				GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(mask));
+		GlUtil.checkGlError("glTexImage2D mask");
+
+		return textureId;
+	}
 }
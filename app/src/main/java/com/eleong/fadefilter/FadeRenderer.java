@@ -15,10 +15,10 @@
  */
 package com.eleong.fadefilter;
 
-import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.GLUtils;
+
+import java.nio.FloatBuffer;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -35,66 +35,249 @@ public class FadeRenderer implements GLSurfaceView.Renderer {
 	 */
 	public static final float DEFAULT_FADE = 0.2f;
 
+	/**
+	 * The texture coordinates that draw the offscreen framebuffer upright. Its rows are stored
+	 * bottom up, unlike an uploaded bitmap.
+	 */
+	private static final FloatBuffer FRAMEBUFFER_TEXTURE_BUFFER =
+			Rectangle.createTextureBuffer(ExifReader.ORIENTATION_FLIP_VERTICAL);
+
 	/**
 	 * The OpenGL shader program.
 	 */
 	private final FadeProgram mProgram;
+	/**
+	 * The OpenGL shader program that fades in linear light.
+	 */
+	private final FadeProgram mLinearProgram;
+	/**
+	 * The OpenGL shader programs that scale the fade by a mask.
+	 */
+	private final FadeProgram mMaskedProgram;
+	private final FadeProgram mLinearMaskedProgram;
 	/**
 	 * The id of the texture to draw.
 	 */
 	private int mTextureId = -1;
 	/**
-	 * The bitmap that will be transferred to the GPU for drawing.
+	 * The image that will be transferred to the GPU for drawing.
 	 */
-	private Bitmap mBitmap;
+	private TextureImage mImage;
+	/**
+	 * The texture coordinates that draw the image upright.
+	 */
+	private FloatBuffer mTextureBuffer = Rectangle.TEXTURE_BUFFER;
 	/**
 	 * The current fade amount.
 	 */
 	private float mFade = DEFAULT_FADE;
+	/**
+	 * Whether or not to fade in linear light.
+	 */
+	private boolean mLinear;
+	/**
+	 * The mask that scales the fade, or null to fade the whole image evenly. Kept so it can be
+	 * transferred again if the OpenGL context is recreated.
+	 */
+	private byte[] mMask;
+	/**
+	 * The id of the mask texture.
+	 */
+	private int mMaskTextureId = -1;
+	/**
+	 * Picks the resolution of the preview while the fade is dragged.
+	 */
+	private final PreviewScaleController mScaleController;
+	/**
+	 * When the previous frame started, or 0 if it was not part of the current drag.
+	 */
+	private long mLastFrameNanos;
+	/**
+	 * The scale of the last adaptive frame, to trace changes.
+	 */
+	private float mDrawnScale = 1.0f;
+	/**
+	 * The size of the surface, in pixels.
+	 */
+	private int mSurfaceWidth;
+	private int mSurfaceHeight;
+	/**
+	 * The offscreen framebuffer that reduced resolution frames are drawn into, its color texture
+	 * and its size.
+	 */
+	private int mFramebufferId = -1;
+	private int mFramebufferTextureId = -1;
+	private int mFramebufferWidth;
+	private int mFramebufferHeight;
 
-	public FadeRenderer() {
-		mProgram = new FadeProgram();
+	/**
+	 * @param frameBudget the time available for each frame on the display, in nanoseconds, see
+	 *                    {@link PreviewScaleController#getFrameBudget(float)}
+	 */
+	public FadeRenderer(long frameBudget) {
+		mScaleController = new PreviewScaleController(frameBudget);
+		mProgram = new FadeProgram(false, false);
+		mLinearProgram = new FadeProgram(true, false);
+		mMaskedProgram = new FadeProgram(false, true);
+		mLinearMaskedProgram = new FadeProgram(true, true);
 	}
 
 	@Override
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) {
 		mProgram.initProgram();
+		mLinearProgram.initProgram();
+		mMaskedProgram.initProgram();
+		mLinearMaskedProgram.initProgram();
 		mTextureId = mProgram.createTexture();
 
-		if (mBitmap != null) {
-			loadTexture(mBitmap);
+		// The old mask texture was lost with the old context.
+		mMaskTextureId = -1;
+		mFramebufferId = -1;
+		mFramebufferTextureId = -1;
+		if (mMask != null) {
+			setMask(mMask);
+		}
+
+		if (mImage != null) {
+			loadTexture(mImage);
 		}
 	}
 
 	@Override
 	public void onSurfaceChanged(GL10 gl, int width, int height) {
 		GLES20.glViewport(0, 0, width, height);
+
+		mSurfaceWidth = width;
+		mSurfaceHeight = height;
 	}
 
 	@Override
 	public void onDrawFrame(GL10 gl) {
 		// Draw what is on the texture currently.
 		if (isTextureCreated()) {
-			mProgram.draw(mTextureId, mFade);
+			Tracer.begin("draw");
+			try {
+				if (mScaleController.isActive()) {
+					drawAdaptive();
+				} else {
+					drawImage();
+				}
+			} finally {
+				Tracer.end();
+			}
+		}
+	}
+
+	/**
+	 * Draws the faded image into the current framebuffer.
+	 */
+	private void drawImage() {
+		if (mMask != null) {
+			(mLinear ? mLinearMaskedProgram : mMaskedProgram).draw(mTextureId, mFade,
+					mTextureBuffer, mMaskTextureId);
+		} else {
+			(mLinear ? mLinearProgram : mProgram).draw(mTextureId, mFade, mTextureBuffer);
+		}
+	}
+
+	/**
+	 * Draws the faded image at the scale picked by {@link PreviewScaleController}, into an
+	 * offscreen framebuffer that is then stretched over the surface.
+	 */
+	private void drawAdaptive() {
+		// A GPU that falls behind blocks the buffer swap after the previous frame, which
+		// stretches the interval between frames without having to wait for the GPU here.
+		long now = System.nanoTime();
+		float scale = mLastFrameNanos != 0
+				? mScaleController.onFrame(now - mLastFrameNanos) : mScaleController.getScale();
+		mLastFrameNanos = now;
+
+		if (scale != mDrawnScale) {
+			Tracer.instant("preview scale", scale);
+			mDrawnScale = scale;
 		}
+
+		if (scale < 1.0f) {
+			int width = Math.max(1, Math.round(mSurfaceWidth * scale));
+			int height = Math.max(1, Math.round(mSurfaceHeight * scale));
+			prepareFramebuffer(width, height);
+
+			GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+			GLES20.glViewport(0, 0, width, height);
+			drawImage();
+
+			GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+			GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+
+			// A fade of 0 leaves the colors as they are, and the texture filters bilinearly.
+			mProgram.draw(mFramebufferTextureId, 0.0f, FRAMEBUFFER_TEXTURE_BUFFER);
+		} else {
+			drawImage();
+		}
+
 	}
 
 	/**
-	 * Loads a bitmap as a texture on the GPU.
+	 * Creates or resizes the offscreen framebuffer.
 	 *
-	 * @param bitmap the bitmap to draw
+	 * @param width  the width of the framebuffer, in pixels
+	 * @param height the height of the framebuffer, in pixels
 	 */
-	public void loadTexture(Bitmap bitmap) {
+	private void prepareFramebuffer(int width, int height) {
+		if (mFramebufferId >= 0 && width == mFramebufferWidth && height == mFramebufferHeight) {
+			return;
+		}
+
+		if (mFramebufferTextureId < 0) {
+			mFramebufferTextureId = mProgram.createTexture();
+
+			int[] framebuffers = new int[1];
+			GLES20.glGenFramebuffers(1, framebuffers, 0);
+			GlUtil.checkGlError("glGenFramebuffers");
+			mFramebufferId = framebuffers[0];
+		}
+
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFramebufferTextureId);
+		GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+				GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+		GlUtil.checkGlError("glTexImage2D");
+
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+				GLES20.GL_TEXTURE_2D, mFramebufferTextureId, 0);
+		GlUtil.checkGlError("glFramebufferTexture2D");
+
+		int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+			throw new RuntimeException("Framebuffer incomplete: 0x" + Integer.toHexString(status));
+		}
+
+		mFramebufferWidth = width;
+		mFramebufferHeight = height;
+	}
+
+	/**
+	 * Loads an image as a texture on the GPU.
+	 *
+	 * @param image the image to draw
+	 */
+	public void loadTexture(TextureImage image) {
 		if (isTextureCreated()) {
 			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
 			GlUtil.checkGlError("glBindTexture " + mTextureId);
 
-			GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, bitmap, 0);
-			GlUtil.checkGlError("texImage2D");
+			Tracer.begin("upload");
+			try {
+				image.upload();
+			} finally {
+				Tracer.end();
+			}
+			mTextureBuffer = Rectangle.createTextureBuffer(image.getOrientation());
 
-			mBitmap = null;
+			mImage = null;
 		} else {
-			mBitmap = bitmap;
+			mImage = image;
 		}
 	}
 
@@ -105,6 +288,45 @@ public class FadeRenderer implements GLSurfaceView.Renderer {
 		mFade = fade;
 	}
 
+	/**
+	 * Lowers the resolution of the preview as needed while the fade is dragged, so that frames are
+	 * not dropped on slow GPUs. The next frame after a drag is drawn at full resolution.
+	 * <p/>
+	 * Frames are timed by the interval between them, so the view should render continuously
+	 * during the drag.
+	 *
+	 * @param dragging whether or not the fade is being dragged
+	 */
+	public void setDragging(boolean dragging) {
+		if (dragging) {
+			mScaleController.start();
+		} else {
+			mScaleController.stop();
+		}
+		mLastFrameNanos = 0;
+	}
+
+	/**
+	 * @param linear whether or not to fade in linear light instead of on gamma-encoded values
+	 */
+	public void setLinear(boolean linear) {
+		mLinear = linear;
+	}
+
+	/**
+	 * Sets the mask that scales the fade across the image, see {@link FadeMask}.
+	 *
+	 * @param mask a mask of {@link FadeMask#SIZE} by {@link FadeMask#SIZE}, or null to fade the
+	 *             whole image evenly
+	 */
+	public void setMask(byte[] mask) {
+		mMask = mask;
+
+		if (mask != null && isTextureCreated()) {
+			mMaskTextureId = mProgram.loadMask(mMaskTextureId, mask, FadeMask.SIZE);
+		}
+	}
+
 	/**
 	 * @return whether or not the texture object has been created.
 	 */
@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small HTTP server on the loopback interface that fades images for other processes.
+ * <p/>
+ * <ul>
+ * <li>{@code POST /fade?fade=0.3[&size=1024][&linear=1]} with the image as the body returns the
+ * faded JPEG. The response carries an ETag made of the content hash and the parameters, so a
+ * request with a matching If-None-Match gets a 304 without any work.</li>
+ * <li>{@code GET /stats} returns the request counts, cache hit ratio and latency percentiles as
+ * JSON.</li>
+ * </ul>
+ * One thread accepts connections and hands each to a fixed pool of handler threads. Every
+ * response closes the connection. This class has no Android dependencies, and the rendering is
+ * left to a {@link Renderer}.
+ */
+public class FadeServer {
+
+	/**
+	 * Renders a faded image.
+	 */
+	public interface Renderer {
+		/**
+		 * @param image  the source image
+		 * @param fade   the amount of fade
+		 * @param linear whether or not to fade in linear light
+		 * @param size   the minimum size of the shorter side of the rendition, or 0 for the
+		 *               default size
+		 * @return the faded JPEG
+		 * @throws IOException if the image could not be rendered
+		 */
+		byte[] render(byte[] image, float fade, boolean linear, int size) throws IOException;
+	}
+
+	/**
+	 * The largest request body accepted, in bytes.
+	 */
+	public static final int MAX_BODY_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * The largest request line and headers accepted, in bytes.
+	 */
+	private static final int MAX_HEAD_SIZE = 8 * 1024;
+
+	/**
+	 * How long to wait for a slow client, in milliseconds.
+	 */
+	private static final int SOCKET_TIMEOUT = 10 * 1000;
+
+	/**
+	 * The number of recent requests that the latency percentiles cover.
+	 */
+	private static final int LATENCY_SAMPLES = 1024;
+
+	private static final String CHARSET = "ISO-8859-1";
+
+	/**
+	 * Reports unexpected failures. On Android, java.util.logging is forwarded to the system log.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(FadeServer.class.getSimpleName());
+
+	private final Renderer mRenderer;
+	private final RenditionCache mCache;
+	private final int mHandlerCount;
+	private final LatencyStats mLatency = new LatencyStats(LATENCY_SAMPLES);
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mRenders = new AtomicLong();
+	private final AtomicLong mNotModified = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+
+	private ServerSocket mServerSocket;
+	private ExecutorService mHandlers;
+	private Thread mAcceptThread;
+
+	/**
+	 * @param renderer renders the faded images
+	 * @param cache    holds recent renditions
+	 * @param handlers the number of requests to handle at the same time
+	 */
+	public FadeServer(Renderer renderer, RenditionCache cache, int handlers) {
+		mRenderer = renderer;
+		mCache = cache;
+		mHandlerCount = handlers;
+	}
+
+	/**
+	 * Starts accepting connections on the loopback interface.
+	 *
+	 * @param port the port to listen on, or 0 for any free port
+	 * @throws IOException if the port could not be bound
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (mServerSocket != null) {
+			return;
+		}
+
+		final ServerSocket serverSocket = new ServerSocket(port, 0,
+				InetAddress.getByName("127.0.0.1"));
+		final ExecutorService handlers = new ThreadPoolExecutor(mHandlerCount, mHandlerCount, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
+		mServerSocket = serverSocket;
+		mHandlers = handlers;
+		mAcceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(serverSocket, handlers);
+			}
+		}, "FadeServer");
+		mAcceptThread.start();
+	}
+
+	/**
+	 * Stops accepting connections and abandons any requests in progress.
+	 */
+	public synchronized void stop() {
+		if (mServerSocket == null) {
+			return;
+		}
+
+		try {
+			mServerSocket.close();
+		} catch (IOException e) {
+			// Closing anyway.
+		}
+		mHandlers.shutdownNow();
+
+		mServerSocket = null;
+		mHandlers = null;
+		mAcceptThread = null;
+	}
+
+	/**
+	 * @return the port the server is listening on, or -1 if it is not running
+	 */
+	public synchronized int getPort() {
+		return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+	}
+
+	private void accept(ServerSocket serverSocket, ExecutorService handlers) {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// Closed by stop().
+				return;
+			}
+
+			try {
+				handlers.execute(new Runnable() {
+					@Override
+					public void run() {
+						handle(socket);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				closeQuietly(socket);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Handles one request on a handler thread.
+	 */
+	private void handle(Socket socket) {
+		try {
+			socket.setSoTimeout(SOCKET_TIMEOUT);
+
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+			try {
+				handle(in, out);
+			} catch (HttpException e) {
+				mErrors.incrementAndGet();
+				// The detail may quote the decoder, so it only goes in the body.
+				writeResponse(out, e.status, getReason(e.status), "text/plain; charset=utf-8",
+						(e.getMessage() + "\n").getBytes("UTF-8"), null);
+			}
+
+			out.flush();
+		} catch (SocketException e) {
+			// The client went away.
+		} catch (IOException e) {
+			mErrors.incrementAndGet();
+		} catch (RuntimeException e) {
+			// An uncaught exception on a handler thread would kill the process.
+			mErrors.incrementAndGet();
+			LOGGER.log(Level.WARNING, "Request failed", e);
+		} finally {
+			closeQuietly(socket);
+		}
+	}
+
+	private void handle(InputStream in, OutputStream out) throws IOException {
+		String head = readHead(in);
+		long start = System.nanoTime();
+
+		String[] lines = head.split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3) {
+			throw new HttpException(400, "Malformed request line");
+		}
+
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon > 0) {
+				headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+						lines[i].substring(colon + 1).trim());
+			}
+		}
+
+		String method = requestLine[0];
+		String target = requestLine[1];
+		int question = target.indexOf('?');
+		String path = question >= 0 ? target.substring(0, question) : target;
+		Map<String, String> query = parseQuery(question >= 0 ? target.substring(question + 1) : "");
+
+		mRequests.incrementAndGet();
+
+		if ("/stats".equals(path)) {
+			if (!"GET".equals(method)) {
+				throw new HttpException(405, "Use GET for /stats");
+			}
+
+			writeResponse(out, 200, getReason(200), "application/json",
+					getStats().getBytes("UTF-8"), null);
+		} else if ("/fade".equals(path)) {
+			if (!"POST".equals(method)) {
+				throw new HttpException(405, "Use POST for /fade");
+			}
+
+			handleFade(in, out, headers, query);
+			mLatency.add(System.nanoTime() - start);
+		} else {
+			throw new HttpException(404, "No such path: " + path);
+		}
+	}
+
+	private void handleFade(InputStream in, OutputStream out, Map<String, String> headers,
+	                        Map<String, String> query) throws IOException {
+		float fade;
+		int size;
+		boolean linear = "1".equals(query.get("linear"));
+
+		String fadeValue = query.get("fade");
+		if (fadeValue == null) {
+			throw new HttpException(400, "Missing fade");
+		}
+
+		try {
+			fade = Float.parseFloat(fadeValue);
+			size = query.containsKey("size") ? Integer.parseInt(query.get("size")) : 0;
+		} catch (NumberFormatException e) {
+			throw new HttpException(400, "Invalid fade or size");
+		}
+
+		if (!(fade >= 0.0f && fade <= 1.0f) || size < 0) {
+			throw new HttpException(400, "Invalid fade or size");
+		}
+
+		byte[] body = readBody(in, headers);
+
+		int step = RenditionCache.quantizeFade(fade);
+		String key = RenditionCache.createKey(body, step, linear, size);
+		String etag = '"' + key + '"';
+
+		// The key covers everything that affects the result, so a matching tag is always valid.
+		String ifNoneMatch = headers.get("if-none-match");
+		if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || "*".equals(ifNoneMatch))) {
+			mNotModified.incrementAndGet();
+			writeResponse(out, 304, getReason(304), null, null, etag);
+			return;
+		}
+
+		byte[] rendition = mCache.get(key);
+
+		if (rendition == null) {
+			try {
+				rendition = mRenderer.render(body, (float) step / RenditionCache.FADE_STEPS,
+						linear, size);
+			} catch (IOException e) {
+				// The body is of an accepted type, but not an image that can be decoded.
+				throw new HttpException(422, "Could not render the image: " + e.getMessage());
+			} catch (RuntimeException e) {
+				// A bug or an image the decoder chokes on must not take the app down with it.
+				LOGGER.log(Level.WARNING, "Renderer failed", e);
+				throw new HttpException(500, "Could not render the image");
+			} catch (OutOfMemoryError e) {
+				LOGGER.log(Level.WARNING, "Out of memory while rendering", e);
+				throw new HttpException(500, "Not enough memory to render the image");
+			}
+
+			mRenders.incrementAndGet();
+			mCache.put(key, rendition);
+		}
+
+		writeResponse(out, 200, getReason(200), "image/jpeg", rendition, etag);
+	}
+
+	/**
+	 * @return the statistics, as JSON
+	 */
+	public String getStats() {
+		long[] latency = mLatency.getPercentiles(50, 90, 99, 100);
+
+		return String.format(Locale.US, "{\"requests\":%d,\"renders\":%d,\"notModified\":%d,"
+						+ "\"errors\":%d,\"cache\":{\"hits\":%d,\"misses\":%d,\"hitRatio\":%.4f,"
+						+ "\"entries\":%d,\"bytes\":%d},\"latencyMs\":{\"samples\":%d,"
+						+ "\"p50\":%.2f,\"p90\":%.2f,\"p99\":%.2f,\"max\":%.2f}}\n",
+				mRequests.get(), mRenders.get(), mNotModified.get(), mErrors.get(),
+				mCache.getHitCount(), mCache.getMissCount(), mCache.getHitRatio(),
+				mCache.getCount(), mCache.getSize(), mLatency.getCount(),
+				latency[0] / 1e6, latency[1] / 1e6, latency[2] / 1e6, latency[3] / 1e6);
+	}
+
+	/**
+	 * @return the request line and headers, without the blank line that ends them
+	 */
+	private static String readHead(InputStream in) throws IOException {
+		byte[] head = new byte[MAX_HEAD_SIZE];
+		int length = 0;
+
+		while (length < 4 || head[length - 4] != '\r' || head[length - 3] != '\n'
+				|| head[length - 2] != '\r' || head[length - 1] != '\n') {
+			int b = in.read();
+
+			if (b < 0) {
+				throw new SocketException("Connection closed");
+			} else if (length == head.length) {
+				throw new HttpException(431, "Request line and headers over " + MAX_HEAD_SIZE
+						+ " bytes");
+			}
+
+			head[length++] = (byte) b;
+		}
+
+		return new String(head, 0, length - 4, CHARSET);
+	}
+
+	private static byte[] readBody(InputStream in, Map<String, String> headers)
+			throws IOException {
+		String contentLength = headers.get("content-length");
+		if (contentLength == null) {
+			throw new HttpException(411, "Missing Content-Length");
+		}
+
+		long length;
+		try {
+			length = Long.parseLong(contentLength);
+		} catch (NumberFormatException e) {
+			throw new HttpException(400, "Invalid Content-Length");
+		}
+
+		if (length <= 0) {
+			throw new HttpException(400, "Missing image");
+		} else if (length > MAX_BODY_SIZE) {
+			throw new HttpException(413, "Image over " + MAX_BODY_SIZE + " bytes");
+		}
+
+		byte[] body = new byte[(int) length];
+		int offset = 0;
+
+		while (offset < body.length) {
+			int read = in.read(body, offset, body.length - offset);
+
+			if (read < 0) {
+				throw new HttpException(400, "Truncated body");
+			}
+
+			offset += read;
+		}
+
+		return body;
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+
+		for (String parameter : query.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals > 0) {
+				parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+			}
+		}
+
+		return parameters;
+	}
+
+	/**
+	 * @param status an HTTP status code
+	 * @return the standard reason phrase for the status, which never carries request details
+	 */
+	private static String getReason(int status) {
+		switch (status) {
+			case 200:
+				return "OK";
+			case 304:
+				return "Not Modified";
+			case 400:
+				return "Bad Request";
+			case 404:
+				return "Not Found";
+			case 405:
+				return "Method Not Allowed";
+			case 411:
+				return "Length Required";
+			case 413:
+				return "Payload Too Large";
+			case 422:
+				return "Unprocessable Entity";
+			case 431:
+				return "Request Header Fields Too Large";
+			default:
+				return "Internal Server Error";
+		}
+	}
+
+	private static void writeResponse(OutputStream out, int status, String reason,
+	                                  String contentType, byte[] body, String etag)
+			throws IOException {
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+		head.append("Connection: close\r\n");
+
+		if (etag != null) {
+			head.append("ETag: ").append(etag).append("\r\n");
+		}
+		if (contentType != null) {
+			head.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		head.append("Content-Length: ").append(body != null ? body.length : 0).append("\r\n");
+		head.append("\r\n");
+
+		out.write(head.toString().getBytes(CHARSET));
+		if (body != null) {
+			out.write(body);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing else to do.
+		}
+	}
+
+	/**
+	 * An error that is reported to the client with an HTTP status. The message is a detail for
+	 * the body of the response.
+	 */
+	private static class HttpException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		final int status;
+
+		HttpException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Runs a {@link FadeServer} on the loopback interface while the service is started, so that
+ * other processes on the device can fade images over HTTP. For example, with adb forwarding:
+ * <pre>
+ * adb forward tcp:8765 tcp:8765
+ * curl --data-binary @photo.jpg -o faded.jpg "http://127.0.0.1:8765/fade?fade=0.3&amp;size=1024"
+ * curl http://127.0.0.1:8765/stats
+ * </pre>
+ */
+public class FadeService extends Service {
+
+	private static final String TAG = FadeService.class.getSimpleName();
+
+	public static final int DEFAULT_PORT = 8765;
+
+	/**
+	 * The fraction of the maximum heap that the cached renditions may use.
+	 */
+	private static final int CACHE_FRACTION = 8;
+
+	private static boolean sRunning;
+
+	private FadeServer mServer;
+
+	/**
+	 * @param context the context to use
+	 * @param run     whether to start or stop the server
+	 */
+	public static void setRunning(Context context, boolean run) {
+		Intent intent = new Intent(context, FadeService.class);
+
+		if (run) {
+			context.startService(intent);
+		} else {
+			context.stopService(intent);
+		}
+	}
+
+	/**
+	 * @return whether or not the server is running in this process
+	 */
+	public static synchronized boolean isRunning() {
+		return sRunning;
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		int handlers = BatchService.calculateWorkerCount(Runtime.getRuntime().maxMemory(),
+				Runtime.getRuntime().availableProcessors());
+		RenditionCache cache = new RenditionCache(Runtime.getRuntime().maxMemory()
+				/ CACHE_FRACTION);
+
+		mServer = new FadeServer(new FadeServer.Renderer() {
+			@Override
+			public byte[] render(byte[] image, float fade, boolean linear, int size)
+					throws IOException {
+				return FadeService.render(image, fade, linear, size);
+			}
+		}, cache, handlers);
+
+		try {
+			mServer.start(DEFAULT_PORT);
+			Log.i(TAG, "Listening on 127.0.0.1:" + mServer.getPort() + " with " + handlers
+					+ " handlers");
+
+			synchronized (FadeService.class) {
+				sRunning = true;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not start the fade server", e);
+			stopSelf();
+		}
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		return START_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		mServer.stop();
+
+		synchronized (FadeService.class) {
+			sRunning = false;
+		}
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	/**
+	 * Fades an image for the server. Runs on a handler thread.
+	 */
+	private static byte[] render(byte[] image, float fade, boolean linear, int size)
+			throws IOException {
+		JpegHeader header = JpegHeader.parse(image, 0, image.length);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(image.length);
+
+		// Every format gets the same default, whichever way it is faded.
+		if (size == 0) {
+			size = FadeExporter.DEFAULT_SIZE;
+		}
+
+		// A gamma fade that would keep every pixel can skip decoding entirely, as in the export.
+		if (!linear && JpegFadeTranscoder.canTranscode(header)
+				&& ImageUtil.isDecodedAtFullSize(header, size, size)) {
+			Tracer.begin("transcode");
+			try {
+				new JpegFadeTranscoder(fade).transcode(image, 0, image.length, out);
+				return out.toByteArray();
+			} catch (IOException e) {
+				Log.w(TAG, "Could not transcode, fading the pixels instead", e);
+				out.reset();
+			} finally {
+				Tracer.end();
+			}
+		}
+
+		Bitmap bitmap;
+		try {
+			bitmap = ImageUtil.decodeSampledBitmap(image, header, size, size, true);
+		} catch (OutOfMemoryError e) {
+			throw new IOException("Not enough memory to decode");
+		}
+
+		if (bitmap == null) {
+			throw new IOException("Could not decode");
+		}
+
+		try {
+			FadeExporter.apply(bitmap, new FadeKernel(fade, linear));
+			bitmap = FadeExporter.orient(bitmap, header != null
+					? header.getOrientation() : ExifReader.ORIENTATION_NORMAL);
+
+			if (!bitmap.compress(Bitmap.CompressFormat.JPEG, FadeExporter.JPEG_QUALITY, out)) {
+				throw new IOException("Could not encode");
+			}
+		} finally {
+			bitmap.recycle();
+		}
+
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Fades each {@link Strip} that passes through, with a {@link FadeKernel} and an optional mask.
+ */
+public class FadeStage extends StripStage {
+
+	private final FadeKernel mKernel;
+	private final byte[] mMask;
+
+	/**
+	 * @param kernel the fade to apply
+	 * @param mask   a mask of {@link FadeMask#SIZE} laid out over the image, or null
+	 */
+	public FadeStage(FadeKernel kernel, byte[] mask) {
+		mKernel = kernel;
+		mMask = mask;
+	}
+
+	@Override
+	protected void process(Strip strip) {
+		int width = strip.getWidth();
+
+		Tracer.begin("fade strip");
+		try {
+			if (mMask != null) {
+				mKernel.apply(strip.getPixels(), width, strip.getRows(), strip.getTop(),
+						strip.getImageHeight(), mMask, FadeMask.SIZE);
+			} else {
+				mKernel.apply(strip.getPixels(), 0, width * strip.getRows());
+			}
+		} finally {
+			Tracer.end();
+		}
+	}
+}
@@ -17,6 +17,7 @@ package com.eleong.fadefilter;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.net.Uri;
@@ -31,12 +32,24 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 
 
 public class FilterActivity extends Activity {
 
 	public static final String STATE_IMAGE_URI = "com.eleong.fadefilter.image_uri";
 	public static final String STATE_FADE = "com.eleong.fadefilter.fade";
+	public static final String STATE_LINEAR = "com.eleong.fadefilter.linear";
+	public static final String STATE_MASK = "com.eleong.fadefilter.mask";
+	public static final String STATE_RENDITIONS = "com.eleong.fadefilter.renditions";
 
 	/**
 	 * Arbitrary maximum value for the {@link android.widget.SeekBar} because it must be an integer.
@@ -54,6 +67,16 @@ public class FilterActivity extends Activity {
 	 */
 	private static final int RESULT_GALLERY_KITKAT = 101;
 
+	/**
+	 * The maximum size of the compressed texture cache, in bytes.
+	 */
+	private static final long TEXTURE_CACHE_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * The name of the exported trace, see {@link Tracer}.
+	 */
+	private static final String TRACE_NAME = "trace.json";
+
 	/**
 	 * Displays the faded image.
 	 */
@@ -71,15 +94,38 @@ public class FilterActivity extends Activity {
 	 * Path to the image.
 	 */
 	private Uri mImageUri;
+	/**
+	 * Whether or not the fade is applied in linear light.
+	 */
+	private boolean mLinear;
+	/**
+	 * The type of mask that scales the fade, see {@link FadeMask}.
+	 */
+	private int mMaskType = FadeMask.TYPE_NONE;
+	/**
+	 * Whether or not batches also save a preview and a thumbnail of each image.
+	 */
+	private boolean mRenditions;
+	/**
+	 * Whether or not images are loaded as 16-bit textures to save memory.
+	 */
+	private boolean mLowMemory;
+	/**
+	 * Compressed textures of images that have been viewed before.
+	 */
+	private Etc1Cache mTextureCache;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_filter);
 
+		SystraceListener.install();
+
 		mFadedView = (RatioGLSurfaceView) findViewById(R.id.faded);
 		mFadedView.setEGLContextClientVersion(2);
-		mFadeRenderer = new FadeRenderer();
+		mFadeRenderer = new FadeRenderer(PreviewScaleController.getFrameBudget(
+				getWindowManager().getDefaultDisplay().getRefreshRate()));
 		mFadedView.setRenderer(mFadeRenderer);
 		// Only update when necessary to reduce power consumption.
 		mFadedView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
@@ -92,6 +138,8 @@ public class FilterActivity extends Activity {
 		mFadeSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
 			@Override
 			public void onProgressChanged(SeekBar seekBar, final int progress, boolean fromUser) {
+				Tracer.instant("fade", (float) progress / MAX_FADE_VALUE);
+
 				updateRenderer(new Runnable() {
 					@Override
 					public void run() {
@@ -102,12 +150,38 @@ public class FilterActivity extends Activity {
 
 			@Override
 			public void onStartTrackingTouch(SeekBar seekBar) {
+				// Instant events, as a span across callbacks would not nest with the spans that
+				// are mirrored into systrace.
+				Tracer.instant("slider drag start", (float) seekBar.getProgress() / MAX_FADE_VALUE);
+
+				updateRenderer(new Runnable() {
+					@Override
+					public void run() {
+						mFadeRenderer.setDragging(true);
+					}
+				});
 
+				// Steady frames, so the renderer can time them by their interval.
+				if (mFadedView != null) {
+					mFadedView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+				}
 			}
 
 			@Override
 			public void onStopTrackingTouch(SeekBar seekBar) {
+				Tracer.instant("slider drag end", (float) seekBar.getProgress() / MAX_FADE_VALUE);
+
+				// Redraws at full resolution.
+				updateRenderer(new Runnable() {
+					@Override
+					public void run() {
+						mFadeRenderer.setDragging(false);
+					}
+				});
 
+				if (mFadedView != null) {
+					mFadedView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+				}
 			}
 		});
 
@@ -118,6 +192,9 @@ public class FilterActivity extends Activity {
 
 		mMinImageSize = Math.min(size.x, size.y);
 
+		mLowMemory = ImageUtil.isLowMemoryDevice(this);
+		mTextureCache = new Etc1Cache(new File(getCacheDir(), "etc1"), TEXTURE_CACHE_SIZE);
+
 		if (savedInstanceState != null) {
 			// Load the image path and fade value if possible.
 
@@ -132,8 +209,65 @@ public class FilterActivity extends Activity {
 			float fade = savedInstanceState.getFloat(STATE_FADE);
 			mFadeSeekBar.setProgress((int) (fade * MAX_FADE_VALUE));
 
-		} else if (mEmptyTextView != null) {
-			mEmptyTextView.setVisibility(View.VISIBLE);
+			mLinear = savedInstanceState.getBoolean(STATE_LINEAR);
+			mFadeRenderer.setLinear(mLinear);
+
+			mMaskType = savedInstanceState.getInt(STATE_MASK, FadeMask.TYPE_NONE);
+			mFadeRenderer.setMask(FadeMask.create(mMaskType));
+
+			mRenditions = savedInstanceState.getBoolean(STATE_RENDITIONS);
+
+		} else {
+			// Start from the last settings, which also apply to images shared with a new activity.
+			SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+
+			float fade = preferences.getFloat(STATE_FADE, FadeRenderer.DEFAULT_FADE);
+			mFadeSeekBar.setProgress((int) (fade * MAX_FADE_VALUE));
+
+			mLinear = preferences.getBoolean(STATE_LINEAR, false);
+			mFadeRenderer.setLinear(mLinear);
+
+			mMaskType = preferences.getInt(STATE_MASK, FadeMask.TYPE_NONE);
+			mFadeRenderer.setMask(FadeMask.create(mMaskType));
+
+			mRenditions = preferences.getBoolean(STATE_RENDITIONS, false);
+
+			if (mEmptyTextView != null) {
+				mEmptyTextView.setVisibility(View.VISIBLE);
+			}
+
+			handleSendIntent(getIntent());
+		}
+	}
+
+	/**
+	 * Displays a single shared image, or fades multiple shared images in the background.
+	 *
+	 * @param intent the intent that started the activity
+	 */
+	private void handleSendIntent(Intent intent) {
+		if (intent == null) {
+			return;
+		}
+
+		if (Intent.ACTION_SEND.equals(intent.getAction())) {
+			Uri uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+
+			if (uri != null) {
+				// Loaded in onResume().
+				mImageUri = uri;
+			}
+		} else if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+			ArrayList<Uri> uris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+
+			if (uris != null && !uris.isEmpty()) {
+				BatchService.start(this, uris,
+						(float) mFadeSeekBar.getProgress() / MAX_FADE_VALUE, mLinear, mMaskType,
+						mRenditions);
+
+				Toast.makeText(this, getResources().getQuantityString(R.plurals.batch_started,
+						uris.size(), uris.size()), Toast.LENGTH_LONG).show();
+			}
 		}
 	}
 
@@ -141,6 +275,27 @@ public class FilterActivity extends Activity {
 	public boolean onCreateOptionsMenu(Menu menu) {
 		// Inflate the menu; this adds items to the action bar if it is present.
 		getMenuInflater().inflate(R.menu.menu_filter, menu);
+
+		MenuItem linearItem = menu.findItem(R.id.action_linear);
+		if (linearItem != null) {
+			linearItem.setChecked(mLinear);
+		}
+
+		MenuItem renditionsItem = menu.findItem(R.id.action_renditions);
+		if (renditionsItem != null) {
+			renditionsItem.setChecked(mRenditions);
+		}
+
+		MenuItem maskItem = menu.findItem(getMaskItemId(mMaskType));
+		if (maskItem != null) {
+			maskItem.setChecked(true);
+		}
+
+		MenuItem serverItem = menu.findItem(R.id.action_fade_server);
+		if (serverItem != null) {
+			serverItem.setChecked(FadeService.isRunning());
+		}
+
 		return true;
 	}
 
@@ -165,12 +320,82 @@ public class FilterActivity extends Activity {
 				startActivityForResult(intent, RESULT_GALLERY_KITKAT);
 			}
 
+			return true;
+		} else if (id == R.id.action_linear) {
+			mLinear = !item.isChecked();
+			item.setChecked(mLinear);
+
+			final boolean linear = mLinear;
+			updateRenderer(new Runnable() {
+				@Override
+				public void run() {
+					mFadeRenderer.setLinear(linear);
+				}
+			});
+
+			return true;
+		} else if (id == R.id.action_renditions) {
+			mRenditions = !item.isChecked();
+			item.setChecked(mRenditions);
+
+			return true;
+		} else if (id == R.id.action_mask_none || id == R.id.action_mask_graduated
+				|| id == R.id.action_mask_vignette) {
+			if (id == R.id.action_mask_graduated) {
+				mMaskType = FadeMask.TYPE_GRADUATED;
+			} else if (id == R.id.action_mask_vignette) {
+				mMaskType = FadeMask.TYPE_VIGNETTE;
+			} else {
+				mMaskType = FadeMask.TYPE_NONE;
+			}
+			item.setChecked(true);
+
+			final byte[] mask = FadeMask.create(mMaskType);
+			updateRenderer(new Runnable() {
+				@Override
+				public void run() {
+					mFadeRenderer.setMask(mask);
+				}
+			});
+
+			return true;
+		} else if (id == R.id.action_export_trace) {
+			File directory = getExternalFilesDir(null);
+			new TraceTask().execute(new File(directory != null ? directory : getFilesDir(),
+					TRACE_NAME));
+
+			return true;
+		} else if (id == R.id.action_fade_server) {
+			boolean run = !item.isChecked();
+			item.setChecked(run);
+			FadeService.setRunning(this, run);
+
+			if (run) {
+				Toast.makeText(this, getString(R.string.fade_server_started,
+						FadeService.DEFAULT_PORT), Toast.LENGTH_SHORT).show();
+			}
+
 			return true;
 		}
 
 		return super.onOptionsItemSelected(item);
 	}
 
+	/**
+	 * @param maskType the type of mask
+	 * @return the id of the menu item that selects it
+	 */
+	private static int getMaskItemId(int maskType) {
+		switch (maskType) {
+			case FadeMask.TYPE_GRADUATED:
+				return R.id.action_mask_graduated;
+			case FadeMask.TYPE_VIGNETTE:
+				return R.id.action_mask_vignette;
+			default:
+				return R.id.action_mask_none;
+		}
+	}
+
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
 		if (mImageUri != null) {
@@ -181,6 +406,10 @@ public class FilterActivity extends Activity {
 			outState.putFloat(STATE_FADE, (float) mFadeSeekBar.getProgress() / MAX_FADE_VALUE);
 		}
 
+		outState.putBoolean(STATE_LINEAR, mLinear);
+		outState.putInt(STATE_MASK, mMaskType);
+		outState.putBoolean(STATE_RENDITIONS, mRenditions);
+
 		super.onSaveInstanceState(outState);
 	}
 
@@ -188,6 +417,13 @@ public class FilterActivity extends Activity {
 	protected void onPause() {
 		super.onPause();
 
+		getPreferences(MODE_PRIVATE).edit()
+				.putFloat(STATE_FADE, (float) mFadeSeekBar.getProgress() / MAX_FADE_VALUE)
+				.putBoolean(STATE_LINEAR, mLinear)
+				.putInt(STATE_MASK, mMaskType)
+				.putBoolean(STATE_RENDITIONS, mRenditions)
+				.apply();
+
 		if (mFadedView != null) {
 			mFadedView.onPause();
 		}
@@ -236,23 +472,69 @@ public class FilterActivity extends Activity {
 	/**
 	 * Loads and displays an image, and hides the "no image" text.
 	 */
-	private class ImageTask extends AsyncTask<Uri, Void, Bitmap> {
+	private class ImageTask extends AsyncTask<Uri, Void, TextureImage> {
 
 		@Override
-		protected Bitmap doInBackground(Uri... params) {
+		protected TextureImage doInBackground(Uri... params) {
 			Uri imageUri = params[0];
 
-			return ImageUtil.loadFromUri(getContentResolver(), imageUri, mMinImageSize);
+			// Read the file once, then take the header, cache key and pixels from memory.
+			byte[] data = ImageUtil.readFromUri(getContentResolver(), imageUri);
+
+			if (data == null) {
+				return null;
+			}
+
+			JpegHeader header = JpegHeader.parse(data, 0, data.length);
+
+			// The orientation is applied when drawing, so the pixels never need to be rotated.
+			int orientation = header != null
+					? header.getOrientation() : ExifReader.ORIENTATION_NORMAL;
+
+			// Skip decoding entirely if the image has been seen before.
+			String key = Etc1Cache.createKey(data, data.length, mMinImageSize);
+			TextureImage cached = mTextureCache.get(key);
+
+			if (cached != null) {
+				cached.setOrientation(orientation);
+				return cached;
+			}
+
+			Bitmap bitmap = ImageUtil.decodeSampledBitmap(data, header, mMinImageSize,
+					mMinImageSize);
+
+			if (bitmap == null) {
+				return null;
+			}
+
+			TextureImage image;
+			if (mLowMemory) {
+				// Keep only the 16-bit copy around.
+				image = TextureImage.fromRgb565(ImageUtil.toRgb565(bitmap, true),
+						bitmap.getWidth(), bitmap.getHeight());
+			} else {
+				image = TextureImage.fromBitmap(bitmap);
+			}
+			image.setOrientation(orientation);
+
+			if (mLowMemory) {
+				// Caching would keep the full size bitmap alive next to the 16-bit copy.
+				bitmap.recycle();
+			} else {
+				mTextureCache.putAsync(key, bitmap, false);
+			}
+
+			return image;
 		}
 
 		@Override
-		protected void onPostExecute(final Bitmap bitmap) {
-			if (bitmap != null) {
+		protected void onPostExecute(final TextureImage image) {
+			if (image != null) {
 				if (mFadedView != null) {
 					mFadedView.setVisibility(View.VISIBLE);
 
 					// Update the ratio.
-					mFadedView.setVideoWidthHeightRatio((float) bitmap.getWidth() / bitmap.getHeight());
+					mFadedView.setVideoWidthHeightRatio(image.getDisplayAspectRatio());
 				}
 
 				if (mEmptyTextView != null) {
@@ -263,7 +545,7 @@ public class FilterActivity extends Activity {
 				updateRenderer(new Runnable() {
 					@Override
 					public void run() {
-						mFadeRenderer.loadTexture(bitmap);
+						mFadeRenderer.loadTexture(image);
 					}
 				});
 			} else if (mEmptyTextView != null) {
@@ -272,4 +554,42 @@ public class FilterActivity extends Activity {
 			}
 		}
 	}
+
+	/**
+	 * Writes the recent trace events to a file that can be opened in Perfetto.
+	 */
+	private class TraceTask extends AsyncTask<File, Void, File> {
+
+		@Override
+		protected File doInBackground(File... params) {
+			File file = params[0];
+
+			try {
+				Writer writer = new BufferedWriter(
+						new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+				try {
+					Tracer.export(writer);
+				} finally {
+					writer.close();
+				}
+			} catch (IOException e) {
+				return null;
+			}
+
+			return file;
+		}
+
+		@Override
+		protected void onPostExecute(File file) {
+			if (file != null) {
+				Toast.makeText(FilterActivity.this,
+						getString(R.string.trace_exported, file.getPath()), Toast.LENGTH_LONG)
+						.show();
+			} else {
+				Toast.makeText(FilterActivity.this, R.string.trace_failed, Toast.LENGTH_SHORT)
+						.show();
+			}
+		}
+	}
 }
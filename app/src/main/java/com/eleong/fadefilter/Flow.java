@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * The interfaces of {@code java.util.concurrent.Flow}, which Android only has from API 30. They
+ * have the same names, methods and rules, so moving to the platform version later only changes
+ * the imports.
+ * <p/>
+ * Items only flow after a subscriber requests them, and a publisher never sends more than has
+ * been requested. Signals to a subscriber are never concurrent.
+ */
+public final class Flow {
+
+	private Flow() {
+	}     // do not instantiate
+
+	/**
+	 * A producer of items that subscribers receive.
+	 *
+	 * @param <T> the type of item
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Adds a subscriber, which is sent {@link Subscriber#onSubscribe(Subscription)} first.
+		 *
+		 * @param subscriber the subscriber
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * A receiver of items.
+	 *
+	 * @param <T> the type of item
+	 */
+	public interface Subscriber<T> {
+		/**
+		 * Called before any other method, with the subscription used to request items.
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called with the next item, no more often than items were requested.
+		 */
+		void onNext(T item);
+
+		/**
+		 * Called once if the publisher fails. Nothing follows it.
+		 */
+		void onError(Throwable throwable);
+
+		/**
+		 * Called once when there are no more items. Nothing follows it.
+		 */
+		void onComplete();
+	}
+
+	/**
+	 * The link between a publisher and one subscriber.
+	 */
+	public interface Subscription {
+		/**
+		 * Adds to the number of items the subscriber is ready for.
+		 *
+		 * @param n the number of items, which must be positive
+		 */
+		void request(long n);
+
+		/**
+		 * Stops sending items, possibly after some that were already on their way.
+		 */
+		void cancel();
+	}
+
+	/**
+	 * A stage that is both a subscriber and a publisher.
+	 *
+	 * @param <T> the type of item received
+	 * @param <R> the type of item published
+	 */
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+	}
+}
@@ -15,15 +15,24 @@
  */
 package com.eleong.fadefilter;
 
+import android.app.ActivityManager;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
-import java.io.FileDescriptor;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -49,6 +58,21 @@ public class ImageUtil {
 	 */
 	private static final int DEFAULT_MAX_BITMAP_SIZE = 2048;
 
+	/**
+	 * Devices with a memory class at or below this value, in megabytes, use 16-bit textures.
+	 */
+	private static final int LOW_MEMORY_CLASS = 64;
+
+	/**
+	 * The fraction of the maximum heap that a single decoded bitmap may use by default.
+	 */
+	private static final int DECODE_BUDGET_FRACTION = 4;
+
+	/**
+	 * The size of a decoded ARGB 8888 pixel, in bytes.
+	 */
+	private static final int BYTES_PER_PIXEL = 4;
+
 	/**
 	 * Maximum OpenGL texture size.
 	 */
@@ -96,86 +120,244 @@ public class ImageUtil {
 	}
 
 	/**
+	 * Reads an entire image into memory with a single read, so that the header, the cache key and
+	 * the pixels can all come from the same bytes instead of seeking through the file again.
+	 *
 	 * @param contentResolver the content resolver to use
 	 * @param imageUri        document uri to the image
-	 * @param reqSize         the required size of the bitmap.
-	 *                        -1 if the entire bitmap should be loaded
-	 * @return the bitmap from the uri
+	 * @return the encoded image, or null if it could not be read
 	 */
-	public static Bitmap loadFromUri(ContentResolver contentResolver, Uri imageUri, int reqSize) {
+	public static byte[] readFromUri(ContentResolver contentResolver, Uri imageUri) {
+		Tracer.begin("read");
 		try {
-			Bitmap bitmap;
 			ParcelFileDescriptor parcelFileDescriptor =
 					contentResolver.openFileDescriptor(imageUri, "r");
-			FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
 
-			bitmap = ImageUtil.decodeSampledBitmapFromResource(fileDescriptor, reqSize, reqSize);
-
-			parcelFileDescriptor.close();
-
-			return bitmap;
+			try {
+				return readFully(new FileInputStream(parcelFileDescriptor.getFileDescriptor()),
+						parcelFileDescriptor.getStatSize());
+			} finally {
+				parcelFileDescriptor.close();
+			}
 		} catch (IOException e) {
 			Log.e(TAG, "Could not load file from: " + imageUri.toString(), e);
+		} finally {
+			Tracer.end();
 		}
 
 		return null;
 	}
 
 	/**
+	 * @param inputStream the stream to read
+	 * @param size        the size of the stream, in bytes, or -1 if it is not known
+	 * @return everything in the stream
+	 * @throws IOException if the stream could not be read
+	 */
+	public static byte[] readFully(InputStream inputStream, long size) throws IOException {
+		if (size >= 0 && size <= Integer.MAX_VALUE) {
+			byte[] data = new byte[(int) size];
+			int offset = 0;
+
+			while (offset < data.length) {
+				int read = inputStream.read(data, offset, data.length - offset);
+
+				if (read < 0) {
+					return Arrays.copyOf(data, offset);
+				}
+
+				offset += read;
+			}
+
+			return data;
+		}
+
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte[] buffer = new byte[16 * 1024];
+		int read;
+
+		while ((read = inputStream.read(buffer)) != -1) {
+			outputStream.write(buffer, 0, read);
+		}
+
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * Decodes an image that is already in memory, using the dimensions from its JPEG header so
+	 * that only one decode is needed.
+	 * <p/>
 	 * Adapted from:
 	 * http://developer.android.com/training/displaying-bitmaps/load-bitmap.html
 	 *
-	 * @param fileDescriptor the image to load
-	 * @param reqWidth       the requested width, in pixels
-	 * @param reqHeight      the requested height, in pixels
+	 * @param data      the encoded image
+	 * @param header    the JPEG header of the image, or null if it could not be parsed
+	 * @param reqWidth  the requested width, in pixels
+	 * @param reqHeight the requested height, in pixels
 	 * @return a sampled bitmap that meets the requirements
 	 */
-	public static Bitmap decodeSampledBitmapFromResource(
-			FileDescriptor fileDescriptor, int reqWidth, int reqHeight) {
+	public static Bitmap decodeSampledBitmap(byte[] data, JpegHeader header, int reqWidth,
+	                                         int reqHeight) {
+		return decodeSampledBitmap(data, header, reqWidth, reqHeight, false);
+	}
 
-		// First decode with inJustDecodeBounds=true to check dimensions
+	/**
+	 * @param data      the encoded image
+	 * @param header    the JPEG header of the image, or null if it could not be parsed
+	 * @param reqWidth  the requested width, in pixels
+	 * @param reqHeight the requested height, in pixels
+	 * @param mutable   whether or not the pixels of the bitmap need to be modified
+	 * @return a sampled bitmap that meets the requirements
+	 */
+	public static Bitmap decodeSampledBitmap(byte[] data, JpegHeader header, int reqWidth,
+	                                         int reqHeight, boolean mutable) {
+		return decodeSampledBitmap(data, header, reqWidth, reqHeight, mutable, getDecodeBudget());
+	}
+
+	/**
+	 * Decodes an image to exactly the size needed to cover the requested size, subsampling as
+	 * far as possible and scaling the rest of the way in the same decode. See {@link DecodePlan}.
+	 *
+	 * @param data      the encoded image
+	 * @param header    the JPEG header of the image, or null if it could not be parsed
+	 * @param reqWidth  the requested width, in pixels
+	 * @param reqHeight the requested height, in pixels
+	 * @param mutable   whether or not the pixels of the bitmap need to be modified
+	 * @param budget    the maximum size of the decoded bitmap, in bytes
+	 * @return a bitmap that meets the requirements
+	 */
+	public static Bitmap decodeSampledBitmap(byte[] data, JpegHeader header, int reqWidth,
+	                                         int reqHeight, boolean mutable, long budget) {
 		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+		options.inMutable = mutable;
+
+		int width;
+		int height;
+
+		if (header != null) {
+			width = header.getWidth();
+			height = header.getHeight();
+		} else {
+			// Not a JPEG, so fall back to asking the platform decoder for the dimensions.
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			options.inJustDecodeBounds = false;
+
+			width = options.outWidth;
+			height = options.outHeight;
+		}
 
-		// Calculate inSampleSize
-		options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
 
-		// Decode bitmap with inSampleSize set
-		options.inJustDecodeBounds = false;
-		return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+		DecodePlan plan = DecodePlan.create(width, height, reqWidth, reqHeight, sMaxBitmapSize,
+				BYTES_PER_PIXEL, budget);
+
+		options.inSampleSize = plan.getSampleSize();
+
+		if (plan.isScaled()) {
+			// Scale from the subsampled size to the target size while decoding.
+			options.inScaled = true;
+			options.inDensity = plan.getDensity();
+			options.inTargetDensity = plan.getTargetDensity();
+		}
+
+		Bitmap bitmap;
+
+		Tracer.begin("decode");
+		try {
+			bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		} finally {
+			Tracer.end();
+		}
+
+		if (bitmap != null) {
+			Log.d(TAG, "Planned " + plan + ", decoded " + bitmap.getWidth() + "x"
+					+ bitmap.getHeight() + ", " + bitmap.getByteCount() + " bytes");
+		}
+
+		return bitmap;
 	}
 
 	/**
-	 * @param options   contains the raw height and width of the image
-	 * @param reqWidth  the desired width
-	 * @param reqHeight the desired height
-	 * @return the value of {@link android.graphics.BitmapFactory.Options#inSampleSize}
-	 * that ensures the resulting bitmap is larger than the desired width and height
-	 */
-	public static int calculateInSampleSize(
-			BitmapFactory.Options options, int reqWidth, int reqHeight) {
-		// Raw height and width of image
-		final int height = options.outHeight;
-		final int width = options.outWidth;
-		int inSampleSize = 1;
-
-		if (height > reqHeight || width > reqWidth) {
-
-			final int halfHeight = height / 2;
-			final int halfWidth = width / 2;
-
-			// Calculate the largest inSampleSize value that is a power of 2 and keeps both
-			// height and width larger than the requested height and width.
-			// Make sure bitmap can be rendered by ImageView by checking dimensions
-			while (((halfHeight / inSampleSize) > reqHeight
-					&& (halfWidth / inSampleSize) > reqWidth)
-					|| (height / inSampleSize) > sMaxBitmapSize
-					|| (width / inSampleSize) > sMaxBitmapSize) {
-				inSampleSize *= 2;
-			}
+	 * @param header    the JPEG header of the image
+	 * @param reqWidth  the requested width, in pixels
+	 * @param reqHeight the requested height, in pixels
+	 * @return whether or not {@link #decodeSampledBitmap(byte[], JpegHeader, int, int, boolean)}
+	 * would decode the image at its full size
+	 */
+	public static boolean isDecodedAtFullSize(JpegHeader header, int reqWidth, int reqHeight) {
+		DecodePlan plan = planDecode(header, reqWidth, reqHeight);
+
+		return plan.getTargetWidth() == header.getWidth()
+				&& plan.getTargetHeight() == header.getHeight();
+	}
+
+	/**
+	 * @param header    the JPEG header of the image
+	 * @param reqWidth  the requested width, in pixels
+	 * @param reqHeight the requested height, in pixels
+	 * @return the plan that {@link #decodeSampledBitmap(byte[], JpegHeader, int, int, boolean)}
+	 * would follow
+	 */
+	public static DecodePlan planDecode(JpegHeader header, int reqWidth, int reqHeight) {
+		return DecodePlan.create(header.getWidth(), header.getHeight(), reqWidth, reqHeight,
+				sMaxBitmapSize, BYTES_PER_PIXEL, getDecodeBudget());
+	}
+
+	/**
+	 * @return the default maximum size of a decoded bitmap, in bytes
+	 */
+	public static long getDecodeBudget() {
+		return Runtime.getRuntime().maxMemory() / DECODE_BUDGET_FRACTION;
+	}
+
+	/**
+	 * Devices that are short on memory should load images as 16-bit RGB 565 pixels, which halves
+	 * the memory used and the bandwidth needed to transfer the image to the GPU.
+	 *
+	 * @param context the context to use
+	 * @return whether or not the device is in the low memory class
+	 */
+	public static boolean isLowMemoryDevice(Context context) {
+		ActivityManager activityManager =
+				(ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+				&& activityManager.isLowRamDevice()) {
+			return true;
+		}
+
+		return activityManager.getMemoryClass() <= LOW_MEMORY_CLASS;
+	}
+
+	/**
+	 * Converts a bitmap to tightly packed RGB 565 pixels, one row at a time so that the only
+	 * extra memory needed is the destination buffer.
+	 *
+	 * @param bitmap the bitmap to convert
+	 * @param dither whether or not to apply an ordered dither to hide banding
+	 * @return a direct buffer of RGB 565 pixels, in native order, ready for OpenGL
+	 */
+	public static ShortBuffer toRgb565(Bitmap bitmap, boolean dither) {
+		final int width = bitmap.getWidth();
+		final int height = bitmap.getHeight();
+
+		ShortBuffer pixels = ByteBuffer.allocateDirect(width * height * Rgb565.BYTES_PER_PIXEL)
+				.order(ByteOrder.nativeOrder())
+				.asShortBuffer();
+
+		int[] argbRow = new int[width];
+		short[] row = new short[width];
+
+		for (int y = 0; y < height; y++) {
+			bitmap.getPixels(argbRow, 0, width, 0, y, width, 1);
+			Rgb565.convertRow(argbRow, 0, row, 0, width, y, dither);
+			pixels.put(row);
 		}
 
-		return inSampleSize;
+		pixels.position(0);
+		return pixels;
 	}
 }
@@ -0,0 +1,928 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Fades a baseline JPEG without decoding it to pixels.
+ * <p/>
+ * The fade f(x) = a + (1 - a) * x is affine, and so is the conversion from RGB to YCbCr, so in
+ * YCbCr the fade becomes Y' = a + (1 - a) * Y for luma and C' = (1 - a) * C for the centered
+ * chroma. The DCT is linear, so every coefficient is scaled by (1 - a), and the luma DC term is
+ * shifted by 1016 * a (eight times the level-shifted value of white, 127). Only the entropy
+ * coding is undone. There is no IDCT, no DCT and no requantization to a new table, so the only
+ * loss is the rounding of each coefficient to its original quantization step.
+ * <p/>
+ * Blocks are decoded, faded and encoded one at a time, so memory use does not depend on the size
+ * of the image. The output is written with the standard Huffman tables from Annex K of the JPEG
+ * specification, since the original tables may have no codes for the faded values. Restart
+ * intervals are kept. Everything outside the entropy-coded data, including the EXIF segment, is
+ * copied unchanged.
+ * <p/>
+ * This class has no Android dependencies.
+ */
+public class JpegFadeTranscoder {
+
+	private static final int MARKER_SOF0 = 0xC0;
+	private static final int MARKER_SOF1 = 0xC1;
+	private static final int MARKER_DHT = 0xC4;
+	private static final int MARKER_JPG = 0xC8;
+	private static final int MARKER_DAC = 0xCC;
+	private static final int MARKER_RST0 = 0xD0;
+	private static final int MARKER_RST7 = 0xD7;
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int MARKER_DQT = 0xDB;
+	private static final int MARKER_DRI = 0xDD;
+	private static final int MARKER_APP14 = 0xEE;
+
+	/**
+	 * Eight times the level-shifted value of white, the amount the luma DC term moves at full
+	 * fade.
+	 */
+	private static final float DC_WHITE = 8 * 127;
+
+	private static final int BLOCK_SIZE = 64;
+
+	/**
+	 * The largest magnitude categories of 8-bit baseline coefficients. The output tables have no
+	 * codes for anything larger.
+	 */
+	private static final int MAX_DC_CATEGORY = 11;
+	private static final int MAX_AC_CATEGORY = 10;
+
+	/**
+	 * The standard Huffman tables, as the number of codes of each length from 1 to 16 followed
+	 * by the symbols in order of their codes.
+	 */
+	private static final int[] DC_LUMINANCE_BITS = {
+			0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+	private static final int[] DC_LUMINANCE_VALUES = {
+			0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+	private static final int[] DC_CHROMINANCE_BITS = {
+			0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+	private static final int[] DC_CHROMINANCE_VALUES = {
+			0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+	private static final int[] AC_LUMINANCE_BITS = {
+			0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7D};
+	private static final int[] AC_LUMINANCE_VALUES = {
+			0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+			0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+			0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xA1, 0x08,
+			0x23, 0x42, 0xB1, 0xC1, 0x15, 0x52, 0xD1, 0xF0,
+			0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0A, 0x16,
+			0x17, 0x18, 0x19, 0x1A, 0x25, 0x26, 0x27, 0x28,
+			0x29, 0x2A, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+			0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+			0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+			0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+			0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+			0x7A, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+			0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+			0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7,
+			0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6,
+			0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3, 0xC4, 0xC5,
+			0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4,
+			0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA, 0xE1, 0xE2,
+			0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA,
+			0xF1, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+			0xF9, 0xFA};
+	private static final int[] AC_CHROMINANCE_BITS = {
+			0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+	private static final int[] AC_CHROMINANCE_VALUES = {
+			0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+			0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+			0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+			0xA1, 0xB1, 0xC1, 0x09, 0x23, 0x33, 0x52, 0xF0,
+			0x15, 0x62, 0x72, 0xD1, 0x0A, 0x16, 0x24, 0x34,
+			0xE1, 0x25, 0xF1, 0x17, 0x18, 0x19, 0x1A, 0x26,
+			0x27, 0x28, 0x29, 0x2A, 0x35, 0x36, 0x37, 0x38,
+			0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+			0x49, 0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+			0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+			0x69, 0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+			0x79, 0x7A, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+			0x88, 0x89, 0x8A, 0x92, 0x93, 0x94, 0x95, 0x96,
+			0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5,
+			0xA6, 0xA7, 0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4,
+			0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3,
+			0xC4, 0xC5, 0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2,
+			0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA,
+			0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9,
+			0xEA, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+			0xF9, 0xFA};
+
+	private static final HuffmanTable OUT_DC_LUMINANCE =
+			new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+	private static final HuffmanTable OUT_AC_LUMINANCE =
+			new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+	private static final HuffmanTable OUT_DC_CHROMINANCE =
+			new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+	private static final HuffmanTable OUT_AC_CHROMINANCE =
+			new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+	/**
+	 * A Huffman table, with what is needed both to decode and to encode.
+	 */
+	private static class HuffmanTable {
+		/**
+		 * The number of bits looked up at once when decoding.
+		 */
+		private static final int LOOKAHEAD = 9;
+
+		private final int[] mBits;
+		private final int[] mValues;
+		/**
+		 * For each code that fits in {@link #LOOKAHEAD} bits, the code length in the high byte
+		 * and the symbol in the low byte, indexed by the code padded with every possible suffix.
+		 */
+		private final int[] mLookup = new int[1 << LOOKAHEAD];
+		/**
+		 * The largest code of each length, or -1 if there are none.
+		 */
+		private final int[] mMaxCode = new int[17];
+		/**
+		 * The offset of the first symbol of each length, less the first code of that length.
+		 */
+		private final int[] mValueOffset = new int[17];
+		/**
+		 * The code and code length of each symbol, for encoding.
+		 */
+		private final int[] mCodes = new int[256];
+		private final int[] mSizes = new int[256];
+
+		HuffmanTable(int[] bits, int[] values) {
+			mBits = bits;
+			mValues = values;
+
+			int code = 0;
+			int k = 0;
+
+			for (int length = 1; length <= 16; length++) {
+				int count = bits[length - 1];
+
+				mValueOffset[length] = k - code;
+
+				for (int i = 0; i < count; i++, k++, code++) {
+					int symbol = values[k];
+					mCodes[symbol] = code;
+					mSizes[symbol] = length;
+
+					if (length <= LOOKAHEAD) {
+						int shift = LOOKAHEAD - length;
+						for (int j = 0; j < 1 << shift; j++) {
+							mLookup[(code << shift) | j] = (length << 8) | symbol;
+						}
+					}
+				}
+
+				mMaxCode[length] = count > 0 ? code - 1 : -1;
+				code <<= 1;
+			}
+		}
+	}
+
+	/**
+	 * A component of the frame.
+	 */
+	private static class Component {
+		int id;
+		int horizontalSampling;
+		int verticalSampling;
+		int quantTable;
+		/**
+		 * Whether the fade shifts the DC term, as for luma, or only scales it, as for chroma.
+		 */
+		boolean shiftDc;
+
+		/**
+		 * The Huffman tables of the current scan.
+		 */
+		HuffmanTable inDc;
+		HuffmanTable inAc;
+		HuffmanTable outDc;
+		HuffmanTable outAc;
+		/**
+		 * The DC predictors of the input and the output.
+		 */
+		int inPrediction;
+		int outPrediction;
+		/**
+		 * The amount the quantized DC term moves, for the current quantization table.
+		 */
+		float dcOffset;
+	}
+
+	/**
+	 * The amount of fade.
+	 */
+	private final float mFade;
+
+	/*
+	 * The state of a single transcode.
+	 */
+	private byte[] mData;
+	private int mPosition;
+	private int mEnd;
+	private OutputStream mOut;
+	private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+	private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+	private final int[][] mQuantTables = new int[4][];
+	private Component[] mComponents;
+	private int mWidth;
+	private int mHeight;
+	private int mMaxHorizontalSampling;
+	private int mMaxVerticalSampling;
+	private int mRestartInterval;
+	/**
+	 * The color transform from an Adobe segment, or -1 if there is none.
+	 */
+	private int mAdobeTransform;
+	private boolean mTablesWritten;
+
+	/*
+	 * The entropy decoder. Bits are read from the high end of mInBits.
+	 */
+	private int mInBits;
+	private int mInBitCount;
+	private boolean mInMarker;
+
+	/*
+	 * The entropy encoder. The output is buffered here rather than in a stream, since it is
+	 * written a byte at a time.
+	 */
+	private final byte[] mOutBuffer = new byte[16 * 1024];
+	private int mOutLength;
+	private int mOutBits;
+	private int mOutBitCount;
+
+	/**
+	 * @param fade the amount of fade, valid values range from 0.0 and 1.0, inclusive.
+	 */
+	public JpegFadeTranscoder(float fade) {
+		mFade = fade;
+	}
+
+	/**
+	 * @param header the JPEG header of the image, or null if it is not a JPEG
+	 * @return whether or not the image is a kind of JPEG that can be transcoded. A few rarer
+	 * kinds, such as arithmetic coding, are only detected by {@link #transcode}.
+	 */
+	public static boolean canTranscode(JpegHeader header) {
+		return header != null && !header.isProgressive() && header.getPrecision() == 8
+				&& (header.getComponentCount() == 1 || header.getComponentCount() == 3);
+	}
+
+	/**
+	 * Fades a JPEG. Nothing is buffered beyond the current block, so a failure may leave a
+	 * partial image in the output.
+	 *
+	 * @param data   the JPEG
+	 * @param offset the index of the first byte of the JPEG
+	 * @param length the size of the JPEG, in bytes
+	 * @param out    where to write the faded JPEG
+	 * @throws IOException if the JPEG is malformed or not baseline, or the output fails
+	 */
+	public synchronized void transcode(byte[] data, int offset, int length, OutputStream out)
+			throws IOException {
+		mData = data;
+		mPosition = offset;
+		mEnd = offset + length;
+		mOut = out;
+		mComponents = null;
+		mRestartInterval = 0;
+		mAdobeTransform = -1;
+		mTablesWritten = false;
+		mOutLength = 0;
+
+		try {
+			if (readByte() != 0xFF || readByte() != MARKER_SOI) {
+				throw new IOException("Not a JPEG");
+			}
+			writeMarker(MARKER_SOI);
+
+			int marker;
+			while ((marker = readMarker()) != MARKER_EOI) {
+				if (marker == MARKER_SOS) {
+					transcodeScan();
+				} else if (marker >= MARKER_RST0 && marker <= MARKER_RST7) {
+					// A stray restart marker has no segment.
+					continue;
+				} else {
+					int segmentStart = mPosition;
+					int segmentLength = readUnsignedShort();
+					int segmentEnd = segmentStart + segmentLength;
+
+					if (segmentLength < 2 || segmentEnd > mEnd) {
+						throw new IOException("Truncated segment");
+					}
+
+					if (marker == MARKER_DHT) {
+						// Replaced by the standard tables.
+						readHuffmanTables(segmentEnd);
+					} else {
+						if (marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+							readFrame();
+						} else if (isUnsupportedFrame(marker)) {
+							throw new IOException(String.format("Unsupported frame 0x%X", marker));
+						} else if (marker == MARKER_DQT) {
+							readQuantTables(segmentEnd);
+						} else if (marker == MARKER_DRI) {
+							mRestartInterval = readUnsignedShort();
+						} else if (marker == MARKER_APP14) {
+							readAdobe(segmentEnd);
+						}
+
+						writeMarker(marker);
+						write(mData, segmentStart, segmentLength);
+					}
+
+					mPosition = segmentEnd;
+				}
+			}
+
+			writeMarker(MARKER_EOI);
+			flushOutput();
+		} finally {
+			mData = null;
+			mOut = null;
+		}
+	}
+
+	private static boolean isUnsupportedFrame(int marker) {
+		return marker >= 0xC2 && marker <= 0xCF && marker != MARKER_DHT && marker != MARKER_JPG
+				&& marker != MARKER_DAC;
+	}
+
+	private void readFrame() throws IOException {
+		if (readByte() != 8) {
+			throw new IOException("Only 8-bit samples are supported");
+		}
+
+		mHeight = readUnsignedShort();
+		mWidth = readUnsignedShort();
+		int count = readByte();
+
+		if (mWidth == 0 || mHeight == 0 || (count != 1 && count != 3)) {
+			throw new IOException("Unsupported frame " + mWidth + "x" + mHeight + "x" + count);
+		}
+
+		mComponents = new Component[count];
+		mMaxHorizontalSampling = 1;
+		mMaxVerticalSampling = 1;
+
+		for (int i = 0; i < count; i++) {
+			Component component = new Component();
+			component.id = readByte();
+			int sampling = readByte();
+			component.horizontalSampling = sampling >> 4;
+			component.verticalSampling = sampling & 0xF;
+			component.quantTable = readByte() & 3;
+
+			if (component.horizontalSampling < 1 || component.verticalSampling < 1) {
+				throw new IOException("Invalid sampling");
+			}
+
+			mMaxHorizontalSampling = Math.max(mMaxHorizontalSampling,
+					component.horizontalSampling);
+			mMaxVerticalSampling = Math.max(mMaxVerticalSampling, component.verticalSampling);
+			mComponents[i] = component;
+		}
+	}
+
+	private void readHuffmanTables(int end) throws IOException {
+		while (mPosition < end) {
+			int info = readByte();
+			int[] bits = new int[16];
+			int count = 0;
+
+			for (int i = 0; i < 16; i++) {
+				bits[i] = readByte();
+				count += bits[i];
+			}
+
+			if (count > 256 || mPosition + count > end) {
+				throw new IOException("Invalid Huffman table");
+			}
+
+			// Every code must fit in its length, or the table is oversubscribed.
+			int code = 0;
+			for (int length = 1; length <= 16; length++) {
+				code += bits[length - 1];
+				if (code > 1 << length) {
+					throw new IOException("Oversubscribed Huffman table");
+				}
+				code <<= 1;
+			}
+
+			int[] values = new int[count];
+			for (int i = 0; i < count; i++) {
+				values[i] = readByte();
+			}
+
+			HuffmanTable table = new HuffmanTable(bits, values);
+			if ((info >> 4) == 0) {
+				mDcTables[info & 3] = table;
+			} else {
+				mAcTables[info & 3] = table;
+			}
+		}
+	}
+
+	private void readQuantTables(int end) throws IOException {
+		while (mPosition < end) {
+			int info = readByte();
+			boolean wide = (info >> 4) != 0;
+			int[] table = new int[BLOCK_SIZE];
+
+			for (int i = 0; i < BLOCK_SIZE; i++) {
+				table[i] = wide ? readUnsignedShort() : readByte();
+
+				if (table[i] == 0) {
+					throw new IOException("Zero in quantization table");
+				}
+			}
+
+			mQuantTables[info & 3] = table;
+		}
+	}
+
+	private void readAdobe(int end) throws IOException {
+		// "Adobe", version, flags0, flags1, transform.
+		if (end - mPosition >= 12 && mData[mPosition] == 'A' && mData[mPosition + 1] == 'd'
+				&& mData[mPosition + 2] == 'o' && mData[mPosition + 3] == 'b'
+				&& mData[mPosition + 4] == 'e') {
+			mAdobeTransform = mData[mPosition + 11] & 0xFF;
+		}
+	}
+
+	/**
+	 * Reads a scan header, writes the matching header for the output and transcodes the
+	 * entropy-coded data that follows.
+	 */
+	private void transcodeScan() throws IOException {
+		if (mComponents == null) {
+			throw new IOException("Scan before frame");
+		}
+
+		int segmentEnd = mPosition + readUnsignedShort();
+		int count = readByte();
+		Component[] scan = new Component[count];
+
+		for (int i = 0; i < count; i++) {
+			int id = readByte();
+			int tables = readByte();
+
+			for (Component component : mComponents) {
+				if (component.id == id) {
+					scan[i] = component;
+				}
+			}
+
+			if (scan[i] == null || mDcTables[tables >> 4 & 3] == null
+					|| mAcTables[tables & 3] == null) {
+				throw new IOException("Invalid scan component " + id);
+			}
+
+			scan[i].inDc = mDcTables[tables >> 4 & 3];
+			scan[i].inAc = mAcTables[tables & 3];
+		}
+
+		int spectralStart = readByte();
+		int spectralEnd = readByte();
+		int approximation = readByte();
+
+		if (spectralStart != 0 || spectralEnd != 63 || approximation != 0) {
+			throw new IOException("Not a sequential scan");
+		}
+
+		mPosition = segmentEnd;
+
+		if (!mTablesWritten) {
+			writeHuffmanTables();
+			mTablesWritten = true;
+		}
+
+		writeMarker(MARKER_SOS);
+		writeShort(6 + 2 * count);
+		writeByte(count);
+		for (Component component : scan) {
+			boolean luminance = component == mComponents[0];
+
+			component.outDc = luminance ? OUT_DC_LUMINANCE : OUT_DC_CHROMINANCE;
+			component.outAc = luminance ? OUT_AC_LUMINANCE : OUT_AC_CHROMINANCE;
+			component.shiftDc = luminance || mAdobeTransform == 0;
+
+			int[] quant = mQuantTables[component.quantTable];
+			if (quant == null) {
+				throw new IOException("Missing quantization table " + component.quantTable);
+			}
+			component.dcOffset = component.shiftDc ? DC_WHITE * mFade / quant[0] : 0;
+
+			writeByte(component.id);
+			writeByte(luminance ? 0x00 : 0x11);
+		}
+		writeByte(0);
+		writeByte(63);
+		writeByte(0);
+
+		transcodeEntropyData(scan);
+	}
+
+	private void transcodeEntropyData(Component[] scan) throws IOException {
+		final int mcuColumns;
+		final int mcuRows;
+
+		if (scan.length == 1) {
+			// A non-interleaved scan covers just the blocks of one component, one per MCU.
+			Component component = scan[0];
+			int width = ceilDiv(mWidth * component.horizontalSampling, mMaxHorizontalSampling);
+			int height = ceilDiv(mHeight * component.verticalSampling, mMaxVerticalSampling);
+			mcuColumns = ceilDiv(width, 8);
+			mcuRows = ceilDiv(height, 8);
+		} else {
+			mcuColumns = ceilDiv(mWidth, 8 * mMaxHorizontalSampling);
+			mcuRows = ceilDiv(mHeight, 8 * mMaxVerticalSampling);
+		}
+
+		final int mcuCount = mcuColumns * mcuRows;
+		final float scale = 1.0f - mFade;
+		final int[] block = new int[BLOCK_SIZE];
+
+		resetEntropyCoders(scan);
+		int restart = 0;
+
+		for (int mcu = 0; mcu < mcuCount; mcu++) {
+			if (mRestartInterval > 0 && mcu > 0 && mcu % mRestartInterval == 0) {
+				readRestart();
+				writeRestart(restart);
+				restart = (restart + 1) & 7;
+				resetEntropyCoders(scan);
+			}
+
+			for (Component component : scan) {
+				int blocks = scan.length == 1
+						? 1 : component.horizontalSampling * component.verticalSampling;
+
+				for (int b = 0; b < blocks; b++) {
+					decodeBlock(component, block);
+
+					// The fade, in the DCT domain.
+					block[0] = roundHalfAway(block[0] * scale + component.dcOffset);
+					for (int k = 1; k < BLOCK_SIZE; k++) {
+						if (block[k] != 0) {
+							block[k] = roundHalfAway(block[k] * scale);
+						}
+					}
+
+					encodeBlock(component, block);
+				}
+			}
+		}
+
+		flushBits();
+		finishEntropyData();
+	}
+
+	private void resetEntropyCoders(Component[] scan) {
+		for (Component component : scan) {
+			component.inPrediction = 0;
+			component.outPrediction = 0;
+		}
+
+		mInBits = 0;
+		mInBitCount = 0;
+		mInMarker = false;
+	}
+
+	/**
+	 * Skips to the restart marker that ends an interval of the input.
+	 */
+	private void readRestart() throws IOException {
+		skipToMarker();
+
+		int marker = readMarker();
+		if (marker < MARKER_RST0 || marker > MARKER_RST7) {
+			throw new IOException(String.format("Expected a restart marker, found 0x%X", marker));
+		}
+	}
+
+	/**
+	 * Leaves the input at the marker that follows the entropy-coded data.
+	 */
+	private void finishEntropyData() {
+		skipToMarker();
+	}
+
+	/**
+	 * Drops the bits that pad the last byte of an interval and moves to the next marker. The
+	 * decoder never reads past a marker, so normally there is nothing to skip.
+	 */
+	private void skipToMarker() {
+		mInBits = 0;
+		mInBitCount = 0;
+		mInMarker = false;
+
+		while (mPosition + 1 < mEnd && !(mData[mPosition] == (byte) 0xFF
+				&& mData[mPosition + 1] != 0 && mData[mPosition + 1] != (byte) 0xFF)) {
+			mPosition++;
+		}
+	}
+
+	private void decodeBlock(Component component, int[] block) throws IOException {
+		for (int k = 0; k < BLOCK_SIZE; k++) {
+			block[k] = 0;
+		}
+
+		int size = decodeSymbol(component.inDc);
+		if (size > MAX_DC_CATEGORY) {
+			throw new IOException("DC category out of range");
+		}
+		int diff = size > 0 ? extend(receive(size), size) : 0;
+		component.inPrediction += diff;
+		block[0] = component.inPrediction;
+
+		for (int k = 1; k < BLOCK_SIZE; k++) {
+			int symbol = decodeSymbol(component.inAc);
+			int run = symbol >> 4;
+			size = symbol & 0xF;
+
+			if (size == 0) {
+				if (run != 15) {
+					break;      // end of block
+				}
+				k += 15;        // sixteen zeros
+			} else {
+				k += run;
+				if (k >= BLOCK_SIZE) {
+					throw new IOException("Coefficient out of range");
+				}
+				if (size > MAX_AC_CATEGORY) {
+					throw new IOException("AC category out of range");
+				}
+				block[k] = extend(receive(size), size);
+			}
+		}
+	}
+
+	private void encodeBlock(Component component, int[] block) throws IOException {
+		HuffmanTable dc = component.outDc;
+		HuffmanTable ac = component.outAc;
+
+		int diff = block[0] - component.outPrediction;
+		component.outPrediction = block[0];
+
+		int size = getCategory(diff);
+		if (size > MAX_DC_CATEGORY) {
+			// Only possible if the input predictions drift out of range.
+			throw new IOException("DC difference out of range");
+		}
+		writeBits(dc.mCodes[size], dc.mSizes[size]);
+		if (size > 0) {
+			writeBits(diff < 0 ? diff - 1 : diff, size);
+		}
+
+		int run = 0;
+		for (int k = 1; k < BLOCK_SIZE; k++) {
+			int value = block[k];
+
+			if (value == 0) {
+				run++;
+				continue;
+			}
+
+			while (run > 15) {
+				writeBits(ac.mCodes[0xF0], ac.mSizes[0xF0]);
+				run -= 16;
+			}
+
+			size = getCategory(value);
+			int symbol = (run << 4) | size;
+			writeBits(ac.mCodes[symbol], ac.mSizes[symbol]);
+			writeBits(value < 0 ? value - 1 : value, size);
+			run = 0;
+		}
+
+		if (run > 0) {
+			writeBits(ac.mCodes[0x00], ac.mSizes[0x00]);
+		}
+	}
+
+	/**
+	 * @return the number of bits needed for the magnitude of a value
+	 */
+	private static int getCategory(int value) {
+		return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+	}
+
+	private static int roundHalfAway(float value) {
+		return value < 0 ? -(int) (0.5f - value) : (int) (value + 0.5f);
+	}
+
+	private static int extend(int value, int size) {
+		return value < 1 << (size - 1) ? value - (1 << size) + 1 : value;
+	}
+
+	private static int ceilDiv(int a, int b) {
+		return (a + b - 1) / b;
+	}
+
+	/*
+	 * Entropy decoding.
+	 */
+
+	/**
+	 * Tops up the bit buffer to at least 25 bits. Past a marker or the end of the data, zeros
+	 * are fed in, as the specification requires.
+	 */
+	private void fillBits() {
+		while (mInBitCount <= 24) {
+			int b = 0;
+
+			if (!mInMarker && mPosition < mEnd) {
+				b = mData[mPosition] & 0xFF;
+
+				if (b == 0xFF) {
+					int next = mPosition + 1 < mEnd ? mData[mPosition + 1] & 0xFF : 0xD9;
+
+					if (next == 0) {
+						mPosition += 2;     // a stuffed zero
+					} else {
+						mInMarker = true;
+						b = 0;
+					}
+				} else {
+					mPosition++;
+				}
+			}
+
+			mInBits = (mInBits << 8) | b;
+			mInBitCount += 8;
+		}
+	}
+
+	private int decodeSymbol(HuffmanTable table) throws IOException {
+		fillBits();
+
+		int look = (mInBits >>> (mInBitCount - HuffmanTable.LOOKAHEAD))
+				& ((1 << HuffmanTable.LOOKAHEAD) - 1);
+		int entry = table.mLookup[look];
+
+		if (entry != 0) {
+			mInBitCount -= entry >> 8;
+			return entry & 0xFF;
+		}
+
+		// A longer code.
+		for (int length = HuffmanTable.LOOKAHEAD + 1; length <= 16; length++) {
+			int code = (mInBits >>> (mInBitCount - length)) & ((1 << length) - 1);
+
+			if (code <= table.mMaxCode[length]) {
+				mInBitCount -= length;
+				return table.mValues[table.mValueOffset[length] + code];
+			}
+		}
+
+		throw new IOException("Invalid Huffman code");
+	}
+
+	private int receive(int size) {
+		fillBits();
+
+		mInBitCount -= size;
+		return (mInBits >>> mInBitCount) & ((1 << size) - 1);
+	}
+
+	/*
+	 * Entropy encoding and output.
+	 */
+
+	private void writeBits(int value, int size) throws IOException {
+		mOutBits = (mOutBits << size) | (value & ((1 << size) - 1));
+		mOutBitCount += size;
+
+		while (mOutBitCount >= 8) {
+			mOutBitCount -= 8;
+			int b = (mOutBits >> mOutBitCount) & 0xFF;
+
+			writeByte(b);
+			if (b == 0xFF) {
+				writeByte(0);       // stuff a zero so it is not read as a marker
+			}
+		}
+	}
+
+	/**
+	 * Pads the last byte of entropy-coded data with ones.
+	 */
+	private void flushBits() throws IOException {
+		if (mOutBitCount > 0) {
+			writeBits(0x7F, 8 - mOutBitCount);
+		}
+
+		mOutBits = 0;
+		mOutBitCount = 0;
+	}
+
+	private void writeRestart(int index) throws IOException {
+		flushBits();
+		writeMarker(MARKER_RST0 + index);
+	}
+
+	private void writeHuffmanTables() throws IOException {
+		writeMarker(MARKER_DHT);
+		writeShort(2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+				+ DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+
+		writeHuffmanTable(0x00, OUT_DC_LUMINANCE);
+		writeHuffmanTable(0x10, OUT_AC_LUMINANCE);
+		writeHuffmanTable(0x01, OUT_DC_CHROMINANCE);
+		writeHuffmanTable(0x11, OUT_AC_CHROMINANCE);
+	}
+
+	private void writeHuffmanTable(int info, HuffmanTable table) throws IOException {
+		writeByte(info);
+		for (int bits : table.mBits) {
+			writeByte(bits);
+		}
+		for (int value : table.mValues) {
+			writeByte(value);
+		}
+	}
+
+	private void writeMarker(int marker) throws IOException {
+		writeByte(0xFF);
+		writeByte(marker);
+	}
+
+	private void writeShort(int value) throws IOException {
+		writeByte(value >> 8);
+		writeByte(value);
+	}
+
+	private void writeByte(int b) throws IOException {
+		if (mOutLength == mOutBuffer.length) {
+			flushOutput();
+		}
+
+		mOutBuffer[mOutLength++] = (byte) b;
+	}
+
+	private void write(byte[] data, int offset, int length) throws IOException {
+		flushOutput();
+		mOut.write(data, offset, length);
+	}
+
+	private void flushOutput() throws IOException {
+		mOut.write(mOutBuffer, 0, mOutLength);
+		mOutLength = 0;
+	}
+
+	/*
+	 * Reading outside of the entropy-coded data.
+	 */
+
+	private int readByte() throws IOException {
+		if (mPosition >= mEnd) {
+			throw new IOException("Unexpected end of JPEG");
+		}
+
+		return mData[mPosition++] & 0xFF;
+	}
+
+	private int readUnsignedShort() throws IOException {
+		return (readByte() << 8) | readByte();
+	}
+
+	/**
+	 * @return the next marker, skipping any fill bytes before it
+	 */
+	private int readMarker() throws IOException {
+		if (readByte() != 0xFF) {
+			throw new IOException("Expected a marker");
+		}
+
+		int marker;
+		do {
+			marker = readByte();
+		} while (marker == 0xFF);
+
+		return marker;
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The dimensions, components and orientation of a JPEG, read by scanning the markers up to the
+ * start of frame (SOF) segment. Only a small prefix of the file is ever read, and no pixels are
+ * decoded.
+ */
+public class JpegHeader {
+
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int MARKER_APP1 = 0xE1;
+	private static final int MARKER_DHT = 0xC4;
+	private static final int MARKER_JPG = 0xC8;
+	private static final int MARKER_DAC = 0xCC;
+
+	private final int mWidth;
+	private final int mHeight;
+	private final int mPrecision;
+	private final boolean mProgressive;
+	private final int[] mComponentIds;
+	private final int[] mHorizontalSampling;
+	private final int[] mVerticalSampling;
+	private final int mOrientation;
+
+	private JpegHeader(int width, int height, int precision, boolean progressive,
+	                   int[] componentIds, int[] horizontalSampling, int[] verticalSampling,
+	                   int orientation) {
+		mWidth = width;
+		mHeight = height;
+		mPrecision = precision;
+		mProgressive = progressive;
+		mComponentIds = componentIds;
+		mHorizontalSampling = horizontalSampling;
+		mVerticalSampling = verticalSampling;
+		mOrientation = orientation;
+	}
+
+	/**
+	 * @param data   holds the JPEG
+	 * @param offset the index of the JPEG in data
+	 * @param length the number of bytes of the JPEG in data, which may be just a prefix
+	 * @return the header, or null if the data is not a JPEG or has no usable start of frame
+	 */
+	public static JpegHeader parse(byte[] data, int offset, int length) {
+		try {
+			return parse(new ByteArrayInputStream(data, offset, length));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads markers until the start of frame. The stream is left positioned just after it.
+	 *
+	 * @param inputStream the JPEG, which should be buffered
+	 * @return the header, or null if the stream is not a JPEG or has no usable start of frame
+	 * @throws IOException if the stream could not be read, or ended early
+	 */
+	public static JpegHeader parse(InputStream inputStream) throws IOException {
+		DataInputStream in = new DataInputStream(inputStream);
+
+		if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) {
+			return null;
+		}
+
+		int orientation = ExifReader.ORIENTATION_NORMAL;
+
+		while (true) {
+			if (in.readUnsignedByte() != 0xFF) {
+				return null;
+			}
+
+			// Skip any fill bytes.
+			int marker;
+			do {
+				marker = in.readUnsignedByte();
+			} while (marker == 0xFF);
+
+			if (marker == MARKER_SOS || marker == MARKER_EOI) {
+				// There was no frame before the image data.
+				return null;
+			}
+
+			if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+				// These markers have no length or contents.
+				continue;
+			}
+
+			int length = in.readUnsignedShort() - 2;
+			if (length < 0) {
+				return null;
+			}
+
+			if (isStartOfFrame(marker)) {
+				int precision = in.readUnsignedByte();
+				int height = in.readUnsignedShort();
+				int width = in.readUnsignedShort();
+				int count = in.readUnsignedByte();
+
+				if (width == 0 || height == 0 || count == 0 || length != 6 + count * 3) {
+					// A height of zero means it is defined later by a DNL marker, which the
+					// platform decoder does not support either.
+					return null;
+				}
+
+				int[] ids = new int[count];
+				int[] horizontal = new int[count];
+				int[] vertical = new int[count];
+
+				for (int i = 0; i < count; i++) {
+					ids[i] = in.readUnsignedByte();
+					int sampling = in.readUnsignedByte();
+					horizontal[i] = sampling >> 4;
+					vertical[i] = sampling & 0xF;
+					// Skip the quantization table selector.
+					in.readUnsignedByte();
+				}
+
+				return new JpegHeader(width, height, precision, isProgressive(marker), ids,
+						horizontal, vertical, orientation);
+			} else if (marker == MARKER_APP1 && orientation == ExifReader.ORIENTATION_NORMAL) {
+				byte[] segment = new byte[length];
+				in.readFully(segment);
+
+				int exifOrientation = ExifReader.parseOrientation(segment, 0, length);
+				if (exifOrientation != 0) {
+					orientation = exifOrientation;
+				}
+			} else {
+				skipFully(in, length);
+			}
+		}
+	}
+
+	/**
+	 * @return whether or not the marker starts a frame, of any coding process
+	 */
+	private static boolean isStartOfFrame(int marker) {
+		return marker >= 0xC0 && marker <= 0xCF
+				&& marker != MARKER_DHT && marker != MARKER_JPG && marker != MARKER_DAC;
+	}
+
+	/**
+	 * @return whether or not the start of frame marker is for a progressive coding process
+	 */
+	private static boolean isProgressive(int marker) {
+		return marker == 0xC2 || marker == 0xC6 || marker == 0xCA || marker == 0xCE;
+	}
+
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * @return the width of the image, in pixels
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the height of the image, in pixels
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return the number of bits per sample
+	 */
+	public int getPrecision() {
+		return mPrecision;
+	}
+
+	/**
+	 * @return whether or not the image is progressive
+	 */
+	public boolean isProgressive() {
+		return mProgressive;
+	}
+
+	/**
+	 * @return the number of color components
+	 */
+	public int getComponentCount() {
+		return mComponentIds.length;
+	}
+
+	/**
+	 * @param component the index of the component
+	 * @return the id of the component
+	 */
+	public int getComponentId(int component) {
+		return mComponentIds[component];
+	}
+
+	/**
+	 * @param component the index of the component
+	 * @return the horizontal sampling factor of the component
+	 */
+	public int getHorizontalSampling(int component) {
+		return mHorizontalSampling[component];
+	}
+
+	/**
+	 * @param component the index of the component
+	 * @return the vertical sampling factor of the component
+	 */
+	public int getVerticalSampling(int component) {
+		return mVerticalSampling[component];
+	}
+
+	/**
+	 * @return the EXIF orientation, or {@link ExifReader#ORIENTATION_NORMAL} if there is none
+	 */
+	public int getOrientation() {
+		return mOrientation;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples and reports percentiles over them.
+ */
+public class LatencyStats {
+
+	/**
+	 * The samples, used as a ring buffer. Guarded by this object.
+	 */
+	private final long[] mSamples;
+	private long mCount;
+
+	/**
+	 * @param capacity the number of recent samples to keep
+	 */
+	public LatencyStats(int capacity) {
+		mSamples = new long[capacity];
+	}
+
+	/**
+	 * @param nanos the latency of one request, in nanoseconds
+	 */
+	public synchronized void add(long nanos) {
+		mSamples[(int) (mCount++ % mSamples.length)] = nanos;
+	}
+
+	/**
+	 * @return the total number of samples added, including those no longer kept
+	 */
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @param percentiles the percentiles to report, from 0 to 100
+	 * @return the latency at each percentile over the kept samples, in nanoseconds, or zeros if
+	 * there are no samples
+	 */
+	public long[] getPercentiles(double... percentiles) {
+		long[] sorted;
+
+		synchronized (this) {
+			sorted = Arrays.copyOf(mSamples, (int) Math.min(mCount, mSamples.length));
+		}
+
+		Arrays.sort(sorted);
+
+		long[] result = new long[percentiles.length];
+		if (sorted.length == 0) {
+			return result;
+		}
+
+		for (int i = 0; i < percentiles.length; i++) {
+			// Nearest rank. Multiplying first keeps a whole rank exact, where p / 100 would not.
+			int rank = (int) Math.ceil(percentiles[i] * sorted.length / 100.0);
+			result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Picks the resolution of the preview while the fade slider is dragged, so that each frame fits
+ * in the frame budget on slow GPUs.
+ * <p/>
+ * It is fed the interval between the starts of consecutive frames, which a GPU that falls behind
+ * stretches by blocking the buffer swap, so no frame has to wait for the GPU to be timed. Those
+ * intervals are whole vsync periods, so a frame counts as late when its interval is well over the
+ * budget. The scale steps down one level after a few late frames in a row, so a single slow frame
+ * is ignored. Intervals cannot tell how much time is left over, so the scale steps up one level
+ * after a run of frames on time to try the next level. Each try that fails doubles the run
+ * needed before the next one. A few frames after each step are ignored, since they include
+ * setting up the new framebuffer, and long pauses between frames are ignored altogether. The
+ * level is kept between drags, so a slow device starts the next drag at the scale that worked
+ * last time.
+ * <p/>
+ * This class has no Android dependencies, so it can be checked against recorded frame times.
+ */
+public class PreviewScaleController {
+
+	/**
+	 * The scales of the preview, from full resolution down.
+	 */
+	public static final float[] SCALES = {1.0f, 0.75f, 0.5f, 0.35f, 0.25f};
+
+	/**
+	 * The frame budget at 60 frames per second, in nanoseconds.
+	 */
+	public static final long DEFAULT_FRAME_BUDGET = 1000 * 1000 * 1000 / 60;
+
+	/**
+	 * The range of refresh rates that are believed, in frames per second. Some devices report 0
+	 * or nonsense.
+	 */
+	private static final float MIN_REFRESH_RATE = 24;
+	private static final float MAX_REFRESH_RATE = 240;
+
+	/**
+	 * Intervals longer than this are pauses in drawing rather than slow frames, in nanoseconds.
+	 */
+	public static final long IDLE_INTERVAL = 250L * 1000 * 1000;
+
+	/**
+	 * How far over the budget an interval must be for the frame to count as late. A late frame
+	 * has missed at least one vsync, so its interval is at least twice the budget.
+	 */
+	private static final double LATE_RATIO = 1.5;
+
+	/**
+	 * The number of late frames in a row before stepping down.
+	 */
+	private static final int FRAMES_BEFORE_DOWN = 2;
+
+	/**
+	 * The number of frames in a row on time before trying the next higher level, at first and at
+	 * most. A try that holds for the first number of frames resets the wait.
+	 */
+	private static final int FRAMES_BEFORE_UP = 30;
+	private static final int MAX_FRAMES_BEFORE_UP = 480;
+
+	/**
+	 * The number of frames ignored after a step.
+	 */
+	private static final int SETTLE_FRAMES = 2;
+
+	private final long mBudget;
+
+	private boolean mActive;
+	private int mLevel;
+	private int mFramesLate;
+	private int mFramesOnTime;
+	private int mSettleFrames;
+	private int mFramesBeforeUp = FRAMES_BEFORE_UP;
+	/**
+	 * Whether or not the last step was up and has not held yet.
+	 */
+	private boolean mTrying;
+
+	/**
+	 * @param budget the time available for each frame, in nanoseconds, see
+	 *               {@link #getFrameBudget(float)}
+	 */
+	public PreviewScaleController(long budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * The budget must match the display, or a missed vsync on a fast display is shorter than a
+	 * late 60 Hz frame and never counts as late.
+	 *
+	 * @param refreshRate the refresh rate of the display, in frames per second
+	 * @return the frame budget at that rate, in nanoseconds, or {@link #DEFAULT_FRAME_BUDGET} if
+	 * the rate is not a usable number
+	 */
+	public static long getFrameBudget(float refreshRate) {
+		if (!(refreshRate >= MIN_REFRESH_RATE && refreshRate <= MAX_REFRESH_RATE)) {
+			return DEFAULT_FRAME_BUDGET;
+		}
+
+		return Math.round(1e9 / refreshRate);
+	}
+
+	/**
+	 * Starts adapting the scale, at the start of a drag.
+	 */
+	public void start() {
+		mActive = true;
+		mFramesLate = 0;
+		mFramesOnTime = 0;
+		mSettleFrames = 0;
+	}
+
+	/**
+	 * Stops adapting the scale, at the end of a drag. The preview returns to full resolution.
+	 */
+	public void stop() {
+		mActive = false;
+	}
+
+	/**
+	 * @return whether or not the scale is being adapted
+	 */
+	public boolean isActive() {
+		return mActive;
+	}
+
+	/**
+	 * @return the scale to draw the next frame at
+	 */
+	public float getScale() {
+		return mActive ? SCALES[mLevel] : 1.0f;
+	}
+
+	/**
+	 * Records the interval between the start of the previous frame and the start of this one.
+	 *
+	 * @param nanos the interval, in nanoseconds
+	 * @return the scale to draw this frame at
+	 */
+	public float onFrame(long nanos) {
+		if (!mActive || nanos > IDLE_INTERVAL) {
+			return getScale();
+		}
+
+		if (mSettleFrames > 0) {
+			mSettleFrames--;
+			return getScale();
+		}
+
+		if (nanos > mBudget * LATE_RATIO) {
+			mFramesLate++;
+			mFramesOnTime = 0;
+		} else {
+			mFramesLate = 0;
+			mFramesOnTime++;
+		}
+
+		if (mTrying && mFramesOnTime >= FRAMES_BEFORE_UP) {
+			mTrying = false;
+			mFramesBeforeUp = FRAMES_BEFORE_UP;
+		}
+
+		if (mFramesLate >= FRAMES_BEFORE_DOWN && mLevel < SCALES.length - 1) {
+			if (mTrying) {
+				// The higher level was too slow, so wait longer before trying it again.
+				mTrying = false;
+				mFramesBeforeUp = Math.min(mFramesBeforeUp * 2, MAX_FRAMES_BEFORE_UP);
+			}
+			step(mLevel + 1);
+		} else if (mLevel > 0 && mFramesOnTime >= mFramesBeforeUp) {
+			mTrying = true;
+			step(mLevel - 1);
+		}
+
+		return getScale();
+	}
+
+	private void step(int level) {
+		mLevel = level;
+		mFramesLate = 0;
+		mFramesOnTime = 0;
+		mSettleFrames = SETTLE_FRAMES;
+	}
+}
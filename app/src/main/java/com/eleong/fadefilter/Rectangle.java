@@ -66,4 +66,77 @@ public class Rectangle {
 	 * A {@link java.nio.FloatBuffer} representing the texture coordinates.
 	 */
 	public static final FloatBuffer TEXTURE_BUFFER = GlUtil.createFloatBuffer(TEXTURE_COORDS);
+
+	/**
+	 * Transforms {@link #TEXTURE_COORDS} so that an image stored with an EXIF orientation is drawn
+	 * upright. This costs nothing per pixel, unlike rotating the bitmap.
+	 *
+	 * @param orientation the EXIF orientation of the image, see {@link ExifReader}
+	 * @return the texture coordinates for each vertex
+	 */
+	public static float[] getTextureCoords(int orientation) {
+		float[] coords = new float[TEXTURE_COORDS.length];
+
+		for (int i = 0; i < coords.length; i += COORDS_PER_TEX_COORD) {
+			// Where the vertex is on the upright image, with y pointing down.
+			float x = TEXTURE_COORDS[i];
+			float y = TEXTURE_COORDS[i + 1];
+
+			// Where that point is on the stored image.
+			float s;
+			float t;
+
+			switch (orientation) {
+				case ExifReader.ORIENTATION_FLIP_HORIZONTAL:
+					s = 1.0f - x;
+					t = y;
+					break;
+				case ExifReader.ORIENTATION_ROTATE_180:
+					s = 1.0f - x;
+					t = 1.0f - y;
+					break;
+				case ExifReader.ORIENTATION_FLIP_VERTICAL:
+					s = x;
+					t = 1.0f - y;
+					break;
+				case ExifReader.ORIENTATION_TRANSPOSE:
+					s = y;
+					t = x;
+					break;
+				case ExifReader.ORIENTATION_ROTATE_90:
+					s = y;
+					t = 1.0f - x;
+					break;
+				case ExifReader.ORIENTATION_TRANSVERSE:
+					s = 1.0f - y;
+					t = 1.0f - x;
+					break;
+				case ExifReader.ORIENTATION_ROTATE_270:
+					s = 1.0f - y;
+					t = x;
+					break;
+				default:
+					s = x;
+					t = y;
+					break;
+			}
+
+			coords[i] = s;
+			coords[i + 1] = t;
+		}
+
+		return coords;
+	}
+
+	/**
+	 * @param orientation the EXIF orientation of the image, see {@link ExifReader}
+	 * @return a {@link java.nio.FloatBuffer} representing the texture coordinates
+	 */
+	public static FloatBuffer createTextureBuffer(int orientation) {
+		if (orientation == ExifReader.ORIENTATION_NORMAL) {
+			return TEXTURE_BUFFER;
+		}
+
+		return GlUtil.createFloatBuffer(getTextureCoords(orientation));
+	}
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * Publishes the rows of an encoded image, decoding one strip at a time with a
+ * {@link BitmapRegionDecoder}, so the whole image is never held in memory.
+ * <p/>
+ * Each strip decodes every JPEG block row it touches, so strips of a multiple of 16 source rows
+ * avoid decoding any block twice. A progressive JPEG is decoded in full for every region, so use
+ * this for baseline images only, see {@link JpegHeader#isProgressive()}.
+ */
+public class RegionDecoderStripSource extends StripSource {
+
+	private final BitmapRegionDecoder mDecoder;
+	private final int mSampleSize;
+	private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+	/**
+	 * The last decoded region, reused for the next one where the platform allows it.
+	 */
+	private Bitmap mPart;
+
+	/**
+	 * @param decoder    the decoder, which is recycled when the stream ends
+	 * @param sampleSize the power of two to subsample by
+	 * @param stripRows  the number of rows in each strip, after subsampling
+	 * @param maxStrips  the number of strips that may be in flight at once
+	 */
+	public RegionDecoderStripSource(BitmapRegionDecoder decoder, int sampleSize, int stripRows,
+	                                int maxStrips) {
+		super(DecodePlan.getSampledSize(decoder.getWidth(), sampleSize),
+				DecodePlan.getSampledSize(decoder.getHeight(), sampleSize), stripRows, maxStrips);
+		mDecoder = decoder;
+		mSampleSize = sampleSize;
+
+		mOptions.inSampleSize = sampleSize;
+		mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+	}
+
+	/**
+	 * @param data       the encoded image
+	 * @param sampleSize the power of two to subsample by
+	 * @param stripRows  the number of rows in each strip, after subsampling
+	 * @param maxStrips  the number of strips that may be in flight at once
+	 * @return a source for the image
+	 * @throws IOException if the image could not be read
+	 */
+	public static RegionDecoderStripSource create(byte[] data, int sampleSize, int stripRows,
+	                                              int maxStrips) throws IOException {
+		return new RegionDecoderStripSource(BitmapRegionDecoder.newInstance(data, 0, data.length,
+				false), sampleSize, stripRows, maxStrips);
+	}
+
+	@Override
+	protected void read(Strip strip) throws IOException {
+		int top = strip.getTop() * mSampleSize;
+		int bottom = Math.min(mDecoder.getHeight(),
+				(strip.getTop() + strip.getRows()) * mSampleSize);
+		Rect region = new Rect(0, top, mDecoder.getWidth(), bottom);
+
+		// A region decoder only reuses bitmaps from Jelly Bean.
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			mOptions.inBitmap = mPart;
+		}
+
+		Bitmap part;
+		Tracer.begin("decode strip");
+		try {
+			part = mDecoder.decodeRegion(region, mOptions);
+		} finally {
+			Tracer.end();
+		}
+
+		if (part == null) {
+			throw new IOException("Could not decode " + region);
+		}
+
+		// A reused bitmap may be larger than the region, which is decoded into its top left.
+		int width = Math.min(strip.getWidth(), part.getWidth());
+		int rows = Math.min(strip.getRows(), part.getHeight());
+		part.getPixels(strip.getPixels(), 0, strip.getWidth(), 0, 0, width, rows);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			mPart = part;
+		} else {
+			part.recycle();
+		}
+
+		if (width < strip.getWidth() || rows < strip.getRows()) {
+			throw new IOException("Decoded " + width + "x" + rows + " pixels of " + region);
+		}
+	}
+
+	@Override
+	protected void close() {
+		mDecoder.recycle();
+
+		if (mPart != null) {
+			mPart.recycle();
+			mPart = null;
+		}
+	}
+}
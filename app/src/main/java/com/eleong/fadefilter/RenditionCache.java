@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of faded JPEGs, capped by their total size. The least recently used
+ * renditions are dropped first. The keys double as HTTP entity tags, see {@link FadeServer}.
+ */
+public class RenditionCache {
+
+	/**
+	 * The number of steps the fade is quantized to, so that nearly equal fades share an entry.
+	 */
+	public static final int FADE_STEPS = 100;
+
+	/**
+	 * The renditions in access order, guarded by this cache.
+	 */
+	private final LinkedHashMap<String, byte[]> mEntries =
+			new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	/**
+	 * The maximum total size of the renditions, in bytes.
+	 */
+	private final long mMaxSize;
+	private long mSize;
+	private long mHits;
+	private long mMisses;
+
+	/**
+	 * @param maxSize the maximum total size of the renditions, in bytes
+	 */
+	public RenditionCache(long maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * @param fade the amount of fade
+	 * @return the fade rounded to one of {@link #FADE_STEPS} steps
+	 */
+	public static int quantizeFade(float fade) {
+		return Math.round(Math.max(0.0f, Math.min(1.0f, fade)) * FADE_STEPS);
+	}
+
+	/**
+	 * @param data   the source image
+	 * @param fade   the quantized fade, see {@link #quantizeFade(float)}
+	 * @param linear whether or not the fade is applied in linear light
+	 * @param size   the requested size of the rendition
+	 * @return a key made of the content hash of the source and the parameters of the rendition
+	 */
+	public static String createKey(byte[] data, int fade, boolean linear, int size) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		digest.update(data);
+
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16));
+			key.append(Character.forDigit(b & 0xF, 16));
+		}
+		key.append('_').append(fade).append(linear ? "l" : "").append('_').append(size);
+
+		return key.toString();
+	}
+
+	/**
+	 * @param key the cache key
+	 * @return the rendition, or null if there is none. Do not modify it.
+	 */
+	public synchronized byte[] get(String key) {
+		byte[] value = mEntries.get(key);
+
+		if (value != null) {
+			mHits++;
+		} else {
+			mMisses++;
+		}
+
+		return value;
+	}
+
+	/**
+	 * Adds a rendition, dropping the least recently used ones to make room. A rendition larger
+	 * than the whole cache is not kept.
+	 *
+	 * @param key   the cache key
+	 * @param value the rendition, which must not be modified afterwards
+	 */
+	public synchronized void put(String key, byte[] value) {
+		if (value.length > mMaxSize) {
+			return;
+		}
+
+		byte[] previous = mEntries.put(key, value);
+		if (previous != null) {
+			mSize -= previous.length;
+		}
+		mSize += value.length;
+
+		Iterator<Map.Entry<String, byte[]>> iterator = mEntries.entrySet().iterator();
+		while (mSize > mMaxSize && iterator.hasNext()) {
+			mSize -= iterator.next().getValue().length;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * @return the number of lookups that found a rendition
+	 */
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * @return the number of lookups that did not find a rendition
+	 */
+	public synchronized long getMissCount() {
+		return mMisses;
+	}
+
+	/**
+	 * @return the fraction of lookups that found a rendition, or 0 if there were none
+	 */
+	public synchronized double getHitRatio() {
+		long lookups = mHits + mMisses;
+		return lookups > 0 ? (double) mHits / lookups : 0;
+	}
+
+	/**
+	 * @return the number of renditions in the cache
+	 */
+	public synchronized int getCount() {
+		return mEntries.size();
+	}
+
+	/**
+	 * @return the total size of the renditions in the cache, in bytes
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Converts packed ARGB pixels to 16-bit RGB 565 pixels, as used by
+ * {@link android.opengl.GLES20#GL_UNSIGNED_SHORT_5_6_5}.
+ * <p/>
+ * A 4x4 ordered (Bayer) dither can be applied to hide the banding caused by the reduced precision,
+ * which is especially visible in the smooth gradients of a faded image.
+ */
+public class Rgb565 {
+
+	/**
+	 * The 4x4 Bayer threshold matrix, with values from 0 to 15.
+	 */
+	private static final int[] BAYER_4X4 = {
+			0, 8, 2, 10,
+			12, 4, 14, 6,
+			3, 11, 1, 9,
+			15, 7, 13, 5
+	};
+
+	/**
+	 * The number of bytes in a 565 pixel.
+	 */
+	public static final int BYTES_PER_PIXEL = 2;
+
+	private Rgb565() {
+	}     // do not instantiate
+
+	/**
+	 * @param r the red value, from 0 to 31
+	 * @param g the green value, from 0 to 63
+	 * @param b the blue value, from 0 to 31
+	 * @return the packed 565 pixel
+	 */
+	public static short pack(int r, int g, int b) {
+		return (short) ((r << 11) | (g << 5) | b);
+	}
+
+	/**
+	 * Expands a 565 pixel back to 8 bits per channel.
+	 *
+	 * @param pixel the packed 565 pixel
+	 * @return an opaque ARGB pixel
+	 */
+	public static int toArgb(short pixel) {
+		int r = (pixel >> 11) & 0x1F;
+		int g = (pixel >> 5) & 0x3F;
+		int b = pixel & 0x1F;
+
+		return 0xFF000000
+				| (((r << 3) | (r >> 2)) << 16)
+				| (((g << 2) | (g >> 4)) << 8)
+				| ((b << 3) | (b >> 2));
+	}
+
+	/**
+	 * Reduces an 8-bit value to the nearest value with fewer bits.
+	 *
+	 * @param value the 8-bit value, from 0 to 255
+	 * @param max   the largest reduced value, 31 or 63
+	 * @return the reduced value
+	 */
+	public static int quantize(int value, int max) {
+		return (value * max + 127) / 255;
+	}
+
+	/**
+	 * Reduces an 8-bit value to a value with fewer bits, rounding up or down based on a threshold.
+	 * Averaged over the 16 thresholds, the reduced value matches the original value.
+	 *
+	 * @param value     the 8-bit value, from 0 to 255
+	 * @param max       the largest reduced value, 31 or 63
+	 * @param threshold the dither threshold, from 0 to 15
+	 * @return the reduced value
+	 */
+	public static int quantize(int value, int max, int threshold) {
+		return (value * max * 32 + (2 * threshold + 1) * 255) / (255 * 32);
+	}
+
+	/**
+	 * Converts one row of pixels.
+	 *
+	 * @param argb      the source pixels, in the format used by
+	 *                  {@link android.graphics.Bitmap#getPixels}
+	 * @param offset    the index of the first source pixel
+	 * @param out       the destination for the 565 pixels
+	 * @param outOffset the index of the first destination pixel
+	 * @param width     the number of pixels in the row
+	 * @param y         the row index in the image, which selects the row of the dither matrix
+	 * @param dither    whether or not to apply an ordered dither
+	 */
+	public static void convertRow(int[] argb, int offset, short[] out, int outOffset, int width,
+	                              int y, boolean dither) {
+		final int row = (y & 3) << 2;
+
+		for (int x = 0; x < width; x++) {
+			int color = argb[offset + x];
+
+			int r = (color >> 16) & 0xFF;
+			int g = (color >> 8) & 0xFF;
+			int b = color & 0xFF;
+
+			if (dither) {
+				int threshold = BAYER_4X4[row | (x & 3)];
+				out[outOffset + x] = pack(quantize(r, 31, threshold), quantize(g, 63, threshold),
+						quantize(b, 31, threshold));
+			} else {
+				out[outOffset + x] = pack(quantize(r, 31), quantize(g, 63), quantize(b, 31));
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * Precomputed lookup tables for converting between 8-bit sRGB and linear light, so that
+ * {@link Math#pow(double, double)} never has to be called per pixel.
+ * <p/>
+ * Linear values are stored as fixed point integers with {@link #LINEAR_BITS} bits of precision,
+ * which is enough for every 8-bit sRGB value to survive a round trip.
+ */
+public class SrgbTables {
+
+	/**
+	 * The number of bits of precision used for linear values.
+	 */
+	public static final int LINEAR_BITS = 12;
+	/**
+	 * The largest linear value, which represents 1.0.
+	 */
+	public static final int LINEAR_MAX = (1 << LINEAR_BITS) - 1;
+
+	/**
+	 * Maps an 8-bit sRGB value to a linear value from 0 to {@link #LINEAR_MAX}.
+	 */
+	private static final int[] DECODE = new int[256];
+	/**
+	 * Maps a linear value from 0 to {@link #LINEAR_MAX} to an 8-bit sRGB value.
+	 */
+	private static final byte[] ENCODE = new byte[LINEAR_MAX + 1];
+
+	static {
+		for (int i = 0; i < DECODE.length; i++) {
+			DECODE[i] = (int) Math.round(toLinear(i / 255.0) * LINEAR_MAX);
+		}
+
+		for (int i = 0; i < ENCODE.length; i++) {
+			ENCODE[i] = (byte) Math.round(toSrgb((double) i / LINEAR_MAX) * 255.0);
+		}
+	}
+
+	private SrgbTables() {
+	}     // do not instantiate
+
+	/**
+	 * @param srgb an 8-bit sRGB value, from 0 to 255
+	 * @return the linear value, from 0 to {@link #LINEAR_MAX}
+	 */
+	public static int decode(int srgb) {
+		return DECODE[srgb];
+	}
+
+	/**
+	 * @param linear a linear value, from 0 to {@link #LINEAR_MAX}
+	 * @return the 8-bit sRGB value, from 0 to 255
+	 */
+	public static int encode(int linear) {
+		return ENCODE[linear] & 0xFF;
+	}
+
+	/**
+	 * The exact sRGB transfer function, only used to build the tables.
+	 *
+	 * @param srgb a gamma-encoded value from 0.0 to 1.0
+	 * @return the linear value from 0.0 to 1.0
+	 */
+	public static double toLinear(double srgb) {
+		if (srgb <= 0.04045) {
+			return srgb / 12.92;
+		}
+
+		return Math.pow((srgb + 0.055) / 1.055, 2.4);
+	}
+
+	/**
+	 * The exact inverse sRGB transfer function, only used to build the tables.
+	 *
+	 * @param linear a linear value from 0.0 to 1.0
+	 * @return the gamma-encoded value from 0.0 to 1.0
+	 */
+	public static double toSrgb(double linear) {
+		if (linear <= 0.0031308) {
+			return linear * 12.92;
+		}
+
+		return 1.055 * Math.pow(linear, 1.0 / 2.4) - 0.055;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * A band of whole rows of an ARGB image, passed from a {@link StripSource} through any stages to
+ * a sink. Strips come from a {@link StripPool}, and whoever consumes a strip last must
+ * {@link #release()} it so the source can fill it again.
+ */
+public final class Strip {
+
+	private final StripPool mPool;
+	private final int[] mPixels;
+	private final int mWidth;
+	private final int mImageHeight;
+	private int mTop;
+	private int mRows;
+
+	Strip(StripPool pool, int width, int maxRows, int imageHeight) {
+		mPool = pool;
+		mPixels = new int[width * maxRows];
+		mWidth = width;
+		mImageHeight = imageHeight;
+	}
+
+	/**
+	 * @return the pixels, one row after another with a stride of {@link #getWidth()}. Only the
+	 * first {@link #getRows()} rows are valid.
+	 */
+	public int[] getPixels() {
+		return mPixels;
+	}
+
+	/**
+	 * @return the width of the image, in pixels
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the height of the whole image, in pixels
+	 */
+	public int getImageHeight() {
+		return mImageHeight;
+	}
+
+	/**
+	 * @return the row of the image that the strip starts at
+	 */
+	public int getTop() {
+		return mTop;
+	}
+
+	/**
+	 * @return the number of rows in the strip
+	 */
+	public int getRows() {
+		return mRows;
+	}
+
+	void setRows(int top, int rows) {
+		mTop = top;
+		mRows = rows;
+	}
+
+	/**
+	 * Returns the strip to its pool. It must not be used afterwards.
+	 */
+	public void release() {
+		mPool.release(this);
+	}
+}
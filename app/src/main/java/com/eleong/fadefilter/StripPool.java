@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.util.ArrayDeque;
+
+/**
+ * A fixed number of {@link Strip} buffers, allocated on first use. The pool never grows, so the
+ * pixels in flight never take more than the strip count times the strip size, however large the
+ * image is.
+ */
+public class StripPool {
+
+	/**
+	 * Told when a strip is released, so that a source waiting for a free strip can continue.
+	 */
+	public interface Listener {
+		void onStripReleased();
+	}
+
+	private final int mWidth;
+	private final int mMaxRows;
+	private final int mImageHeight;
+	private final int mCapacity;
+	private final Listener mListener;
+
+	/**
+	 * The free strips, guarded by this pool.
+	 */
+	private final ArrayDeque<Strip> mFree = new ArrayDeque<Strip>();
+	private int mAllocated;
+
+	/**
+	 * @param width       the width of the image, in pixels
+	 * @param maxRows     the number of rows in a strip
+	 * @param imageHeight the height of the image, in pixels
+	 * @param capacity    the number of strips
+	 * @param listener    told whenever a strip is released
+	 */
+	public StripPool(int width, int maxRows, int imageHeight, int capacity, Listener listener) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+
+		mWidth = width;
+		mMaxRows = maxRows;
+		mImageHeight = imageHeight;
+		mCapacity = capacity;
+		mListener = listener;
+	}
+
+	/**
+	 * @return a free strip, or null if every strip is in use
+	 */
+	public synchronized Strip acquire() {
+		Strip strip = mFree.poll();
+
+		if (strip == null && mAllocated < mCapacity) {
+			strip = new Strip(this, mWidth, mMaxRows, mImageHeight);
+			mAllocated++;
+		}
+
+		return strip;
+	}
+
+	/**
+	 * @return the number of strips allocated so far
+	 */
+	public synchronized int getAllocatedCount() {
+		return mAllocated;
+	}
+
+	void release(Strip strip) {
+		synchronized (this) {
+			mFree.push(strip);
+		}
+
+		// Outside the lock, since the listener may acquire the strip straight away.
+		if (mListener != null) {
+			mListener.onStripReleased();
+		}
+	}
+}
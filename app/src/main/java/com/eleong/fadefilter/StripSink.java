@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The end of a chain of {@link Strip}s. It keeps a fixed number of strips requested, writes each
+ * one that arrives, releases it and asks for another, so the source never has more than the
+ * window in flight.
+ * <p/>
+ * If writing a strip throws, the stream is cancelled and the exception is rethrown from
+ * {@link #await()}.
+ */
+public abstract class StripSink implements Flow.Subscriber<Strip> {
+
+	private final int mWindow;
+	private final CountDownLatch mDone = new CountDownLatch(1);
+
+	private volatile Flow.Subscription mSubscription;
+	/**
+	 * How the stream ended, guarded by this sink.
+	 */
+	private boolean mFinished;
+	private Throwable mError;
+
+	/**
+	 * @param window the number of strips to keep requested
+	 */
+	protected StripSink(int window) {
+		mWindow = window;
+	}
+
+	/**
+	 * Consumes a strip, which is released afterwards. Called on the thread that sends the strip.
+	 *
+	 * @param strip the strip to write
+	 */
+	protected abstract void write(Strip strip);
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		mSubscription = subscription;
+		subscription.request(mWindow);
+	}
+
+	@Override
+	public void onNext(Strip strip) {
+		if (isFinished()) {
+			// Already sent when the stream was cancelled.
+			strip.release();
+			return;
+		}
+
+		try {
+			write(strip);
+		} catch (RuntimeException e) {
+			strip.release();
+			mSubscription.cancel();
+			finish(e);
+			return;
+		}
+
+		// Release first, so the source has a free strip when the request arrives.
+		strip.release();
+		mSubscription.request(1);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		finish(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		finish(null);
+	}
+
+	/**
+	 * Stops the stream. Strips that are already on their way are released unwritten, and
+	 * {@link #await()} fails.
+	 */
+	public void cancel() {
+		Flow.Subscription subscription = mSubscription;
+		if (subscription != null) {
+			subscription.cancel();
+		}
+
+		finish(new IOException("Cancelled"));
+	}
+
+	/**
+	 * Waits for the stream to end.
+	 *
+	 * @throws IOException if the stream failed, was cancelled or the wait was interrupted
+	 */
+	public void await() throws IOException {
+		try {
+			mDone.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for strips");
+		}
+
+		Throwable error;
+		synchronized (this) {
+			error = mError;
+		}
+
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		} else if (error != null) {
+			throw new IOException(String.valueOf(error));
+		}
+	}
+
+	private synchronized boolean isFinished() {
+		return mFinished;
+	}
+
+	/**
+	 * Records how the stream ended. Only the first end counts.
+	 */
+	private void finish(Throwable error) {
+		synchronized (this) {
+			if (mFinished) {
+				return;
+			}
+			mFinished = true;
+			mError = error;
+		}
+
+		mDone.countDown();
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.io.IOException;
+
+/**
+ * Publishes an image as {@link Strip}s from the top down, to a single subscriber.
+ * <p/>
+ * A strip is only filled when the subscriber has requested one and the {@link StripPool} has one
+ * free, so a slow sink holds back the source instead of letting strips pile up. Strips are sent
+ * on whichever thread made that possible: the one that requested more, or the one that released
+ * a strip. Only one thread sends at a time, and a request made from inside
+ * {@link Flow.Subscriber#onNext(Object)} is picked up by the loop already sending, rather than
+ * recursing.
+ * <p/>
+ * For example, to fade a bitmap in place with at most four strips of memory:
+ * <pre>
+ * StripSource source = new BitmapStripSource(bitmap, 16, 4);
+ * FadeStage fade = new FadeStage(kernel, null);
+ * BitmapStripSink sink = new BitmapStripSink(bitmap, 4);
+ * source.subscribe(fade);
+ * fade.subscribe(sink);
+ * sink.await();
+ * </pre>
+ */
+public abstract class StripSource implements Flow.Publisher<Strip>, StripPool.Listener {
+
+	private final int mWidth;
+	private final int mHeight;
+	private final int mStripRows;
+	private final StripPool mPool;
+
+	/**
+	 * The state of the stream, guarded by this source.
+	 */
+	private Flow.Subscriber<? super Strip> mSubscriber;
+	private long mRequested;
+	private int mNextRow;
+	private boolean mCancelled;
+	private Throwable mError;
+	private boolean mClosed;
+	/**
+	 * Whether a thread is sending, and whether anything changed that it has not seen yet.
+	 */
+	private boolean mSending;
+	private boolean mMissed;
+
+	/**
+	 * @param width     the width of the image, in pixels
+	 * @param height    the height of the image, in pixels
+	 * @param stripRows the number of rows in each strip
+	 * @param maxStrips the number of strips that may be in flight at once
+	 */
+	protected StripSource(int width, int height, int stripRows, int maxStrips) {
+		mWidth = width;
+		mHeight = height;
+		mStripRows = stripRows;
+		mPool = new StripPool(width, stripRows, height, maxStrips, this);
+	}
+
+	/**
+	 * @return the width of the image, in pixels
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the height of the image, in pixels
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Fills a strip with the rows it covers. Called on the sending thread.
+	 *
+	 * @param strip the strip, with its top row and row count already set
+	 * @throws IOException if the rows could not be read
+	 */
+	protected abstract void read(Strip strip) throws IOException;
+
+	/**
+	 * Frees anything held by the source once the stream has ended, however it ended. Called on
+	 * the sending thread, never during {@link #read(Strip)}.
+	 */
+	protected void close() {
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Strip> subscriber) {
+		boolean first;
+
+		synchronized (this) {
+			first = mSubscriber == null;
+			if (first) {
+				mSubscriber = subscriber;
+			}
+		}
+
+		if (!first) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+			return;
+		}
+
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				synchronized (StripSource.this) {
+					if (n <= 0) {
+						if (mError == null) {
+							mError = new IllegalArgumentException("Requested " + n + " strips");
+						}
+					} else {
+						// Saturates, as "effectively unbounded".
+						mRequested = mRequested + n < 0 ? Long.MAX_VALUE : mRequested + n;
+					}
+				}
+
+				send();
+			}
+
+			@Override
+			public void cancel() {
+				synchronized (StripSource.this) {
+					mCancelled = true;
+				}
+
+				send();
+			}
+		});
+	}
+
+	@Override
+	public void onStripReleased() {
+		send();
+	}
+
+	/**
+	 * Sends as many strips as have been requested and are free, then ends the stream if it is
+	 * over. Every signal to the subscriber goes through here, so none of them overlap.
+	 */
+	private void send() {
+		synchronized (this) {
+			if (mSending) {
+				// Let the thread already sending pick up the change.
+				mMissed = true;
+				return;
+			}
+			mSending = true;
+		}
+
+		for (; ; ) {
+			while (true) {
+				Strip strip = null;
+				boolean end = false;
+				boolean cancelled = false;
+				Throwable error = null;
+
+				synchronized (this) {
+					if (mClosed) {
+						// Nothing more to send.
+					} else if (mCancelled || mError != null || mNextRow >= mHeight) {
+						mClosed = true;
+						end = true;
+						cancelled = mCancelled;
+						error = mError;
+					} else if (mRequested > 0 && (strip = mPool.acquire()) != null) {
+						strip.setRows(mNextRow, Math.min(mStripRows, mHeight - mNextRow));
+						mNextRow += strip.getRows();
+						mRequested--;
+					}
+				}
+
+				if (end) {
+					close();
+
+					if (cancelled) {
+						// A cancelled subscriber is not told anything more.
+					} else if (error != null) {
+						mSubscriber.onError(error);
+					} else {
+						mSubscriber.onComplete();
+					}
+					break;
+				} else if (strip == null) {
+					break;
+				}
+
+				try {
+					read(strip);
+				} catch (IOException e) {
+					fail(strip, e);
+					continue;
+				} catch (RuntimeException e) {
+					fail(strip, e);
+					continue;
+				}
+
+				mSubscriber.onNext(strip);
+			}
+
+			synchronized (this) {
+				if (!mMissed) {
+					mSending = false;
+					return;
+				}
+				mMissed = false;
+			}
+		}
+	}
+
+	/**
+	 * Records a failure to read a strip, which ends the stream on the next pass.
+	 */
+	private void fail(Strip strip, Throwable throwable) {
+		synchronized (this) {
+			if (mError == null) {
+				mError = throwable;
+			}
+		}
+
+		strip.release();
+	}
+}
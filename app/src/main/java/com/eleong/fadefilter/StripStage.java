@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+/**
+ * A stage between a {@link StripSource} and a sink that changes each {@link Strip} in place and
+ * passes it on, so it needs no buffers of its own. Requests from downstream go straight upstream,
+ * one strip out for each strip in.
+ * <p/>
+ * Either side may be connected first. Strips requested before the upstream side is connected are
+ * requested as soon as it is.
+ */
+public abstract class StripStage implements Flow.Processor<Strip, Strip> {
+
+	/**
+	 * Both sides of the stage, guarded by this stage.
+	 */
+	private Flow.Subscription mUpstream;
+	private Flow.Subscriber<? super Strip> mDownstream;
+	private long mPendingRequests;
+	private boolean mPendingCancel;
+
+	/**
+	 * Changes the pixels of a strip. Called on the thread that sends the strip.
+	 *
+	 * @param strip the strip to change
+	 */
+	protected abstract void process(Strip strip);
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		long requests;
+		boolean cancel;
+
+		synchronized (this) {
+			if (mUpstream != null) {
+				subscription.cancel();
+				return;
+			}
+
+			mUpstream = subscription;
+			requests = mPendingRequests;
+			cancel = mPendingCancel;
+			mPendingRequests = 0;
+		}
+
+		if (cancel) {
+			subscription.cancel();
+		} else if (requests > 0) {
+			subscription.request(requests);
+		}
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Strip> subscriber) {
+		synchronized (this) {
+			if (mDownstream != null) {
+				throw new IllegalStateException("Only one subscriber is supported");
+			}
+
+			mDownstream = subscriber;
+		}
+
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				Flow.Subscription upstream;
+
+				synchronized (StripStage.this) {
+					upstream = mUpstream;
+					if (upstream == null) {
+						mPendingRequests = mPendingRequests + n < 0
+								? Long.MAX_VALUE : mPendingRequests + n;
+					}
+				}
+
+				if (upstream != null) {
+					upstream.request(n);
+				}
+			}
+
+			@Override
+			public void cancel() {
+				Flow.Subscription upstream;
+
+				synchronized (StripStage.this) {
+					upstream = mUpstream;
+					mPendingCancel = true;
+				}
+
+				if (upstream != null) {
+					upstream.cancel();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onNext(Strip strip) {
+		try {
+			process(strip);
+		} catch (RuntimeException e) {
+			strip.release();
+			getUpstream().cancel();
+			getDownstream().onError(e);
+			return;
+		}
+
+		getDownstream().onNext(strip);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		getDownstream().onError(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		getDownstream().onComplete();
+	}
+
+	private synchronized Flow.Subscription getUpstream() {
+		return mUpstream;
+	}
+
+	private synchronized Flow.Subscriber<? super Strip> getDownstream() {
+		return mDownstream;
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Mirrors {@link Tracer} spans into {@link android.os.Trace}, so they also show up in a systrace
+ * captured from the device. Only installed on Android 4.3 and up, where the platform tracer
+ * exists.
+ */
+public class SystraceListener implements Tracer.Listener {
+
+	/**
+	 * Installs the listener if the platform supports it.
+	 */
+	public static void install() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Tracer.setListener(new SystraceListener());
+		}
+	}
+
+	@Override
+	public void onBegin(String name) {
+		Trace.beginSection(name);
+	}
+
+	@Override
+	public void onEnd() {
+		Trace.endSection();
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import android.graphics.Bitmap;
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * An image that has been loaded into memory and is waiting to be transferred to the GPU, either
+ * as a {@link android.graphics.Bitmap}, as raw 16-bit RGB 565 pixels or as ETC1 compressed blocks.
+ */
+public class TextureImage {
+
+	/**
+	 * The image is stored in a {@link android.graphics.Bitmap}.
+	 */
+	public static final int FORMAT_BITMAP = 0;
+	/**
+	 * The image is stored as 16-bit RGB 565 pixels.
+	 */
+	public static final int FORMAT_RGB_565 = 1;
+	/**
+	 * The image is stored as ETC1 compressed blocks.
+	 */
+	public static final int FORMAT_ETC1 = 2;
+
+	private final int mFormat;
+	private final int mWidth;
+	private final int mHeight;
+	private final Bitmap mBitmap;
+	private final Buffer mPixels;
+	/**
+	 * The EXIF orientation of the image.
+	 */
+	private int mOrientation = ExifReader.ORIENTATION_NORMAL;
+
+	private TextureImage(int format, int width, int height, Bitmap bitmap, Buffer pixels) {
+		mFormat = format;
+		mWidth = width;
+		mHeight = height;
+		mBitmap = bitmap;
+		mPixels = pixels;
+	}
+
+	/**
+	 * @param bitmap the bitmap to draw
+	 * @return an image backed by the bitmap
+	 */
+	public static TextureImage fromBitmap(Bitmap bitmap) {
+		return new TextureImage(FORMAT_BITMAP, bitmap.getWidth(), bitmap.getHeight(), bitmap, null);
+	}
+
+	/**
+	 * @param pixels the RGB 565 pixels, tightly packed, from the top row to the bottom row
+	 * @param width  the width of the image, in pixels
+	 * @param height the height of the image, in pixels
+	 * @return an image backed by the pixels
+	 */
+	public static TextureImage fromRgb565(Buffer pixels, int width, int height) {
+		return new TextureImage(FORMAT_RGB_565, width, height, null, pixels);
+	}
+
+	/**
+	 * @param data   the ETC1 blocks, from left to right and top to bottom
+	 * @param width  the width of the image, in pixels
+	 * @param height the height of the image, in pixels
+	 * @return an image backed by the compressed data
+	 */
+	public static TextureImage fromEtc1(ByteBuffer data, int width, int height) {
+		return new TextureImage(FORMAT_ETC1, width, height, null, data);
+	}
+
+	/**
+	 * Transfers the image to the texture that is currently bound. Must be called on the thread
+	 * that owns the OpenGL context.
+	 */
+	public void upload() {
+		switch (mFormat) {
+			case FORMAT_RGB_565:
+				// Rows of an odd width are not 4-byte aligned.
+				GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, Rgb565.BYTES_PER_PIXEL);
+				mPixels.position(0);
+				GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, mWidth, mHeight, 0,
+						GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, mPixels);
+				GlUtil.checkGlError("glTexImage2D 565");
+				break;
+			case FORMAT_ETC1:
+				mPixels.position(0);
+				if (ETC1Util.isETC1Supported()) {
+					GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES,
+							mWidth, mHeight, 0, Etc1Codec.getEncodedSize(mWidth, mHeight), mPixels);
+					GlUtil.checkGlError("glCompressedTexImage2D");
+				} else {
+					// ETC1 is optional before OpenGL ES 3.0, so decode to RGB 565 instead.
+					ETC1Util.loadTexture(GLES20.GL_TEXTURE_2D, 0, 0, GLES20.GL_RGB,
+							GLES20.GL_UNSIGNED_SHORT_5_6_5,
+							new ETC1Util.ETC1Texture(mWidth, mHeight, (ByteBuffer) mPixels));
+					GlUtil.checkGlError("ETC1Util.loadTexture");
+				}
+				break;
+			default:
+				GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, mBitmap, 0);
+				GlUtil.checkGlError("texImage2D");
+				break;
+		}
+	}
+
+	/**
+	 * @return the format of the image in memory
+	 */
+	public int getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * @return the width of the image, in pixels
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the height of the image, in pixels
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @param orientation the EXIF orientation of the image, applied when it is drawn
+	 */
+	public void setOrientation(int orientation) {
+		mOrientation = orientation;
+	}
+
+	/**
+	 * @return the EXIF orientation of the image
+	 */
+	public int getOrientation() {
+		return mOrientation;
+	}
+
+	/**
+	 * @return the width to height ratio of the image once it has been oriented upright
+	 */
+	public float getDisplayAspectRatio() {
+		if (ExifReader.isTransposed(mOrientation)) {
+			return (float) mHeight / mWidth;
+		}
+
+		return (float) mWidth / mHeight;
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records spans of work on every thread into a fixed-size ring buffer, so that lag can be
+ * reconstructed after the fact across the UI, loading and GL threads.
+ * <p/>
+ * Spans are recorded with {@link #begin(String)} and {@link #end()}, which must be called on the
+ * same thread and nest, like {@link android.os.Trace}. The buffer holds the most recent
+ * {@link #CAPACITY} events and is exported in the Chrome trace event format, which opens in
+ * Perfetto or chrome://tracing.
+ * <p/>
+ * This class has no Android dependencies. Spans are mirrored to the platform tracer through a
+ * {@link Listener}, see {@link SystraceListener}.
+ */
+public class Tracer {
+
+	/**
+	 * The number of events kept in the ring buffer.
+	 */
+	public static final int CAPACITY = 8192;
+
+	private static final char PHASE_BEGIN = 'B';
+	private static final char PHASE_END = 'E';
+	private static final char PHASE_INSTANT = 'i';
+
+	/**
+	 * Receives every span as it is recorded.
+	 */
+	public interface Listener {
+		void onBegin(String name);
+
+		void onEnd();
+	}
+
+	private static final Object sLock = new Object();
+
+	/**
+	 * The ring buffer, one array per field to avoid allocating an object per event. Guarded by
+	 * {@link #sLock}.
+	 */
+	private static final long[] sTimes = new long[CAPACITY];
+	private static final long[] sThreadIds = new long[CAPACITY];
+	private static final String[] sThreadNames = new String[CAPACITY];
+	private static final String[] sNames = new String[CAPACITY];
+	private static final char[] sPhases = new char[CAPACITY];
+	private static final float[] sValues = new float[CAPACITY];
+	/**
+	 * The total number of events recorded, the next slot is this modulo {@link #CAPACITY}.
+	 */
+	private static long sCount;
+
+	private static volatile boolean sEnabled = true;
+	private static volatile Listener sListener;
+
+	private Tracer() {
+	}     // do not instantiate
+
+	/**
+	 * @param enabled whether or not to record events. Disabled calls return immediately.
+	 */
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	/**
+	 * @param listener receives every span as it is recorded, or null
+	 */
+	public static void setListener(Listener listener) {
+		sListener = listener;
+	}
+
+	/**
+	 * Begins a span on the current thread. The span must end within the same callback, since the
+	 * platform tracer it is mirrored to nests every section on the thread. Use
+	 * {@link #instant(String, float)} to mark the start and end of longer interactions.
+	 *
+	 * @param name the name of the span, which should be a constant to avoid allocating
+	 */
+	public static void begin(String name) {
+		if (!sEnabled) {
+			return;
+		}
+
+		Listener listener = sListener;
+		if (listener != null) {
+			listener.onBegin(name);
+		}
+
+		record(PHASE_BEGIN, name, Float.NaN);
+	}
+
+	/**
+	 * Ends the most recent span that began on the current thread.
+	 */
+	public static void end() {
+		if (!sEnabled) {
+			return;
+		}
+
+		record(PHASE_END, null, Float.NaN);
+
+		Listener listener = sListener;
+		if (listener != null) {
+			listener.onEnd();
+		}
+	}
+
+	/**
+	 * Records an event with no duration, such as a change of the fade value.
+	 *
+	 * @param name  the name of the event
+	 * @param value a value to attach to the event
+	 */
+	public static void instant(String name, float value) {
+		if (!sEnabled) {
+			return;
+		}
+
+		record(PHASE_INSTANT, name, value);
+	}
+
+	private static void record(char phase, String name, float value) {
+		final long time = System.nanoTime();
+		final Thread thread = Thread.currentThread();
+
+		synchronized (sLock) {
+			int i = (int) (sCount++ % CAPACITY);
+
+			sTimes[i] = time;
+			sThreadIds[i] = thread.getId();
+			sThreadNames[i] = thread.getName();
+			sNames[i] = name;
+			sPhases[i] = phase;
+			sValues[i] = value;
+		}
+	}
+
+	/**
+	 * Discards every recorded event.
+	 */
+	public static void clear() {
+		synchronized (sLock) {
+			sCount = 0;
+			// Let the names be collected.
+			Arrays.fill(sNames, null);
+			Arrays.fill(sThreadNames, null);
+		}
+	}
+
+	/**
+	 * Writes the recorded events as a Chrome trace event JSON document. The oldest spans may have
+	 * been overwritten, so end events without a matching begin are dropped.
+	 *
+	 * @param writer where to write the JSON
+	 * @throws IOException if the writer fails
+	 */
+	public static void export(Writer writer) throws IOException {
+		final int count;
+		final int first;
+		final long[] times = new long[CAPACITY];
+		final long[] threadIds = new long[CAPACITY];
+		final String[] threadNames = new String[CAPACITY];
+		final String[] names = new String[CAPACITY];
+		final char[] phases = new char[CAPACITY];
+		final float[] values = new float[CAPACITY];
+
+		// Copy the buffer so recording is only blocked for the copy, not the write.
+		synchronized (sLock) {
+			count = (int) Math.min(sCount, CAPACITY);
+			first = (int) ((sCount - count) % CAPACITY);
+
+			System.arraycopy(sTimes, 0, times, 0, CAPACITY);
+			System.arraycopy(sThreadIds, 0, threadIds, 0, CAPACITY);
+			System.arraycopy(sThreadNames, 0, threadNames, 0, CAPACITY);
+			System.arraycopy(sNames, 0, names, 0, CAPACITY);
+			System.arraycopy(sPhases, 0, phases, 0, CAPACITY);
+			System.arraycopy(sValues, 0, values, 0, CAPACITY);
+		}
+
+		writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+
+		Map<Long, String> threads = new LinkedHashMap<Long, String>();
+		// The number of open spans on each thread.
+		Map<Long, Integer> depths = new HashMap<Long, Integer>();
+		boolean separator = false;
+
+		for (int n = 0; n < count; n++) {
+			int i = (first + n) % CAPACITY;
+			long tid = threadIds[i];
+
+			threads.put(tid, threadNames[i]);
+
+			Integer depth = depths.get(tid);
+			int d = depth != null ? depth : 0;
+
+			if (phases[i] == PHASE_END) {
+				if (d == 0) {
+					continue;
+				}
+				depths.put(tid, d - 1);
+			} else if (phases[i] == PHASE_BEGIN) {
+				depths.put(tid, d + 1);
+			}
+
+			if (separator) {
+				writer.write(',');
+			}
+			separator = true;
+
+			writer.write("\n{\"ph\":\"");
+			writer.write(phases[i]);
+			writer.write("\",\"pid\":1,\"tid\":");
+			writer.write(Long.toString(tid));
+			writer.write(",\"ts\":");
+			// Microseconds, with the fraction kept.
+			long fraction = times[i] % 1000;
+			writer.write(Long.toString(times[i] / 1000));
+			writer.write(fraction < 10 ? ".00" : fraction < 100 ? ".0" : ".");
+			writer.write(Long.toString(fraction));
+
+			if (names[i] != null) {
+				writer.write(",\"name\":");
+				writeString(writer, names[i]);
+			}
+
+			if (phases[i] == PHASE_INSTANT) {
+				writer.write(",\"s\":\"t\"");
+				if (!Float.isNaN(values[i])) {
+					writer.write(",\"args\":{\"value\":");
+					writer.write(Float.toString(values[i]));
+					writer.write('}');
+				}
+			}
+
+			writer.write('}');
+		}
+
+		// Name the threads, so the tracks are readable.
+		for (Map.Entry<Long, String> thread : threads.entrySet()) {
+			if (separator) {
+				writer.write(',');
+			}
+			separator = true;
+
+			writer.write("\n{\"ph\":\"M\",\"pid\":1,\"tid\":");
+			writer.write(Long.toString(thread.getKey()));
+			writer.write(",\"name\":\"thread_name\",\"args\":{\"name\":");
+			writeString(writer, thread.getValue());
+			writer.write("}}");
+		}
+
+		writer.write("\n]}\n");
+		writer.flush();
+	}
+
+	private static void writeString(Writer writer, String value) throws IOException {
+		writer.write('"');
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				writer.write('\\');
+				writer.write(c);
+			} else if (c < 0x20) {
+				String hex = Integer.toHexString(c);
+				writer.write("\\u00");
+				writer.write(hex.length() < 2 ? "0" + hex : hex);
+			} else {
+				writer.write(c);
+			}
+		}
+
+		writer.write('"');
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class AreaDownsamplerTest {
+
+	/**
+	 * Averages every source pixel by how much of it falls in each destination pixel, measured in
+	 * units where a source pixel is width by height and a destination pixel is sourceWidth by
+	 * sourceHeight, so every overlap is a whole number.
+	 */
+	private static int[] reference(int[] source, int sourceWidth, int sourceHeight, int width,
+	                               int height) {
+		int[] result = new int[width * height];
+		long total = (long) sourceWidth * sourceHeight;
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				long[] sums = new long[4];
+
+				for (int sy = 0; sy < sourceHeight; sy++) {
+					long dy = overlap(sy * height, (sy + 1) * height, y * sourceHeight,
+							(y + 1) * sourceHeight);
+					if (dy == 0) {
+						continue;
+					}
+
+					for (int sx = 0; sx < sourceWidth; sx++) {
+						long weight = dy * overlap(sx * width, (sx + 1) * width,
+								x * sourceWidth, (x + 1) * sourceWidth);
+						int pixel = source[sy * sourceWidth + sx];
+
+						sums[0] += (pixel >>> 24) * weight;
+						sums[1] += ((pixel >> 16) & 0xFF) * weight;
+						sums[2] += ((pixel >> 8) & 0xFF) * weight;
+						sums[3] += (pixel & 0xFF) * weight;
+					}
+				}
+
+				int pixel = 0;
+				for (long sum : sums) {
+					pixel = (pixel << 8) | (int) ((sum + total / 2) / total);
+				}
+				result[y * width + x] = pixel;
+			}
+		}
+
+		return result;
+	}
+
+	private static long overlap(long start, long end, long otherStart, long otherEnd) {
+		return Math.max(0, Math.min(end, otherEnd) - Math.max(start, otherStart));
+	}
+
+	private static int[] downsample(int[] source, int sourceWidth, int sourceHeight, int width,
+	                                int height) {
+		AreaDownsampler downsampler = new AreaDownsampler(sourceWidth, sourceHeight, width,
+				height);
+		int[] result = new int[width * height];
+		int rows = 0;
+
+		for (int y = 0; y < sourceHeight; y++) {
+			if (downsampler.addRow(source, y * sourceWidth, result, rows * width)) {
+				rows++;
+			}
+		}
+
+		assertEquals(height, rows);
+		return result;
+	}
+
+	@Test
+	public void matchesTheExactAreaAverage() {
+		Random random = new Random(38);
+
+		for (int n = 0; n < 300; n++) {
+			int sourceWidth = 1 + random.nextInt(40);
+			int sourceHeight = 1 + random.nextInt(40);
+			int width = 1 + random.nextInt(sourceWidth);
+			int height = 1 + random.nextInt(sourceHeight);
+
+			int[] source = new int[sourceWidth * sourceHeight];
+			for (int i = 0; i < source.length; i++) {
+				source[i] = random.nextInt();
+			}
+
+			assertArrayEquals(sourceWidth + "x" + sourceHeight + " to " + width + "x" + height,
+					reference(source, sourceWidth, sourceHeight, width, height),
+					downsample(source, sourceWidth, sourceHeight, width, height));
+		}
+	}
+
+	@Test
+	public void keepsAFlatColor() {
+		int[] source = new int[23 * 17];
+		Arrays.fill(source, 0x80C0FF01);
+
+		int[] result = downsample(source, 23, 17, 7, 5);
+
+		for (int pixel : result) {
+			assertEquals(0x80C0FF01, pixel);
+		}
+	}
+
+	@Test
+	public void averagesWholeBlocks() {
+		int[] source = {
+				0xFF000000, 0xFF0000FF, 0xFF00FF00, 0xFF00FF00,
+				0xFFFF0000, 0xFFFFFFFF, 0xFF00FF00, 0xFF00FF00,
+		};
+
+		// Red and blue are 255 * 2 / 4 = 127.5, which rounds up, and green is 255 / 4 = 63.75.
+		assertArrayEquals(new int[]{0xFF804080, 0xFF00FF00}, downsample(source, 4, 2, 2, 1));
+	}
+
+	@Test
+	public void rejectsScalingUp() {
+		try {
+			new AreaDownsampler(4, 4, 5, 4);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void rejectsExtraRows() {
+		AreaDownsampler downsampler = new AreaDownsampler(2, 2, 1, 1);
+		int[] row = new int[1];
+
+		assertFalse(downsampler.addRow(new int[2], 0, row, 0));
+		downsampler.addRow(new int[2], 0, row, 0);
+		try {
+			downsampler.addRow(new int[2], 0, row, 0);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchJournalTest {
+
+	private static final List<String> URIS = Arrays.asList(
+			"content://media/external/images/media/1",
+			"content://media/external/images/media/2",
+			"content://media/external/images/media/3");
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mFile;
+
+	@Before
+	public void setUp() {
+		mFile = new File(mFolder.getRoot(), "batch.journal");
+	}
+
+	@Test
+	public void resumesPendingJobs() throws IOException {
+		BatchJournal journal = new BatchJournal(mFile);
+		journal.load();
+		List<BatchJournal.Job> jobs = journal.add("a", URIS, 0.25f, true, FadeMask.TYPE_VIGNETTE,
+				true);
+		journal.complete(jobs.get(0).id, true);
+		journal.complete(jobs.get(1).id, false);
+
+		BatchJournal reloaded = new BatchJournal(mFile);
+		reloaded.load();
+
+		List<BatchJournal.Job> pending = reloaded.getPending();
+		assertEquals(1, pending.size());
+		BatchJournal.Job job = pending.get(0);
+		assertEquals(jobs.get(2).id, job.id);
+		assertEquals(URIS.get(2), job.uri);
+		assertEquals(0.25f, job.fade, 0);
+		assertTrue(job.linear);
+		assertEquals(FadeMask.TYPE_VIGNETTE, job.mask);
+		assertTrue(job.renditions);
+		assertEquals(1, reloaded.getCompletedCount());
+		assertEquals(1, reloaded.getFailedCount());
+	}
+
+	@Test
+	public void addsBatchOnce() throws IOException {
+		BatchJournal journal = new BatchJournal(mFile);
+		journal.load();
+		journal.add("a", URIS, 0.5f, false, FadeMask.TYPE_NONE, false);
+
+		BatchJournal reloaded = new BatchJournal(mFile);
+		reloaded.load();
+
+		assertTrue(reloaded.add("a", URIS, 0.5f, false, FadeMask.TYPE_NONE, false).isEmpty());
+		assertEquals(URIS.size(), reloaded.add("b", URIS, 0.5f, false, FadeMask.TYPE_NONE, false)
+				.size());
+		assertEquals(URIS.size() * 2, reloaded.getPending().size());
+	}
+
+	@Test
+	public void dropsTornLastLine() throws IOException {
+		BatchJournal journal = new BatchJournal(mFile);
+		journal.load();
+		journal.add(null, URIS.subList(0, 1), 0.5f, false, FadeMask.TYPE_NONE, false);
+		long length = mFile.length();
+		journal.add(null, URIS.subList(1, 2), 0.5f, false, FadeMask.TYPE_NONE, false);
+
+		// Cut the second record off inside its uri.
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		file.setLength(length + 30);
+		file.close();
+
+		BatchJournal reloaded = new BatchJournal(mFile);
+		reloaded.load();
+
+		assertEquals(1, reloaded.getPending().size());
+		assertEquals(URIS.get(0), reloaded.getPending().get(0).uri);
+		assertEquals("torn tail removed", length, mFile.length());
+
+		// A record appended after recovery starts on its own line.
+		reloaded.add(null, URIS.subList(2, 3), 0.5f, false, FadeMask.TYPE_NONE, false);
+		BatchJournal again = new BatchJournal(mFile);
+		again.load();
+		assertEquals(2, again.getPending().size());
+		assertEquals(URIS.get(2), again.getPending().get(1).uri);
+	}
+
+	@Test
+	public void skipsRecordWithBadChecksum() throws IOException {
+		BatchJournal journal = new BatchJournal(mFile);
+		journal.load();
+		journal.add(null, URIS.subList(0, 2), 0.5f, false, FadeMask.TYPE_NONE, false);
+
+		// Flip a character in the uri of the last record.
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		file.seek(file.length() - 12);
+		file.write('x');
+		file.close();
+
+		BatchJournal reloaded = new BatchJournal(mFile);
+		reloaded.load();
+
+		assertEquals(1, reloaded.getPending().size());
+		assertEquals(URIS.get(0), reloaded.getPending().get(0).uri);
+	}
+
+	@Test
+	public void ignoresRecordsWithoutChecksums() throws IOException {
+		FileOutputStream out = new FileOutputStream(mFile);
+		out.write(("A 10 0.5 1 0 " + URIS.get(0) + "\n"
+				+ "A 11 0.5 0 " + URIS.get(1) + "\n").getBytes("UTF-8"));
+		out.close();
+
+		BatchJournal journal = new BatchJournal(mFile);
+		journal.load();
+
+		assertTrue(journal.getPending().isEmpty());
+	}
+
+	@Test
+	public void deletesFileOnceEverythingCompletes() throws IOException {
+		BatchJournal journal = new BatchJournal(mFile);
+		journal.load();
+		List<BatchJournal.Job> jobs = journal.add("a", URIS.subList(0, 2), 0.5f, false,
+				FadeMask.TYPE_NONE, false);
+
+		for (BatchJournal.Job job : jobs) {
+			journal.complete(job.id, true);
+		}
+
+		assertFalse(mFile.exists());
+		assertTrue(journal.getPending().isEmpty());
+	}
+}
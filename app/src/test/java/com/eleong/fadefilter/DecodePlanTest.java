@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DecodePlanTest {
+
+	private static final int MAX_SIZE = 4096;
+	private static final int BYTES_PER_PIXEL = 4;
+	private static final long NO_BUDGET = Long.MAX_VALUE;
+
+	@Test
+	public void subsamplesThenScalesToTheShortSide() {
+		DecodePlan plan = DecodePlan.create(4032, 3024, 1080, 1080, MAX_SIZE, BYTES_PER_PIXEL,
+				NO_BUDGET);
+
+		assertEquals(2, plan.getSampleSize());
+		assertEquals(2016, plan.getSampledWidth());
+		assertEquals(1512, plan.getSampledHeight());
+		assertEquals(1440, plan.getTargetWidth());
+		assertEquals(1080, plan.getTargetHeight());
+		assertTrue(plan.isScaled());
+
+		// The decoder scales by inTargetDensity / inDensity after subsampling.
+		assertEquals(2016, plan.getDensity());
+		assertEquals(1440, plan.getTargetDensity());
+	}
+
+	@Test
+	public void exactPowerOfTwoNeedsNoScaling() {
+		DecodePlan plan = DecodePlan.create(4000, 3000, 1000, 750, MAX_SIZE, BYTES_PER_PIXEL,
+				NO_BUDGET);
+
+		assertEquals(4, plan.getSampleSize());
+		assertEquals(1000, plan.getTargetWidth());
+		assertEquals(750, plan.getTargetHeight());
+		assertFalse(plan.isScaled());
+		assertEquals(plan.getTargetBytes(), plan.getPeakBytes());
+	}
+
+	@Test
+	public void neverScalesUp() {
+		DecodePlan plan = DecodePlan.create(800, 600, 1080, 1080, MAX_SIZE, BYTES_PER_PIXEL,
+				NO_BUDGET);
+
+		assertEquals(1, plan.getSampleSize());
+		assertEquals(800, plan.getTargetWidth());
+		assertEquals(600, plan.getTargetHeight());
+		assertFalse(plan.isScaled());
+	}
+
+	@Test
+	public void fitsTheMaximumTextureSize() {
+		DecodePlan plan = DecodePlan.create(8000, 2000, 2048, 2048, MAX_SIZE, BYTES_PER_PIXEL,
+				NO_BUDGET);
+
+		// Halving would leave fewer pixels than the texture allows.
+		assertEquals(1, plan.getSampleSize());
+		assertEquals(MAX_SIZE, plan.getTargetWidth());
+		assertEquals(1024, plan.getTargetHeight());
+	}
+
+	@Test
+	public void fitsTheBudget() {
+		long budget = 16L << 20;
+		DecodePlan plan = DecodePlan.create(4032, 3024, 4032, 4032, 8192, BYTES_PER_PIXEL,
+				budget);
+
+		assertTrue(plan.getTargetBytes() <= budget);
+		assertEquals(2364, plan.getTargetWidth());
+		assertEquals(1773, plan.getTargetHeight());
+		assertEquals(plan.getTargetBytes()
+						+ (long) plan.getSampledWidth() * plan.getSampledHeight() * BYTES_PER_PIXEL,
+				plan.getPeakBytes());
+	}
+
+	@Test
+	public void sampledSizeRoundsUp() {
+		assertEquals(1512, DecodePlan.getSampledSize(3024, 2));
+		assertEquals(1513, DecodePlan.getSampledSize(3025, 2));
+		assertEquals(1, DecodePlan.getSampledSize(3, 4));
+	}
+
+	@Test
+	public void sampleSizeIsBoundedByTheImage() {
+		DecodePlan plan = DecodePlan.create(4033, 3025, 1, 1, MAX_SIZE, BYTES_PER_PIXEL,
+				NO_BUDGET);
+
+		assertEquals(2048, plan.getSampleSize());
+		assertEquals(1, plan.getTargetWidth());
+		assertEquals(1, plan.getTargetHeight());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyImage() {
+		DecodePlan.create(0, 100, 100, 100, MAX_SIZE, BYTES_PER_PIXEL, NO_BUDGET);
+	}
+}
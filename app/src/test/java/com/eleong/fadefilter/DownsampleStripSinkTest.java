@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownsampleStripSinkTest {
+
+	/**
+	 * Publishes the rows of an array.
+	 */
+	private static class ArraySource extends StripSource {
+		private final int[] mPixels;
+
+		ArraySource(int[] pixels, int width, int height, int stripRows, int maxStrips) {
+			super(width, height, stripRows, maxStrips);
+			mPixels = pixels;
+		}
+
+		@Override
+		protected void read(Strip strip) {
+			System.arraycopy(mPixels, strip.getTop() * getWidth(), strip.getPixels(), 0,
+					strip.getRows() * getWidth());
+		}
+	}
+
+	private static int[] createPixels(int width, int height) {
+		Random random = new Random(width * 31 + height);
+		int[] pixels = new int[width * height];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt();
+		}
+		return pixels;
+	}
+
+	private static int[] downsampleWhole(int[] pixels, int sourceWidth, int sourceHeight,
+	                                     int width, int height) {
+		AreaDownsampler downsampler = new AreaDownsampler(sourceWidth, sourceHeight, width,
+				height);
+		int[] result = new int[width * height];
+		int row = 0;
+
+		for (int y = 0; y < sourceHeight; y++) {
+			if (downsampler.addRow(pixels, y * sourceWidth, result, row * width)) {
+				row++;
+			}
+		}
+
+		assertEquals(height, row);
+		return result;
+	}
+
+	private static void check(int sourceWidth, int sourceHeight, int width, int height,
+	                          int stripRows) throws IOException {
+		int[] pixels = createPixels(sourceWidth, sourceHeight);
+		final int[] result = new int[width * height];
+		final int[] next = new int[1];
+		final int resultWidth = width;
+
+		StripSource source = new ArraySource(pixels, sourceWidth, sourceHeight, stripRows, 2);
+		DownsampleStripSink sink = new DownsampleStripSink(sourceWidth, sourceHeight, width,
+				height, 2, new DownsampleStripSink.Target() {
+					@Override
+					public void setRows(int[] rows, int top, int count) {
+						// Bands arrive in order, with no gaps.
+						assertEquals(next[0], top);
+						System.arraycopy(rows, 0, result, top * resultWidth, count * resultWidth);
+						next[0] += count;
+					}
+				});
+
+		source.subscribe(sink);
+		sink.await();
+
+		assertEquals(height, next[0]);
+		assertArrayEquals(downsampleWhole(pixels, sourceWidth, sourceHeight, width, height),
+				result);
+	}
+
+	@Test
+	public void matchesAWholeImageDownsample() throws IOException {
+		check(64, 48, 32, 24, 16);
+		check(100, 75, 37, 28, 16);
+		check(33, 70, 10, 21, 7);
+	}
+
+	@Test
+	public void copiesAnImageOfTheSameSize() throws IOException {
+		check(20, 13, 20, 13, 4);
+	}
+
+	@Test
+	public void shrinksToASinglePixel() throws IOException {
+		check(17, 9, 1, 1, 16);
+	}
+
+	@Test
+	public void targetFailureFailsTheWait() {
+		int[] pixels = createPixels(8, 8);
+		StripSource source = new ArraySource(pixels, 8, 8, 2, 2);
+		DownsampleStripSink sink = new DownsampleStripSink(8, 8, 4, 4, 2,
+				new DownsampleStripSink.Target() {
+					@Override
+					public void setRows(int[] rows, int top, int count) {
+						throw new IllegalStateException("No room for row " + top);
+					}
+				});
+
+		source.subscribe(sink);
+		try {
+			sink.await();
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("No room for row 0"));
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Etc1CodecTest {
+
+	@Test
+	public void encodedSizeRoundsUpToWholeBlocks() {
+		assertEquals(Etc1Codec.BLOCK_SIZE, Etc1Codec.getEncodedSize(1, 1));
+		assertEquals(Etc1Codec.BLOCK_SIZE, Etc1Codec.getEncodedSize(4, 4));
+		assertEquals(4 * 2 * Etc1Codec.BLOCK_SIZE, Etc1Codec.getEncodedSize(13, 7));
+	}
+
+	@Test
+	public void flatGrayRoundTripsWithinOneLevel() {
+		int[] block = new int[16];
+
+		for (int value = 0; value <= 255; value++) {
+			Arrays.fill(block, gray(value));
+			int[] decoded = Etc1Codec.decode(Etc1Codec.encode(block, 4, 4), 0, 4, 4);
+
+			for (int pixel : decoded) {
+				assertEquals(0xFF, pixel >>> 24);
+				assertEquals("value " + value, value, pixel & 0xFF, 1);
+				assertEquals("value " + value, value, (pixel >> 8) & 0xFF, 1);
+				assertEquals("value " + value, value, (pixel >> 16) & 0xFF, 1);
+			}
+		}
+	}
+
+	@Test
+	public void smoothImageRoundTripsClosely() {
+		// Not a multiple of the block size, so the edge blocks are padded.
+		int width = 62;
+		int height = 37;
+		int[] argb = new int[width * height];
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				argb[y * width + x] = 0xFF000000 | (x * 2) << 16 | (64 + y * 3) << 8
+						| (128 + x + y);
+			}
+		}
+
+		int[] decoded = Etc1Codec.decode(Etc1Codec.encode(argb, width, height), 0, width, height);
+		assertEquals(argb.length, decoded.length);
+
+		double squared = 0;
+		for (int i = 0; i < argb.length; i++) {
+			assertEquals(0xFF, decoded[i] >>> 24);
+
+			for (int shift = 0; shift < 24; shift += 8) {
+				int error = ((argb[i] >> shift) & 0xFF) - ((decoded[i] >> shift) & 0xFF);
+				assertTrue("pixel " + i + " error " + error, Math.abs(error) <= 12);
+				squared += error * error;
+			}
+		}
+
+		double rms = Math.sqrt(squared / (argb.length * 3));
+		assertTrue("rms " + rms, rms < 3);
+	}
+
+	@Test
+	public void blockRowsMatchWholeImageEncoding() {
+		int width = 9;
+		int height = 6;
+		int[] argb = new int[width * height];
+
+		for (int i = 0; i < argb.length; i++) {
+			argb[i] = 0xFF000000 | (i * 0x010305 * 7) & 0xFFFFFF;
+		}
+
+		byte[] whole = Etc1Codec.encode(argb, width, height);
+		byte[] rows = new byte[whole.length];
+		int blockRowSize = ((width + 3) / 4) * Etc1Codec.BLOCK_SIZE;
+
+		// Encode from a wider buffer, as the cache does with its row scratch space.
+		int stride = width + 3;
+		int[] strip = new int[stride * 4];
+		for (int y = 0; y < height; y += 4) {
+			int count = Math.min(4, height - y);
+			for (int r = 0; r < count; r++) {
+				System.arraycopy(argb, (y + r) * width, strip, r * stride, width);
+			}
+
+			Etc1Codec.encodeBlockRow(strip, stride, width, count, rows, (y / 4) * blockRowSize);
+		}
+
+		assertArrayEquals(whole, rows);
+	}
+
+	private static int gray(int value) {
+		return 0xFF000000 | (value << 16) | (value << 8) | value;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FadeKernelTest {
+
+	private static final boolean[] MODES = {false, true};
+
+	private static int[] createPixels(int count) {
+		Random random = new Random(count);
+		int[] pixels = new int[count];
+		for (int i = 0; i < count; i++) {
+			pixels[i] = 0xFF000000 | random.nextInt();
+		}
+		return pixels;
+	}
+
+	@Test
+	public void noFadeIsTheIdentity() {
+		for (boolean linear : MODES) {
+			int[] pixels = createPixels(4096);
+			int[] faded = pixels.clone();
+
+			new FadeKernel(0, linear).apply(faded, 0, faded.length);
+
+			assertArrayEquals("linear " + linear, pixels, faded);
+		}
+	}
+
+	@Test
+	public void fullFadeIsWhite() {
+		for (boolean linear : MODES) {
+			int[] pixels = createPixels(4096);
+			int[] white = new int[pixels.length];
+			Arrays.fill(white, 0xFFFFFFFF);
+
+			new FadeKernel(1, linear).apply(pixels, 0, pixels.length);
+
+			assertArrayEquals("linear " + linear, white, pixels);
+		}
+	}
+
+	@Test
+	public void gammaLutMatchesTheFormula() {
+		for (int step = 0; step <= 20; step++) {
+			float fade = step / 20.0f;
+			byte[] lut = FadeKernel.createLut(fade, false);
+
+			for (int i = 0; i < FadeKernel.LUT_SIZE; i++) {
+				assertEquals(255.0 * fade + (1.0 - fade) * i, lut[i] & 0xFF, 0.5 + 1e-4);
+			}
+		}
+	}
+
+	@Test
+	public void linearLutMatchesPowWithinOneLevel() {
+		for (int step = 0; step <= 20; step++) {
+			float fade = step / 20.0f;
+			byte[] lut = FadeKernel.createLut(fade, true);
+			double floor = SrgbTables.toLinear(fade);
+
+			for (int i = 0; i < FadeKernel.LUT_SIZE; i++) {
+				double linear = floor + (1.0 - floor) * SrgbTables.toLinear(i / 255.0);
+				double expected = 255.0 * SrgbTables.toSrgb(linear);
+
+				assertEquals("fade " + fade + " value " + i, expected, lut[i] & 0xFF, 1.0);
+			}
+		}
+	}
+
+	@Test
+	public void applyMakesAlphaOpaque() {
+		int[] pixels = {0x00000000, 0x80402010};
+
+		new FadeKernel(0, false).apply(pixels, 0, pixels.length);
+
+		assertArrayEquals(new int[]{0xFF000000, 0xFF402010}, pixels);
+	}
+
+	@Test
+	public void applyOnlyTouchesTheRange() {
+		int[] pixels = new int[8];
+
+		new FadeKernel(1, false).apply(pixels, 2, 3);
+
+		assertArrayEquals(new int[]{0, 0, -1, -1, -1, 0, 0, 0}, pixels);
+	}
+
+	@Test
+	public void fullMaskMatchesTheUnmaskedFade() {
+		int width = 37;
+		int height = 23;
+		byte[] mask = new byte[FadeMask.SIZE * FadeMask.SIZE];
+		Arrays.fill(mask, (byte) 0xFF);
+
+		for (boolean linear : MODES) {
+			FadeKernel kernel = new FadeKernel(0.4f, linear);
+			int[] pixels = createPixels(width * height);
+			int[] masked = pixels.clone();
+
+			kernel.apply(pixels, 0, pixels.length);
+			kernel.apply(masked, width, height, 0, height, mask, FadeMask.SIZE);
+
+			assertArrayEquals("linear " + linear, pixels, masked);
+		}
+	}
+
+	@Test
+	public void emptyMaskIsTheIdentity() {
+		int width = 37;
+		int height = 23;
+		byte[] mask = new byte[FadeMask.SIZE * FadeMask.SIZE];
+
+		for (boolean linear : MODES) {
+			int[] pixels = createPixels(width * height);
+			int[] masked = pixels.clone();
+
+			new FadeKernel(0.7f, linear).apply(masked, width, height, 0, height, mask,
+					FadeMask.SIZE);
+
+			assertArrayEquals("linear " + linear, pixels, masked);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FadeServerTest {
+
+	private static final byte[] IMAGE = {1, 2, 3, 4};
+	private static final byte[] RENDITION = {5, 6, 7};
+
+	private FadeServer mServer;
+
+	@After
+	public void tearDown() {
+		if (mServer != null) {
+			mServer.stop();
+		}
+	}
+
+	@Test
+	public void rendersFade() throws IOException {
+		start(new FadeServer.Renderer() {
+			@Override
+			public byte[] render(byte[] image, float fade, boolean linear, int size) {
+				return RENDITION;
+			}
+		});
+
+		HttpURLConnection connection = post("/fade?fade=0.3");
+		assertEquals(200, connection.getResponseCode());
+		assertArrayEquals(RENDITION, readFully(connection.getInputStream()));
+	}
+
+	@Test
+	public void rejectsMissingFade() throws IOException {
+		start(new FadeServer.Renderer() {
+			@Override
+			public byte[] render(byte[] image, float fade, boolean linear, int size) {
+				return RENDITION;
+			}
+		});
+
+		assertEquals(400, post("/fade").getResponseCode());
+		assertEquals(400, post("/fade?fade=x").getResponseCode());
+		assertEquals(400, post("/fade?fade=2").getResponseCode());
+	}
+
+	@Test
+	public void answersRendererFailuresAndKeepsServing() throws IOException {
+		start(new FadeServer.Renderer() {
+			@Override
+			public byte[] render(byte[] image, float fade, boolean linear, int size)
+					throws IOException {
+				if (size == 1) {
+					throw new IllegalStateException("Broken renderer");
+				} else if (size == 2) {
+					throw new OutOfMemoryError("No room");
+				} else if (size == 3) {
+					throw new IOException("Not an image");
+				}
+				return RENDITION;
+			}
+		});
+
+		assertEquals(500, post("/fade?fade=0.3&size=1").getResponseCode());
+		assertEquals(500, post("/fade?fade=0.3&size=2").getResponseCode());
+		assertEquals(422, post("/fade?fade=0.3&size=3").getResponseCode());
+		assertEquals(200, post("/fade?fade=0.3").getResponseCode());
+	}
+
+	@Test
+	public void keepsFailureDetailsOutOfTheStatusLine() throws IOException {
+		start(new FadeServer.Renderer() {
+			@Override
+			public byte[] render(byte[] image, float fade, boolean linear, int size)
+					throws IOException {
+				throw new IOException("Not a JPEG\r\nX-Injected: 1");
+			}
+		});
+
+		HttpURLConnection connection = post("/fade?fade=0.3");
+		assertEquals(422, connection.getResponseCode());
+		assertEquals("Unprocessable Entity", connection.getResponseMessage());
+		assertNull(connection.getHeaderField("X-Injected"));
+
+		String body = new String(readFully(connection.getErrorStream()), "UTF-8");
+		assertTrue(body, body.contains("Not a JPEG"));
+	}
+
+	@Test
+	public void servesARepeatFromTheCache() throws IOException {
+		final AtomicInteger renders = new AtomicInteger();
+		start(new FadeServer.Renderer() {
+			@Override
+			public byte[] render(byte[] image, float fade, boolean linear, int size) {
+				renders.incrementAndGet();
+				return RENDITION;
+			}
+		});
+
+		HttpURLConnection first = post("/fade?fade=0.3");
+		assertEquals(200, first.getResponseCode());
+		assertArrayEquals(RENDITION, readFully(first.getInputStream()));
+
+		HttpURLConnection second = post("/fade?fade=0.3");
+		assertEquals(200, second.getResponseCode());
+		assertArrayEquals(RENDITION, readFully(second.getInputStream()));
+		assertEquals(first.getHeaderField("ETag"), second.getHeaderField("ETag"));
+		assertEquals(1, renders.get());
+
+		// Any parameter that changes the result misses.
+		assertEquals(200, post("/fade?fade=0.3&linear=1").getResponseCode());
+		assertEquals(200, post("/fade?fade=0.3&size=512").getResponseCode());
+		assertEquals(3, renders.get());
+	}
+
+	@Test
+	public void answersAMatchingETagWithNotModified() throws IOException {
+		final AtomicInteger renders = new AtomicInteger();
+		start(new FadeServer.Renderer() {
+			@Override
+			public byte[] render(byte[] image, float fade, boolean linear, int size) {
+				renders.incrementAndGet();
+				return RENDITION;
+			}
+		});
+
+		HttpURLConnection first = post("/fade?fade=0.3");
+		assertEquals(200, first.getResponseCode());
+		String etag = first.getHeaderField("ETag");
+		assertNotNull(etag);
+
+		HttpURLConnection matching = post("/fade?fade=0.3", etag);
+		assertEquals(304, matching.getResponseCode());
+		assertEquals(etag, matching.getHeaderField("ETag"));
+		assertEquals(0, readFully(matching.getInputStream()).length);
+
+		HttpURLConnection other = post("/fade?fade=0.5", etag);
+		assertEquals(200, other.getResponseCode());
+		assertArrayEquals(RENDITION, readFully(other.getInputStream()));
+
+		assertEquals(2, renders.get());
+	}
+
+	@Test
+	public void reportsStats() throws IOException {
+		start(new FadeServer.Renderer() {
+			@Override
+			public byte[] render(byte[] image, float fade, boolean linear, int size) {
+				return RENDITION;
+			}
+		});
+
+		assertEquals(200, post("/fade?fade=0.3").getResponseCode());
+		assertEquals(200, post("/fade?fade=0.3").getResponseCode());
+		assertEquals(200, post("/fade?fade=0.3").getResponseCode());
+		assertEquals(200, post("/fade?fade=0.6").getResponseCode());
+		assertEquals(400, post("/fade").getResponseCode());
+
+		URL url = new URL("http", "127.0.0.1", mServer.getPort(), "/stats");
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("application/json", connection.getContentType());
+		String stats = new String(readFully(connection.getInputStream()), "UTF-8");
+
+		// The request for the stats counts too.
+		assertEquals(6, getNumber(stats, "requests"), 0);
+		assertEquals(2, getNumber(stats, "renders"), 0);
+		assertEquals(1, getNumber(stats, "errors"), 0);
+		assertEquals(2, getNumber(stats, "hits"), 0);
+		assertEquals(2, getNumber(stats, "misses"), 0);
+		assertEquals(0.5, getNumber(stats, "hitRatio"), 1e-4);
+		assertEquals(2, getNumber(stats, "entries"), 0);
+		assertEquals(2 * RENDITION.length, getNumber(stats, "bytes"), 0);
+		assertEquals(4, getNumber(stats, "samples"), 0);
+
+		double p50 = getNumber(stats, "p50");
+		double p90 = getNumber(stats, "p90");
+		double p99 = getNumber(stats, "p99");
+		double max = getNumber(stats, "max");
+		assertTrue(stats, 0 <= p50 && p50 <= p90 && p90 <= p99 && p99 <= max);
+	}
+
+	private static double getNumber(String json, String name) {
+		Matcher matcher = Pattern.compile("\"" + name + "\":(-?[0-9.]+)").matcher(json);
+		assertTrue(json, matcher.find());
+		return Double.parseDouble(matcher.group(1));
+	}
+
+	private void start(FadeServer.Renderer renderer) throws IOException {
+		mServer = new FadeServer(renderer, new RenditionCache(1024 * 1024), 2);
+		mServer.start(0);
+	}
+
+	private HttpURLConnection post(String path) throws IOException {
+		return post(path, null);
+	}
+
+	private HttpURLConnection post(String path, String ifNoneMatch) throws IOException {
+		URL url = new URL("http", "127.0.0.1", mServer.getPort(), path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		if (ifNoneMatch != null) {
+			connection.setRequestProperty("If-None-Match", ifNoneMatch);
+		}
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(IMAGE.length);
+
+		OutputStream out = connection.getOutputStream();
+		out.write(IMAGE);
+		out.close();
+
+		return connection;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+
+		try {
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+
+		return out.toByteArray();
+	}
+}
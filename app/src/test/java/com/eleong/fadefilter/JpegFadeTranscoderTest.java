@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JpegFadeTranscoderTest {
+
+	private static final int WIDTH = 67;
+	private static final int HEIGHT = 45;
+
+	private static final int MARKER_DHT = 0xC4;
+	private static final int MARKER_DQT = 0xDB;
+
+	@Test
+	public void noFadeKeepsThePixels() throws IOException {
+		byte[] jpeg = createJpeg();
+
+		assertClose(TestJpegs.decode(jpeg), TestJpegs.decode(transcode(jpeg, 0)), 0, 0);
+	}
+
+	@Test
+	public void matchesThePixelFade() throws IOException {
+		byte[] jpeg = createJpeg();
+
+		for (float fade : new float[]{0.1f, 0.3f, 0.6f}) {
+			int[] expected = TestJpegs.decode(jpeg);
+			new FadeKernel(fade, false).apply(expected, 0, expected.length);
+
+			// Only the rounding of each coefficient to its quantization step differs.
+			assertClose(expected, TestJpegs.decode(transcode(jpeg, fade)), 3, 16);
+		}
+	}
+
+	@Test
+	public void fullFadeIsWhite() throws IOException {
+		int[] faded = TestJpegs.decode(transcode(createJpeg(), 1));
+
+		for (int pixel : faded) {
+			for (int shift = 0; shift < 24; shift += 8) {
+				assertEquals(255, (pixel >> shift) & 0xFF, 2);
+			}
+		}
+	}
+
+	@Test
+	public void rejectsOversubscribedHuffmanTable() throws IOException {
+		byte[] jpeg = createJpeg();
+		int bits = findSegment(jpeg, MARKER_DHT) + 1;
+
+		// Three codes of length one, moved from the longest length so the count still matches.
+		int last = bits + 15;
+		while (jpeg[last] < 3) {
+			last--;
+		}
+		jpeg[last] -= 3;
+		jpeg[bits] += 3;
+
+		assertRejected(jpeg);
+	}
+
+	@Test
+	public void rejectsZeroQuantizer() throws IOException {
+		byte[] jpeg = createJpeg();
+		jpeg[findSegment(jpeg, MARKER_DQT) + 1] = 0;
+
+		assertRejected(jpeg);
+	}
+
+	@Test
+	public void rejectsAcCategoryAboveTen() throws IOException {
+		byte[] jpeg = createJpeg();
+
+		// Turn the symbol for a lone coefficient of magnitude one into one of category 11.
+		int position = 2;
+		boolean changed = false;
+		while (!changed) {
+			int table = findSegment(jpeg, MARKER_DHT, position);
+			int end = table - 2 + (((jpeg[table - 2] & 0xFF) << 8) | (jpeg[table - 1] & 0xFF));
+
+			for (int info = table; info < end; ) {
+				int count = 0;
+				for (int i = 1; i <= 16; i++) {
+					count += jpeg[info + i] & 0xFF;
+				}
+
+				if ((jpeg[info] >> 4) != 0) {
+					for (int i = info + 17; i < info + 17 + count; i++) {
+						if (jpeg[i] == 0x01) {
+							jpeg[i] = 0x0B;
+							changed = true;
+						}
+					}
+				}
+				info += 17 + count;
+			}
+			position = end;
+		}
+
+		assertRejected(jpeg);
+	}
+
+	private static byte[] createJpeg() throws IOException {
+		return TestJpegs.encode(TestJpegs.createPixels(WIDTH, HEIGHT), WIDTH, HEIGHT, false);
+	}
+
+	private static byte[] transcode(byte[] jpeg, float fade) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JpegFadeTranscoder(fade).transcode(jpeg, 0, jpeg.length, out);
+		return out.toByteArray();
+	}
+
+	private static void assertRejected(byte[] jpeg) {
+		try {
+			transcode(jpeg, 0.5f);
+			fail("Transcoded a malformed JPEG");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * @return the index of the first byte after the length of the first segment with a marker
+	 */
+	private static int findSegment(byte[] jpeg, int marker) {
+		return findSegment(jpeg, marker, 2);
+	}
+
+	private static int findSegment(byte[] jpeg, int marker, int position) {
+		while (position + 4 <= jpeg.length) {
+			int found = jpeg[position + 1] & 0xFF;
+			int length = ((jpeg[position + 2] & 0xFF) << 8) | (jpeg[position + 3] & 0xFF);
+
+			if (found == marker) {
+				return position + 4;
+			}
+			position += 2 + length;
+		}
+
+		throw new AssertionError(String.format("No segment 0x%X", marker));
+	}
+
+	private static void assertClose(int[] expected, int[] actual, double maxMean, int maxError) {
+		assertEquals(expected.length, actual.length);
+
+		long total = 0;
+		int worst = 0;
+		for (int i = 0; i < expected.length; i++) {
+			for (int shift = 0; shift < 24; shift += 8) {
+				int error = Math.abs(((expected[i] >> shift) & 0xFF)
+						- ((actual[i] >> shift) & 0xFF));
+				total += error;
+				worst = Math.max(worst, error);
+			}
+		}
+
+		double mean = (double) total / (expected.length * 3);
+		assertTrue("mean error " + mean, mean <= maxMean);
+		assertTrue("worst error " + worst, worst <= maxError);
+	}
+}
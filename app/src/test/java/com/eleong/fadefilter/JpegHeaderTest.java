@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegHeaderTest {
+
+	private static final int WIDTH = 75;
+	private static final int HEIGHT = 42;
+
+	@Test
+	public void parsesBaseline() throws IOException {
+		JpegHeader header = parse(false);
+
+		assertNotNull(header);
+		assertFalse(header.isProgressive());
+		assertFrame(header);
+	}
+
+	@Test
+	public void parsesProgressive() throws IOException {
+		JpegHeader header = parse(true);
+
+		assertNotNull(header);
+		assertTrue(header.isProgressive());
+		assertFrame(header);
+	}
+
+	@Test
+	public void parsesFromStreamAndStopsAfterTheFrame() throws IOException {
+		byte[] jpeg = TestJpegs.encode(TestJpegs.createPixels(WIDTH, HEIGHT), WIDTH, HEIGHT, false);
+		ByteArrayInputStream in = new ByteArrayInputStream(jpeg);
+
+		JpegHeader header = JpegHeader.parse(in);
+
+		assertNotNull(header);
+		assertEquals(WIDTH, header.getWidth());
+		assertTrue("read the whole file", in.available() > 0);
+	}
+
+	@Test
+	public void readsOrientation() throws IOException {
+		byte[] jpeg = TestJpegs.encode(TestJpegs.createPixels(WIDTH, HEIGHT), WIDTH, HEIGHT, true);
+		byte[] rotated = TestJpegs.withOrientation(jpeg, ExifReader.ORIENTATION_ROTATE_90);
+
+		JpegHeader header = JpegHeader.parse(rotated, 0, rotated.length);
+
+		assertNotNull(header);
+		assertEquals(ExifReader.ORIENTATION_ROTATE_90, header.getOrientation());
+		assertEquals(ExifReader.ORIENTATION_NORMAL, JpegHeader.parse(jpeg, 0, jpeg.length)
+				.getOrientation());
+	}
+
+	@Test
+	public void rejectsOtherData() {
+		byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+		assertNull(JpegHeader.parse(png, 0, png.length));
+		assertNull(JpegHeader.parse(new byte[0], 0, 0));
+	}
+
+	@Test
+	public void rejectsTruncatedHeader() throws IOException {
+		byte[] jpeg = TestJpegs.encode(TestJpegs.createPixels(WIDTH, HEIGHT), WIDTH, HEIGHT, false);
+
+		// The JFIF segment alone holds no frame.
+		assertNull(JpegHeader.parse(Arrays.copyOf(jpeg, 24), 0, 24));
+	}
+
+	private static JpegHeader parse(boolean progressive) throws IOException {
+		byte[] jpeg = TestJpegs.encode(TestJpegs.createPixels(WIDTH, HEIGHT), WIDTH, HEIGHT,
+				progressive);
+		return JpegHeader.parse(jpeg, 0, jpeg.length);
+	}
+
+	private static void assertFrame(JpegHeader header) {
+		assertEquals(WIDTH, header.getWidth());
+		assertEquals(HEIGHT, header.getHeight());
+		assertEquals(8, header.getPrecision());
+		assertEquals(3, header.getComponentCount());
+		assertEquals(ExifReader.ORIENTATION_NORMAL, header.getOrientation());
+
+		// The desktop encoder subsamples chroma by two in both directions.
+		assertEquals(2, header.getHorizontalSampling(0));
+		assertEquals(2, header.getVerticalSampling(0));
+		for (int i = 1; i < 3; i++) {
+			assertEquals(i + 1, header.getComponentId(i));
+			assertEquals(1, header.getHorizontalSampling(i));
+			assertEquals(1, header.getVerticalSampling(i));
+		}
+	}
+}
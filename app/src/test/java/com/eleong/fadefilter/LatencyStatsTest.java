@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LatencyStatsTest {
+
+	@Test
+	public void reportsZerosWithoutSamples() {
+		assertArrayEquals(new long[]{0, 0}, new LatencyStats(4).getPercentiles(50, 100));
+	}
+
+	@Test
+	public void usesTheNearestRank() {
+		LatencyStats stats = new LatencyStats(16);
+		// Added out of order, the percentiles are over the sorted samples.
+		for (long sample : new long[]{50, 10, 40, 20, 30}) {
+			stats.add(sample);
+		}
+
+		// The rank is ceil(p / 100 * n), so with 5 samples each 20% is one rank.
+		assertArrayEquals(new long[]{10, 10, 10, 20, 30, 30, 40, 50, 50},
+				stats.getPercentiles(0, 1, 20, 21, 50, 60, 80, 99, 100));
+	}
+
+	@Test
+	public void matchesTheDefinitionForEveryPercentile() {
+		LatencyStats stats = new LatencyStats(100);
+		for (int i = 100; i >= 1; i--) {
+			stats.add(i);
+		}
+
+		for (int p = 1; p <= 100; p++) {
+			assertEquals(p, stats.getPercentiles(p)[0]);
+		}
+	}
+
+	@Test
+	public void keepsOnlyTheMostRecentSamples() {
+		LatencyStats stats = new LatencyStats(3);
+		stats.add(1000);
+		stats.add(1);
+		stats.add(2);
+		stats.add(3);
+
+		assertEquals(4, stats.getCount());
+		assertArrayEquals(new long[]{1, 2, 3}, stats.getPercentiles(1, 50, 100));
+	}
+}
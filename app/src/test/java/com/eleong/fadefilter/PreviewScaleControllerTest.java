@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the controller against synthetic traces. A frame costs a fixed 2 ms plus a part that
+ * grows with the number of pixels drawn, and its interval is rounded up to whole vsync periods.
+ */
+public class PreviewScaleControllerTest {
+
+	private static final double VSYNC_NANOS = 1e9 / 60;
+	private static final int FRAMES = 600;
+
+	/**
+	 * The milliseconds spent per frame at full resolution, beyond the fixed cost.
+	 */
+	private interface Load {
+		double at(int frame);
+	}
+
+	@Test
+	public void slowDeviceSettlesAtHalf() {
+		float[] scales = run(constant(40), 0.1, 0);
+
+		// Full resolution takes three vsyncs and 0.75 takes two, so only 0.5 keeps up.
+		assertEquals(0.5f, scales[FRAMES - 1], 0);
+		assertTrue(countTail(scales, 0.5f) >= FRAMES / 2 * 0.95);
+		assertTrue("tries up too often", countChanges(scales) <= 12);
+	}
+
+	@Test
+	public void fastDeviceStaysAtFullResolution() {
+		float[] scales = run(constant(8), 0.1, 0);
+
+		assertEquals(0, countChanges(scales));
+		assertEquals(1.0f, scales[FRAMES - 1], 0);
+	}
+
+	@Test
+	public void singleSlowFramesAreIgnored() {
+		float[] scales = run(constant(6), 0, 50);
+
+		assertEquals(0, countChanges(scales));
+	}
+
+	@Test
+	public void thermalThrottlingStepsDown() {
+		float[] scales = run(new Load() {
+			@Override
+			public double at(int frame) {
+				return frame < 100 ? 10 : 35;
+			}
+		}, 0.1, 0);
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals(1.0f, scales[i], 0);
+		}
+		assertEquals(0.5f, scales[FRAMES - 1], 0);
+		assertTrue(countTail(scales, 0.5f) >= FRAMES / 2 * 0.95);
+	}
+
+	@Test
+	public void recoversWhenTheLoadDrops() {
+		float[] scales = run(new Load() {
+			@Override
+			public double at(int frame) {
+				return frame < 60 ? 40 : 8;
+			}
+		}, 0.1, 0);
+
+		assertEquals(0.5f, min(scales), 0);
+		assertEquals(FRAMES / 2, countTail(scales, 1.0f));
+	}
+
+	@Test
+	public void pausesAreIgnored() {
+		PreviewScaleController controller = new PreviewScaleController(
+				PreviewScaleController.DEFAULT_FRAME_BUDGET);
+		controller.start();
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1.0f, controller.onFrame(PreviewScaleController.IDLE_INTERVAL * 2), 0);
+		}
+	}
+
+	@Test
+	public void levelIsKeptBetweenDrags() {
+		PreviewScaleController controller = new PreviewScaleController(
+				PreviewScaleController.DEFAULT_FRAME_BUDGET);
+		controller.start();
+
+		long late = (long) (3 * VSYNC_NANOS);
+		controller.onFrame(late);
+		assertEquals(0.75f, controller.onFrame(late), 0);
+
+		controller.stop();
+		assertEquals(1.0f, controller.getScale(), 0);
+		assertEquals(1.0f, controller.onFrame(late), 0);
+
+		controller.start();
+		assertEquals(0.75f, controller.getScale(), 0);
+	}
+
+	@Test
+	public void budgetFollowsTheRefreshRate() {
+		assertEquals(PreviewScaleController.DEFAULT_FRAME_BUDGET,
+				PreviewScaleController.getFrameBudget(60), 1);
+		assertEquals(11111111, PreviewScaleController.getFrameBudget(90));
+		assertEquals(8333333, PreviewScaleController.getFrameBudget(120));
+
+		// Rates that some devices report instead of the real one.
+		assertEquals(PreviewScaleController.DEFAULT_FRAME_BUDGET,
+				PreviewScaleController.getFrameBudget(0));
+		assertEquals(PreviewScaleController.DEFAULT_FRAME_BUDGET,
+				PreviewScaleController.getFrameBudget(Float.NaN));
+		assertEquals(PreviewScaleController.DEFAULT_FRAME_BUDGET,
+				PreviewScaleController.getFrameBudget(Float.POSITIVE_INFINITY));
+	}
+
+	@Test
+	public void missedVsyncsCountAtHighRefreshRates() {
+		long vsync = PreviewScaleController.getFrameBudget(120);
+		// Every frame misses one vsync, which is still under the 60 Hz budget.
+		long missed = 2 * vsync;
+		assertTrue(missed < PreviewScaleController.DEFAULT_FRAME_BUDGET * 1.5);
+
+		PreviewScaleController controller = new PreviewScaleController(vsync);
+		controller.start();
+		controller.onFrame(missed);
+
+		assertEquals(0.75f, controller.onFrame(missed), 0);
+	}
+
+	/**
+	 * @param load   the load to draw
+	 * @param noise  the relative random variation of each frame's cost
+	 * @param spikes every how many frames a single 50 ms frame happens, or 0 for none
+	 * @return the scale that each frame was drawn at
+	 */
+	private static float[] run(Load load, double noise, int spikes) {
+		PreviewScaleController controller = new PreviewScaleController(
+				PreviewScaleController.DEFAULT_FRAME_BUDGET);
+		controller.start();
+
+		Random random = new Random(1);
+		float[] scales = new float[FRAMES];
+		float scale = controller.getScale();
+
+		for (int frame = 0; frame < FRAMES; frame++) {
+			scales[frame] = scale;
+
+			double millis = (2 + load.at(frame) * scale * scale)
+					* (1 + noise * (random.nextDouble() * 2 - 1));
+			if (spikes > 0 && frame % spikes == spikes - 1) {
+				millis = 50;
+			}
+
+			long interval = (long) (Math.ceil(millis * 1e6 / VSYNC_NANOS) * VSYNC_NANOS);
+			scale = controller.onFrame(interval);
+		}
+
+		return scales;
+	}
+
+	private static Load constant(final double millis) {
+		return new Load() {
+			@Override
+			public double at(int frame) {
+				return millis;
+			}
+		};
+	}
+
+	/**
+	 * @return how many of the second half of the frames were drawn at a scale
+	 */
+	private static int countTail(float[] scales, float scale) {
+		int count = 0;
+		for (int i = scales.length / 2; i < scales.length; i++) {
+			if (scales[i] == scale) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static int countChanges(float[] scales) {
+		int changes = 0;
+		for (int i = 1; i < scales.length; i++) {
+			if (scales[i] != scales[i - 1]) {
+				changes++;
+			}
+		}
+		return changes;
+	}
+
+	private static float min(float[] scales) {
+		float min = Float.MAX_VALUE;
+		for (float scale : scales) {
+			min = Math.min(min, scale);
+		}
+		return min;
+	}
+}
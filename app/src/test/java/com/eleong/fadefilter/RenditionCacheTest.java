@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class RenditionCacheTest {
+
+	@Test
+	public void dropsTheLeastRecentlyUsedFirst() {
+		RenditionCache cache = new RenditionCache(10);
+		cache.put("a", new byte[4]);
+		cache.put("b", new byte[4]);
+
+		// Using a makes b the oldest.
+		assertArrayEquals(new byte[4], cache.get("a"));
+		cache.put("c", new byte[4]);
+
+		assertNull(cache.get("b"));
+		assertArrayEquals(new byte[4], cache.get("a"));
+		assertArrayEquals(new byte[4], cache.get("c"));
+		assertEquals(2, cache.getCount());
+		assertEquals(8, cache.getSize());
+	}
+
+	@Test
+	public void dropsAsManyAsNeeded() {
+		RenditionCache cache = new RenditionCache(10);
+		cache.put("a", new byte[3]);
+		cache.put("b", new byte[3]);
+		cache.put("c", new byte[3]);
+		cache.put("d", new byte[9]);
+
+		assertEquals(1, cache.getCount());
+		assertEquals(9, cache.getSize());
+		assertNull(cache.get("a"));
+		assertNull(cache.get("c"));
+	}
+
+	@Test
+	public void replacingAnEntryUpdatesTheSize() {
+		RenditionCache cache = new RenditionCache(10);
+		cache.put("a", new byte[4]);
+		cache.put("a", new byte[6]);
+
+		assertEquals(1, cache.getCount());
+		assertEquals(6, cache.getSize());
+	}
+
+	@Test
+	public void doesNotKeepAnEntryLargerThanTheCache() {
+		RenditionCache cache = new RenditionCache(10);
+		cache.put("a", new byte[4]);
+		cache.put("huge", new byte[11]);
+
+		assertNull(cache.get("huge"));
+		assertEquals(1, cache.getCount());
+		assertEquals(4, cache.getSize());
+	}
+
+	@Test
+	public void countsHitsAndMisses() {
+		RenditionCache cache = new RenditionCache(10);
+		assertEquals(0, cache.getHitRatio(), 0);
+
+		cache.put("a", new byte[1]);
+		cache.get("a");
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.75, cache.getHitRatio(), 1e-9);
+	}
+
+	@Test
+	public void keysCoverEveryParameter() {
+		byte[] image = {1, 2, 3};
+		String key = RenditionCache.createKey(image, 30, false, 0);
+
+		assertEquals(key, RenditionCache.createKey(image.clone(), 30, false, 0));
+		assertNotEquals(key, RenditionCache.createKey(new byte[]{1, 2, 4}, 30, false, 0));
+		assertNotEquals(key, RenditionCache.createKey(image, 31, false, 0));
+		assertNotEquals(key, RenditionCache.createKey(image, 30, true, 0));
+		assertNotEquals(key, RenditionCache.createKey(image, 30, false, 512));
+		// Keys are used as entity tags, so they must not need quoting.
+		assertFalse(key.contains("\""));
+	}
+
+	@Test
+	public void quantizesNearlyEqualFades() {
+		assertEquals(30, RenditionCache.quantizeFade(0.3f));
+		assertEquals(30, RenditionCache.quantizeFade(0.3001f));
+		assertEquals(0, RenditionCache.quantizeFade(-1));
+		assertEquals(RenditionCache.FADE_STEPS, RenditionCache.quantizeFade(2));
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Rgb565Test {
+
+	private static final int[] MAXES = {31, 63};
+
+	@Test
+	public void quantizeRoundsToNearest() {
+		for (int max : MAXES) {
+			for (int value = 0; value <= 255; value++) {
+				double exact = value * max / 255.0;
+				int reduced = Rgb565.quantize(value, max);
+
+				assertTrue("value " + value + " max " + max,
+						Math.abs(reduced - exact) <= 0.5 + 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void ditherStaysWithinOneStep() {
+		for (int max : MAXES) {
+			for (int value = 0; value <= 255; value++) {
+				double exact = value * max / 255.0;
+
+				for (int threshold = 0; threshold < 16; threshold++) {
+					int reduced = Rgb565.quantize(value, max, threshold);
+
+					assertTrue(reduced >= Math.floor(exact) && reduced <= Math.ceil(exact));
+					assertTrue(reduced <= max);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void ditherAveragesToTheOriginal() {
+		for (int max : MAXES) {
+			for (int value = 0; value <= 255; value++) {
+				int sum = 0;
+				for (int threshold = 0; threshold < 16; threshold++) {
+					sum += Rgb565.quantize(value, max, threshold);
+				}
+
+				// The thresholds are 1/16 of a step apart, so the mean is within half of that.
+				double error = Math.abs(sum / 16.0 - value * max / 255.0);
+				assertTrue("value " + value + " max " + max + " error " + error,
+						error <= 1.0 / 32 + 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void ditheredBlockOfFlatColorAveragesToTheOriginal() {
+		int[] argb = new int[4];
+		short[] out = new short[4];
+
+		for (int value = 0; value <= 255; value++) {
+			Arrays.fill(argb, 0xFF000000 | (value << 16) | (value << 8) | value);
+			double red = 0;
+			double green = 0;
+
+			for (int y = 0; y < 4; y++) {
+				Rgb565.convertRow(argb, 0, out, 0, 4, y, true);
+
+				for (short pixel : out) {
+					red += (pixel >> 11) & 0x1F;
+					green += (pixel >> 5) & 0x3F;
+				}
+			}
+
+			assertEquals(value * 31 / 255.0, red / 16, 1.0 / 32 + 1e-9);
+			assertEquals(value * 63 / 255.0, green / 16, 1.0 / 32 + 1e-9);
+		}
+	}
+
+	@Test
+	public void toArgbExpandsWithinHalfAStep() {
+		for (int value = 0; value <= 255; value++) {
+			short pixel = Rgb565.pack(Rgb565.quantize(value, 31), Rgb565.quantize(value, 63),
+					Rgb565.quantize(value, 31));
+			int argb = Rgb565.toArgb(pixel);
+
+			assertEquals(0xFF, argb >>> 24);
+			assertEquals(value, (argb >> 16) & 0xFF, 255.0 / 31 / 2 + 1);
+			assertEquals(value, (argb >> 8) & 0xFF, 255.0 / 63 / 2 + 1);
+			assertEquals(value, argb & 0xFF, 255.0 / 31 / 2 + 1);
+		}
+	}
+
+	@Test
+	public void extremesAreExact() {
+		assertEquals(0xFF000000, Rgb565.toArgb(Rgb565.pack(0, 0, 0)));
+		assertEquals(0xFFFFFFFF, Rgb565.toArgb(Rgb565.pack(31, 63, 31)));
+
+		for (int threshold = 0; threshold < 16; threshold++) {
+			assertEquals(0, Rgb565.quantize(0, 31, threshold));
+			assertEquals(31, Rgb565.quantize(255, 31, threshold));
+		}
+	}
+}
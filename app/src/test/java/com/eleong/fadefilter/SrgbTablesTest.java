@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SrgbTablesTest {
+
+	@Test
+	public void everyCodeSurvivesARoundTrip() {
+		for (int srgb = 0; srgb <= 255; srgb++) {
+			assertEquals(srgb, SrgbTables.encode(SrgbTables.decode(srgb)));
+		}
+	}
+
+	@Test
+	public void endpointsAreExact() {
+		assertEquals(0, SrgbTables.decode(0));
+		assertEquals(SrgbTables.LINEAR_MAX, SrgbTables.decode(255));
+		assertEquals(0, SrgbTables.encode(0));
+		assertEquals(255, SrgbTables.encode(SrgbTables.LINEAR_MAX));
+	}
+
+	@Test
+	public void decodeIsStrictlyIncreasing() {
+		for (int srgb = 1; srgb <= 255; srgb++) {
+			assertTrue("code " + srgb, SrgbTables.decode(srgb) > SrgbTables.decode(srgb - 1));
+		}
+	}
+
+	@Test
+	public void tablesMatchTheTransferFunctions() {
+		for (int srgb = 0; srgb <= 255; srgb++) {
+			assertEquals(SrgbTables.toLinear(srgb / 255.0) * SrgbTables.LINEAR_MAX,
+					SrgbTables.decode(srgb), 0.5);
+		}
+
+		for (int linear = 0; linear <= SrgbTables.LINEAR_MAX; linear++) {
+			assertEquals(SrgbTables.toSrgb((double) linear / SrgbTables.LINEAR_MAX) * 255.0,
+					SrgbTables.encode(linear), 0.5);
+		}
+	}
+
+	@Test
+	public void transferFunctionsAreInverses() {
+		for (int i = 0; i <= 1000; i++) {
+			double value = i / 1000.0;
+
+			assertEquals(value, SrgbTables.toSrgb(SrgbTables.toLinear(value)), 1e-9);
+			assertEquals(value, SrgbTables.toLinear(SrgbTables.toSrgb(value)), 1e-9);
+		}
+	}
+}
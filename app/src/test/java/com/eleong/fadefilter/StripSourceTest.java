@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripSourceTest {
+
+	private static final int WIDTH = 3;
+	private static final int HEIGHT = 10;
+	private static final int STRIP_ROWS = 4;
+
+	/**
+	 * Fills every pixel with its row, and fails at a given row if asked to.
+	 */
+	private static class RowSource extends StripSource {
+		private final int mFailTop;
+		private final RuntimeException mFailure;
+		final AtomicInteger mInFlight = new AtomicInteger();
+		final AtomicInteger mMaxInFlight = new AtomicInteger();
+		final AtomicInteger mReads = new AtomicInteger();
+		final AtomicInteger mCloses = new AtomicInteger();
+
+		RowSource(int maxStrips) {
+			this(maxStrips, -1, null);
+		}
+
+		RowSource(int maxStrips, int failTop, RuntimeException failure) {
+			super(WIDTH, HEIGHT, STRIP_ROWS, maxStrips);
+			mFailTop = failTop;
+			mFailure = failure;
+		}
+
+		@Override
+		protected void read(Strip strip) throws IOException {
+			mReads.incrementAndGet();
+			if (strip.getTop() == mFailTop) {
+				if (mFailure != null) {
+					throw mFailure;
+				}
+				throw new IOException("Bad row " + mFailTop);
+			}
+
+			int inFlight = mInFlight.incrementAndGet();
+			if (inFlight > mMaxInFlight.get()) {
+				mMaxInFlight.set(inFlight);
+			}
+
+			for (int y = 0; y < strip.getRows(); y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					strip.getPixels()[y * WIDTH + x] = strip.getTop() + y;
+				}
+			}
+		}
+
+		@Override
+		protected void close() {
+			mCloses.incrementAndGet();
+		}
+
+		void released() {
+			mInFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Keeps every strip and request in the hands of the test.
+	 */
+	private static class Recorder implements com.eleong.fadefilter.Flow.Subscriber<Strip> {
+		com.eleong.fadefilter.Flow.Subscription mSubscription;
+		final List<Strip> mStrips = new ArrayList<Strip>();
+		final List<Integer> mTops = new ArrayList<Integer>();
+		Throwable mError;
+		int mCompletions;
+
+		@Override
+		public void onSubscribe(com.eleong.fadefilter.Flow.Subscription subscription) {
+			mSubscription = subscription;
+		}
+
+		@Override
+		public void onNext(Strip strip) {
+			mStrips.add(strip);
+			mTops.add(strip.getTop());
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			mError = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			mCompletions++;
+		}
+
+		void releaseAll(RowSource source) {
+			List<Strip> strips = new ArrayList<Strip>(mStrips);
+			mStrips.clear();
+			for (Strip strip : strips) {
+				source.released();
+				strip.release();
+			}
+		}
+	}
+
+	/**
+	 * Copies every strip into a whole image.
+	 */
+	private static class ImageSink extends StripSink {
+		private final RowSource mSource;
+		final int[] mPixels = new int[WIDTH * HEIGHT];
+
+		ImageSink(RowSource source, int window) {
+			super(window);
+			mSource = source;
+		}
+
+		@Override
+		protected void write(Strip strip) {
+			System.arraycopy(strip.getPixels(), 0, mPixels, strip.getTop() * WIDTH,
+					strip.getRows() * WIDTH);
+			mSource.released();
+		}
+	}
+
+	private static int[] expectedPixels() {
+		int[] pixels = new int[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = i / WIDTH;
+		}
+		return pixels;
+	}
+
+	@Test
+	public void sendsOnlyWhatWasRequested() {
+		RowSource source = new RowSource(8);
+		Recorder recorder = new Recorder();
+		source.subscribe(recorder);
+
+		assertEquals(0, recorder.mTops.size());
+
+		recorder.mSubscription.request(1);
+		assertEquals(1, recorder.mTops.size());
+
+		recorder.mSubscription.request(1);
+		assertEquals(2, recorder.mTops.size());
+		assertEquals(0, recorder.mCompletions);
+
+		// Only three strips are left, so the rest of the request is never used.
+		recorder.mSubscription.request(5);
+		assertEquals(3, recorder.mTops.size());
+		assertEquals(1, recorder.mCompletions);
+		assertEquals(1, source.mCloses.get());
+		assertEquals(3, source.mReads.get());
+		assertEquals(0, (int) recorder.mTops.get(0));
+		assertEquals(4, (int) recorder.mTops.get(1));
+		assertEquals(8, (int) recorder.mTops.get(2));
+		assertEquals(2, recorder.mStrips.get(2).getRows());
+	}
+
+	@Test
+	public void waitsForAFreeStrip() {
+		RowSource source = new RowSource(2);
+		Recorder recorder = new Recorder();
+		source.subscribe(recorder);
+
+		recorder.mSubscription.request(Long.MAX_VALUE);
+		assertEquals(2, recorder.mTops.size());
+
+		// Releasing a strip lets the source fill it again straight away.
+		Strip first = recorder.mStrips.remove(0);
+		source.released();
+		first.release();
+		assertEquals(3, recorder.mTops.size());
+		assertSame(first, recorder.mStrips.get(1));
+
+		// The last strip has been sent, so the stream ends without waiting for it to be released.
+		assertEquals(1, recorder.mCompletions);
+		assertEquals(2, source.mMaxInFlight.get());
+	}
+
+	@Test
+	public void sinkDrainsTheWholeImage() throws IOException {
+		RowSource source = new RowSource(2);
+		ImageSink sink = new ImageSink(source, 2);
+
+		source.subscribe(sink);
+		sink.await();
+
+		assertArrayEquals(expectedPixels(), sink.mPixels);
+		assertEquals(1, source.mCloses.get());
+		assertTrue(source.mMaxInFlight.get() <= 2);
+	}
+
+	@Test
+	public void stageChangesEveryStrip() throws IOException {
+		RowSource source = new RowSource(2);
+		StripStage stage = new StripStage() {
+			@Override
+			protected void process(Strip strip) {
+				for (int i = 0; i < strip.getRows() * strip.getWidth(); i++) {
+					strip.getPixels()[i] *= 2;
+				}
+			}
+		};
+		ImageSink sink = new ImageSink(source, 1);
+
+		// Downstream first, so the request waits for the upstream side.
+		stage.subscribe(sink);
+		source.subscribe(stage);
+		sink.await();
+
+		int[] expected = expectedPixels();
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] *= 2;
+		}
+		assertArrayEquals(expected, sink.mPixels);
+	}
+
+	@Test
+	public void readFailureEndsTheStream() {
+		RowSource source = new RowSource(2, STRIP_ROWS, null);
+		ImageSink sink = new ImageSink(source, 2);
+
+		source.subscribe(sink);
+		try {
+			sink.await();
+			fail();
+		} catch (IOException e) {
+			assertEquals("Bad row " + STRIP_ROWS, e.getMessage());
+		}
+
+		assertEquals(2, source.mReads.get());
+		assertEquals(1, source.mCloses.get());
+	}
+
+	@Test
+	public void runtimeFailureEndsTheStream() {
+		RowSource source = new RowSource(2, 0, new IllegalStateException("broken"));
+		Recorder recorder = new Recorder();
+		source.subscribe(recorder);
+
+		recorder.mSubscription.request(3);
+
+		assertTrue(recorder.mError instanceof IllegalStateException);
+		assertEquals(0, recorder.mTops.size());
+		assertEquals(0, recorder.mCompletions);
+		assertEquals(1, source.mCloses.get());
+	}
+
+	@Test
+	public void stageFailureCancelsTheSource() {
+		RowSource source = new RowSource(2);
+		StripStage stage = new StripStage() {
+			@Override
+			protected void process(Strip strip) {
+				if (strip.getTop() > 0) {
+					throw new IllegalArgumentException("broken");
+				}
+			}
+		};
+		ImageSink sink = new ImageSink(source, 2);
+
+		source.subscribe(stage);
+		stage.subscribe(sink);
+		try {
+			sink.await();
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("broken"));
+		}
+
+		assertEquals(2, source.mReads.get());
+		assertEquals(1, source.mCloses.get());
+	}
+
+	@Test
+	public void sinkFailureCancelsTheSource() {
+		final RowSource source = new RowSource(2);
+		StripSink sink = new StripSink(2) {
+			@Override
+			protected void write(Strip strip) {
+				throw new IllegalStateException("full");
+			}
+		};
+
+		source.subscribe(sink);
+		try {
+			sink.await();
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("full"));
+		}
+
+		assertEquals(1, source.mReads.get());
+		assertEquals(1, source.mCloses.get());
+	}
+
+	@Test
+	public void cancelStopsTheStreamSilently() {
+		RowSource source = new RowSource(4);
+		Recorder recorder = new Recorder();
+		source.subscribe(recorder);
+
+		recorder.mSubscription.request(1);
+		recorder.mSubscription.cancel();
+		recorder.mSubscription.request(2);
+		recorder.releaseAll(source);
+
+		assertEquals(1, recorder.mTops.size());
+		assertNull(recorder.mError);
+		assertEquals(0, recorder.mCompletions);
+		assertEquals(1, source.mCloses.get());
+	}
+
+	@Test
+	public void cancelFromTheSinkFailsTheWait() {
+		final RowSource source = new RowSource(2);
+		final List<Integer> tops = new ArrayList<Integer>();
+		final StripSink[] sink = new StripSink[1];
+		sink[0] = new StripSink(1) {
+			@Override
+			protected void write(Strip strip) {
+				tops.add(strip.getTop());
+				source.released();
+				sink[0].cancel();
+			}
+		};
+
+		source.subscribe(sink[0]);
+		try {
+			sink[0].await();
+			fail();
+		} catch (IOException e) {
+			assertEquals("Cancelled", e.getMessage());
+		}
+
+		assertEquals(1, tops.size());
+		assertEquals(1, source.mCloses.get());
+	}
+
+	@Test
+	public void rejectsASecondSubscriber() {
+		RowSource source = new RowSource(2);
+		Recorder first = new Recorder();
+		Recorder second = new Recorder();
+
+		source.subscribe(first);
+		source.subscribe(second);
+
+		assertTrue(second.mError instanceof IllegalStateException);
+		assertNull(first.mError);
+
+		first.mSubscription.request(Long.MAX_VALUE);
+		first.releaseAll(source);
+		assertEquals(1, first.mCompletions);
+		assertEquals(0, second.mTops.size());
+	}
+
+	@Test
+	public void rejectsANonPositiveRequest() {
+		RowSource source = new RowSource(2);
+		Recorder recorder = new Recorder();
+		source.subscribe(recorder);
+
+		recorder.mSubscription.request(0);
+
+		assertTrue(recorder.mError instanceof IllegalArgumentException);
+		assertEquals(0, source.mReads.get());
+		assertEquals(1, source.mCloses.get());
+	}
+
+	@Test
+	public void stripsReleasedOnOtherThreadsStayWithinThePool() throws Exception {
+		final int maxStrips = 3;
+		final RowSource source = new RowSource(maxStrips);
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final int[] pixels = new int[WIDTH * HEIGHT];
+		final AtomicInteger written = new AtomicInteger();
+		final java.util.concurrent.CountDownLatch done =
+				new java.util.concurrent.CountDownLatch(1);
+		final boolean[] failed = new boolean[1];
+
+		try {
+			source.subscribe(new com.eleong.fadefilter.Flow.Subscriber<Strip>() {
+				private com.eleong.fadefilter.Flow.Subscription mSubscription;
+
+				@Override
+				public void onSubscribe(com.eleong.fadefilter.Flow.Subscription subscription) {
+					mSubscription = subscription;
+					subscription.request(Long.MAX_VALUE);
+				}
+
+				@Override
+				public void onNext(final Strip strip) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							synchronized (pixels) {
+								System.arraycopy(strip.getPixels(), 0, pixels,
+										strip.getTop() * WIDTH, strip.getRows() * WIDTH);
+							}
+							written.addAndGet(strip.getRows());
+							source.released();
+							strip.release();
+						}
+					});
+				}
+
+				@Override
+				public void onError(Throwable throwable) {
+					failed[0] = true;
+					done.countDown();
+				}
+
+				@Override
+				public void onComplete() {
+					done.countDown();
+				}
+			});
+
+			done.await();
+		} finally {
+			executor.shutdown();
+		}
+
+		assertTrue(executor.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS));
+		assertFalse(failed[0]);
+		assertEquals(HEIGHT, written.get());
+		synchronized (pixels) {
+			assertArrayEquals(expectedPixels(), pixels);
+		}
+		assertTrue(source.mMaxInFlight.get() <= maxStrips);
+		assertEquals(1, source.mCloses.get());
+	}
+}
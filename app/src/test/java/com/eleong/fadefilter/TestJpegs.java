@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Builds sample JPEGs for tests with the desktop encoder.
+ */
+final class TestJpegs {
+
+	private TestJpegs() {
+	}     // do not instantiate
+
+	/**
+	 * @return opaque ARGB pixels with smooth gradients and some detail
+	 */
+	static int[] createPixels(int width, int height) {
+		int[] argb = new int[width * height];
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int red = x * 255 / Math.max(1, width - 1);
+				int green = y * 255 / Math.max(1, height - 1);
+				int blue = ((x / 8 + y / 8) & 1) != 0 ? 200 : 60;
+				argb[y * width + x] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+			}
+		}
+
+		return argb;
+	}
+
+	/**
+	 * @param argb        the pixels to encode
+	 * @param progressive whether to write a progressive JPEG instead of a baseline one
+	 * @return the encoded image
+	 */
+	static byte[] encode(int[] argb, int width, int height, boolean progressive)
+			throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, width, height, argb, 0, width);
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(0.95f);
+		if (progressive) {
+			param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			out.close();
+			writer.dispose();
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the pixels of a JPEG, decoded by the desktop decoder
+	 */
+	static int[] decode(byte[] jpeg) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+				image.getWidth());
+	}
+
+	/**
+	 * Inserts a big endian EXIF segment holding only an orientation, just after the SOI marker.
+	 */
+	static byte[] withOrientation(byte[] jpeg, int orientation) {
+		byte[] exif = {
+				(byte) 0xFF, (byte) 0xE1, 0, 34,
+				'E', 'x', 'i', 'f', 0, 0,
+				'M', 'M', 0, 42, 0, 0, 0, 8,
+				// One entry: orientation, a SHORT, one value.
+				0, 1,
+				0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+				// No next IFD.
+				0, 0, 0, 0
+		};
+
+		byte[] result = new byte[jpeg.length + exif.length];
+		System.arraycopy(jpeg, 0, result, 0, 2);
+		System.arraycopy(exif, 0, result, 2, exif.length);
+		System.arraycopy(jpeg, 2, result, 2 + exif.length, jpeg.length - 2);
+		return result;
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 Eric Leong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.eleong.fadefilter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TracerTest {
+
+	@Before
+	public void setUp() {
+		Tracer.setEnabled(true);
+		Tracer.setListener(null);
+		Tracer.clear();
+	}
+
+	/**
+	 * @return the events of the exported trace, without the thread names
+	 */
+	private static List<Map<String, Object>> exportEvents() throws IOException {
+		List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+
+		for (Map<String, Object> event : exportAll()) {
+			if (!"M".equals(event.get("ph"))) {
+				events.add(event);
+			}
+		}
+
+		return events;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Map<String, Object>> exportAll() throws IOException {
+		StringWriter writer = new StringWriter();
+		Tracer.export(writer);
+
+		Map<String, Object> trace = (Map<String, Object>) new JsonParser(writer.toString()).parse();
+		assertEquals("ms", trace.get("displayTimeUnit"));
+
+		return (List<Map<String, Object>>) trace.get("traceEvents");
+	}
+
+	@Test
+	public void keepsTheNewestEventsWhenTheBufferWraps() throws IOException {
+		int extra = 10;
+		for (int i = 0; i < Tracer.CAPACITY + extra; i++) {
+			Tracer.instant("event " + i, i);
+		}
+
+		List<Map<String, Object>> events = exportEvents();
+
+		assertEquals(Tracer.CAPACITY, events.size());
+		assertEquals("event " + extra, events.get(0).get("name"));
+		assertEquals("event " + (Tracer.CAPACITY + extra - 1),
+				events.get(events.size() - 1).get("name"));
+
+		for (int i = 0; i < events.size(); i++) {
+			Map<String, Object> event = events.get(i);
+
+			assertEquals("i", event.get("ph"));
+			assertEquals("t", event.get("s"));
+			@SuppressWarnings("unchecked")
+			Map<String, Object> args = (Map<String, Object>) event.get("args");
+			assertEquals((double) (i + extra), (Double) args.get("value"), 0);
+		}
+	}
+
+	@Test
+	public void dropsEndsWhoseBeginWasOverwritten() throws IOException {
+		Tracer.begin("lost");
+		for (int i = 0; i < Tracer.CAPACITY - 3; i++) {
+			Tracer.instant("filler", i);
+		}
+		Tracer.begin("kept");
+		Tracer.end();
+		// Pushes the first begin out of the buffer.
+		Tracer.end();
+
+		List<Map<String, Object>> events = exportEvents();
+		int begins = 0;
+		int ends = 0;
+
+		for (Map<String, Object> event : events) {
+			if ("B".equals(event.get("ph"))) {
+				assertEquals("kept", event.get("name"));
+				begins++;
+			} else if ("E".equals(event.get("ph"))) {
+				assertFalse(event.containsKey("name"));
+				ends++;
+			}
+		}
+
+		assertEquals(1, begins);
+		assertEquals(1, ends);
+		assertEquals(Tracer.CAPACITY - 1, events.size());
+	}
+
+	@Test
+	public void writesTimesInMicrosecondsWithThreeDecimals() throws IOException {
+		long before = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			Tracer.begin("span");
+			Tracer.end();
+		}
+		long after = System.nanoTime();
+
+		StringWriter writer = new StringWriter();
+		Tracer.export(writer);
+		java.util.regex.Matcher matcher = java.util.regex.Pattern
+				.compile("\"ts\":(-?\\d+\\.\\d+)").matcher(writer.toString());
+		double last = Double.NEGATIVE_INFINITY;
+		int count = 0;
+
+		while (matcher.find()) {
+			String ts = matcher.group(1);
+			assertEquals(ts, 3, ts.length() - ts.indexOf('.') - 1);
+
+			double micros = Double.parseDouble(ts);
+			assertTrue(micros >= before / 1000.0 - 0.001 && micros <= after / 1000.0 + 0.001);
+			assertTrue(micros >= last);
+			last = micros;
+			count++;
+		}
+
+		assertEquals(200, count);
+	}
+
+	@Test
+	public void escapesNames() throws Exception {
+		final String name = "quote \" backslash \\ newline \n tab \t bell \u0007 \u00e9";
+		final String threadName = "worker \"1\"\n";
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Tracer.instant(name, Float.NaN);
+			}
+		}, threadName);
+		thread.start();
+		thread.join();
+
+		List<Map<String, Object>> events = exportAll();
+		assertEquals(2, events.size());
+
+		Map<String, Object> event = events.get(0);
+		assertEquals(name, event.get("name"));
+		// A value of NaN is not valid JSON, so it is left out.
+		assertFalse(event.containsKey("args"));
+
+		Map<String, Object> metadata = events.get(1);
+		assertEquals("M", metadata.get("ph"));
+		assertEquals("thread_name", metadata.get("name"));
+		assertEquals(event.get("tid"), metadata.get("tid"));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> args = (Map<String, Object>) metadata.get("args");
+		assertEquals(threadName, args.get("name"));
+	}
+
+	@Test
+	public void recordsNothingWhenDisabled() throws IOException {
+		Tracer.setEnabled(false);
+		try {
+			Tracer.begin("span");
+			Tracer.instant("instant", 1);
+			Tracer.end();
+		} finally {
+			Tracer.setEnabled(true);
+		}
+
+		assertTrue(exportAll().isEmpty());
+	}
+
+	/**
+	 * Just enough of a JSON parser to read a trace back, and strict enough to reject what a
+	 * trace viewer would.
+	 */
+	private static class JsonParser {
+		private final String mText;
+		private int mPosition;
+
+		JsonParser(String text) {
+			mText = text;
+		}
+
+		Object parse() {
+			Object value = readValue();
+			skipWhitespace();
+			assertEquals("trailing text", mText.length(), mPosition);
+			return value;
+		}
+
+		private Object readValue() {
+			skipWhitespace();
+			char c = mText.charAt(mPosition);
+
+			if (c == '{') {
+				return readObject();
+			} else if (c == '[') {
+				return readArray();
+			} else if (c == '"') {
+				return readString();
+			} else if (mText.startsWith("true", mPosition)) {
+				mPosition += 4;
+				return Boolean.TRUE;
+			} else if (mText.startsWith("false", mPosition)) {
+				mPosition += 5;
+				return Boolean.FALSE;
+			} else if (mText.startsWith("null", mPosition)) {
+				mPosition += 4;
+				return null;
+			}
+
+			return readNumber();
+		}
+
+		private Map<String, Object> readObject() {
+			Map<String, Object> object = new LinkedHashMap<String, Object>();
+			expect('{');
+			skipWhitespace();
+
+			if (peek() == '}') {
+				mPosition++;
+				return object;
+			}
+
+			for (; ; ) {
+				skipWhitespace();
+				String key = readString();
+				skipWhitespace();
+				expect(':');
+				object.put(key, readValue());
+				skipWhitespace();
+
+				if (peek() == '}') {
+					mPosition++;
+					return object;
+				}
+				expect(',');
+			}
+		}
+
+		private List<Object> readArray() {
+			List<Object> array = new ArrayList<Object>();
+			expect('[');
+			skipWhitespace();
+
+			if (peek() == ']') {
+				mPosition++;
+				return array;
+			}
+
+			for (; ; ) {
+				array.add(readValue());
+				skipWhitespace();
+
+				if (peek() == ']') {
+					mPosition++;
+					return array;
+				}
+				expect(',');
+			}
+		}
+
+		private String readString() {
+			StringBuilder builder = new StringBuilder();
+			expect('"');
+
+			for (; ; ) {
+				char c = mText.charAt(mPosition++);
+
+				if (c == '"') {
+					return builder.toString();
+				} else if (c < 0x20) {
+					throw new AssertionError("Unescaped control character at " + mPosition);
+				} else if (c != '\\') {
+					builder.append(c);
+					continue;
+				}
+
+				char escape = mText.charAt(mPosition++);
+				switch (escape) {
+					case '"':
+					case '\\':
+					case '/':
+						builder.append(escape);
+						break;
+					case 'n':
+						builder.append('\n');
+						break;
+					case 't':
+						builder.append('\t');
+						break;
+					case 'u':
+						builder.append((char) Integer.parseInt(
+								mText.substring(mPosition, mPosition + 4), 16));
+						mPosition += 4;
+						break;
+					default:
+						throw new AssertionError("Bad escape " + escape + " at " + mPosition);
+				}
+			}
+		}
+
+		private Double readNumber() {
+			int start = mPosition;
+			while (mPosition < mText.length()
+					&& "+-0123456789.eE".indexOf(mText.charAt(mPosition)) >= 0) {
+				mPosition++;
+			}
+
+			if (start == mPosition) {
+				throw new AssertionError("Unexpected " + peek() + " at " + mPosition);
+			}
+			return Double.parseDouble(mText.substring(start, mPosition));
+		}
+
+		private void skipWhitespace() {
+			while (mPosition < mText.length() && Character.isWhitespace(peek())) {
+				mPosition++;
+			}
+		}
+
+		private char peek() {
+			return mText.charAt(mPosition);
+		}
+
+		private void expect(char c) {
+			assertEquals("at " + mPosition, c, peek());
+			mPosition++;
+		}
+	}
+}